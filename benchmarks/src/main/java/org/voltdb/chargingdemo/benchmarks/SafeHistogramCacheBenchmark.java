@@ -0,0 +1,95 @@
+package org.voltdb.chargingdemo.benchmarks;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.voltutil.stats.LatencyHandle;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+/**
+ * SafeHistogramCache is shared by every callback thread in the client, so we
+ * run these with several threads at once to see what contention costs us.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SafeHistogramCacheBenchmark {
+
+  private final SafeHistogramCache shc = SafeHistogramCache.getInstance();
+
+  private LatencyHandle handle;
+
+  private LongAdder counter;
+
+  @Setup
+  public void setup() {
+    handle = shc.getLatencyHandle("bench");
+    counter = shc.getCounterHandle("bench");
+  }
+
+  @Benchmark
+  public void reportLatencyByName() {
+    shc.reportLatencyNanos("bench", System.nanoTime(), "");
+  }
+
+  @Benchmark
+  public void reportLatencyByHandle() {
+    handle.reportLatencyNanos(System.nanoTime(), "");
+  }
+
+  @Benchmark
+  public void incCounterByName() {
+    shc.incCounter("bench");
+  }
+
+  @Benchmark
+  public void incCounterByHandle() {
+    counter.increment();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object snapshot() {
+    return shc.get("bench");
+  }
+
+}
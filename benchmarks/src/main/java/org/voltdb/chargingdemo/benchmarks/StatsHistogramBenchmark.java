@@ -0,0 +1,89 @@
+package org.voltdb.chargingdemo.benchmarks;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+/**
+ * Cost of recording one latency in a StatsHistogram, and of asking it for a
+ * percentile, which is what the summary lines do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsHistogramBenchmark {
+
+  /**
+   * Spread of latencies from 10us to about 10ms, so we don't always hit the
+   * same bucket.
+   */
+  private final long[] latencies = new long[1024];
+
+  private int next = 0;
+
+  private StatsHistogram histogram;
+
+  @Setup
+  public void setup() {
+
+    histogram = new StatsHistogram("bench", 0);
+
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = 10000 + (i * i * 10L);
+      histogram.reportNanos(latencies[i], "");
+    }
+  }
+
+  @Benchmark
+  public void reportNanos() {
+    histogram.reportNanos(latencies[next++ & (latencies.length - 1)], "");
+  }
+
+  @Benchmark
+  public void reportMs() {
+    histogram.report(next++ & 255, "");
+  }
+
+  @Benchmark
+  public long getLatencyPct99() {
+    return histogram.getLatencyPctNanos(99);
+  }
+
+}
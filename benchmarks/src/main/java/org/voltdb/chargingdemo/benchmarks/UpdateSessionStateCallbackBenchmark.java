@@ -0,0 +1,129 @@
+package org.voltdb.chargingdemo.benchmarks;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.chargingdemo.UpdateSessionStateCallback;
+import org.voltdb.chargingdemo.UserStateStore;
+import org.voltdb.client.ClientResponse;
+
+import chargingdemoprocs.QuotaResponse;
+import chargingdemoprocs.ReferenceData;
+
+/**
+ * Parsing a ReportQuotaUsage response, and the single row that
+ * ReportQuotaUsageCompact returns instead. We build VoltTables that look like
+ * what the procedures return, so no server is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateSessionStateCallbackBenchmark {
+
+  private static final int USER_COUNT = 1000;
+
+  private final UserStateStore state = new UserStateStore(USER_COUNT, 1000);
+
+  private UpdateSessionStateCallback callback;
+
+  private VoltTable[] results;
+
+  private ClientResponse response;
+
+  private UpdateSessionStateCallback compactCallback;
+
+  private VoltTable[] compactResults;
+
+  private ClientResponse compactResponse;
+
+  @Setup
+  public void setup() {
+
+    callback = new UpdateSessionStateCallback(state, 0);
+
+    // Same shape as the last three tables from ReportQuotaUsage:
+    // getCurrentAllocation, getRemainingCredit and getBalance...
+    VoltTable allocation = new VoltTable(new VoltTable.ColumnInfo("allocated_units", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("sessionid", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("lastdate", VoltType.TIMESTAMP), new VoltTable.ColumnInfo("userid", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("productid", VoltType.BIGINT));
+    allocation.addRow(50, 12345678L, System.currentTimeMillis() * 1000, 42, 3);
+
+    VoltTable remainingCredit = new VoltTable(new VoltTable.ColumnInfo("userid", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("balance", VoltType.BIGINT));
+    remainingCredit.addRow(42, 800);
+
+    VoltTable balance = new VoltTable(new VoltTable.ColumnInfo("balance", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("product_id", VoltType.BIGINT), new VoltTable.ColumnInfo("session_id", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("userid", VoltType.BIGINT));
+    balance.addRow(900, 3, 12345678L, 42);
+
+    results = new VoltTable[] { allocation, remainingCredit, balance };
+    response = new ClientResponseImpl(ClientResponse.SUCCESS, results, "");
+
+    compactCallback = new UpdateSessionStateCallback(state, 0, true);
+    compactResults = QuotaResponse.make(ReferenceData.STATUS_ALL_UNITS_ALLOCATED, 42, 3, 12345678L, 50, 900, 800);
+    compactResponse = new ClientResponseImpl(ClientResponse.SUCCESS, compactResults, "");
+  }
+
+  @Benchmark
+  public void clientCallback() throws Exception {
+
+    // The callback reads rows, so put everything back to the start...
+    for (int i = 0; i < results.length; i++) {
+      results[i].resetRowPosition();
+    }
+
+    state.startTran(42, System.nanoTime());
+    callback.clientCallback(response);
+  }
+
+  @Benchmark
+  public void compactClientCallback() throws Exception {
+
+    compactResults[0].resetRowPosition();
+
+    state.startTran(42, System.nanoTime());
+    compactCallback.clientCallback(compactResponse);
+  }
+
+}
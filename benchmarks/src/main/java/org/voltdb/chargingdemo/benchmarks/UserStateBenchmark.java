@@ -0,0 +1,78 @@
+package org.voltdb.chargingdemo.benchmarks;
+
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.chargingdemo.ChargingDemo;
+import org.voltdb.chargingdemo.UserState;
+import org.voltdb.chargingdemo.UserStateStore;
+
+import chargingdemoprocs.ReferenceData;
+
+/**
+ * What the client does to a UserState for each ReportQuotaUsage call: start the
+ * transaction, then record the result and latency when the callback arrives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserStateBenchmark {
+
+  private static final int USER_COUNT = 100000;
+
+  private final UserStateStore state = new UserStateStore(USER_COUNT, 1000);
+
+  private final UserState user = new UserState(state, 0);
+
+  private int next = 0;
+
+  @Benchmark
+  public void reportQuotaUsageCycle() {
+
+    user.moveTo(next);
+    final int productId = next % ChargingDemo.PRODUCT_NAMES.length;
+
+    next = (next + 1) % USER_COUNT;
+
+    user.startTran();
+    user.reportBalance(900);
+    user.reportEndTransaction(productId, next, ReferenceData.STATUS_ALL_UNITS_ALLOCATED, 50);
+    user.IncUserStatus();
+  }
+
+}
@@ -1,3 +1,4 @@
+-- Run 'mvn package' first. It writes this jar from the current source.
 load classes ../jars/voltdb-chargingdemo.jar;
 
 file -inlinebatch END_OF_BATCH
@@ -9,12 +10,20 @@ CREATE table product_table
 
 DR TABLE product_table;
 
+CREATE table reference_data_version
+(id tinyint not null primary key
+,version bigint not null);
+
+DR TABLE reference_data_version;
+
 CREATE table user_table
 (userid bigint not null primary key
 ,user_json_object varchar(8000)
 ,user_last_seen TIMESTAMP DEFAULT NOW
 ,user_softlock_sessionid bigint 
-,user_softlock_expiry TIMESTAMP);
+,user_softlock_expiry TIMESTAMP
+,user_profile varbinary(1024)
+,user_version bigint default 0 not null);
 
 create index ut_del on user_table(user_last_seen);
 
@@ -29,20 +38,30 @@ create table user_recent_transactions
 ,txn_time TIMESTAMP DEFAULT NOW  not null 
 ,productid bigint
 ,amount bigint 
-,primary key (userid, user_txn_id))
-USING TTL 1 HOURS ON COLUMN txn_time;
+,primary key (userid, user_txn_id));
 
 PARTITION TABLE user_recent_transactions ON COLUMN userid;
 
-CREATE INDEX urt_del_idx ON user_recent_transactions(userid, txn_time);
-
-CREATE INDEX urt_del_idx2 ON user_recent_transactions(txn_time);
+CREATE INDEX urt_del_idx ON user_recent_transactions(txn_time, userid, user_txn_id);
 
 --CREATE INDEX urt_del_idx3 ON user_recent_transactions(txn_time) WHERE NOT MIGRATING();
 
 
 DR table user_recent_transactions;
 
+create table user_txn_ids
+(userid bigint not null 
+,txn_id bigint not null
+,txn_check bigint not null
+,txn_time TIMESTAMP DEFAULT NOW  not null 
+,primary key (userid, txn_id));
+
+PARTITION TABLE user_txn_ids ON COLUMN userid;
+
+CREATE INDEX uti_del_idx ON user_txn_ids(txn_time, userid, txn_id);
+
+DR table user_txn_ids;
+
 CREATE STREAM user_financial_events 
 partition on column userid
 export to target finevent
@@ -55,6 +74,7 @@ create table user_usage_table
 (userid bigint not null
 ,productid bigint not null
 ,allocated_units bigint not null
+,allocated_value bigint not null
 ,sessionid bigint  not null
 ,lastdate timestamp not null
 ,primary key (userid, productid,sessionid));
@@ -73,6 +93,12 @@ select productid, count(*) how_many, sum(allocated_units) allocated_units
 from user_usage_table
 group by productid;
 
+create view user_reserved_credit
+as
+select userid, count(*) allocations, sum(allocated_value) reserved_value
+from user_usage_table
+group by userid;
+
 create view user_balance_total_view
 as
 select userid, count(*) tran_count, sum(amount) balance
@@ -98,14 +124,11 @@ SELECT * FROM total_balances;
 CREATE PROCEDURE checkBalance
 PARTITION ON TABLE user_table COLUMN userid
 as
-select v.userid, v.balance - sum(uut.allocated_units * p.unit_cost )  credit
+select v.userid, v.balance - r.reserved_value credit
 from  user_balances v 
-   , user_usage_table uut
-   , product_table p
+   , user_reserved_credit r
 where v.userid = ?
-and   v.userid = uut.userid
-and   p.productid = uut.productid
-group by v.userid, v.balance;
+and   v.userid = r.userid;
 
 create procedure showTransactions
 PARTITION ON TABLE user_table COLUMN userid
@@ -129,10 +152,38 @@ CREATE PROCEDURE
 CREATE PROCEDURE 
    PARTITION ON TABLE user_table COLUMN userid
    FROM CLASS chargingdemoprocs.UpdateLockedUser;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.LockUser;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.PatchLockedUser;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.GetUserWithVersion;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.UpdateUserIfVersion;
    
 CREATE PROCEDURE 
    PARTITION ON TABLE user_table COLUMN userid
    FROM CLASS chargingdemoprocs.UpsertUser;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.BulkCreateUsers;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.GetUserProfile;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.PatchUserProfile;
    
 CREATE PROCEDURE 
    PARTITION ON TABLE user_table COLUMN userid
@@ -142,10 +193,43 @@ CREATE PROCEDURE
    PARTITION ON TABLE user_table COLUMN userid
    FROM CLASS chargingdemoprocs.ReportQuotaUsage;  
    
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.ReportQuotaUsageFast;  
+   
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.ReportQuotaUsageHashed;  
+   
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.ReportQuotaUsageCompact;  
+   
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.ReportQuotaUsageBatch;  
+   
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.ReportQuotaUsageBatchHashed;  
+   
 CREATE PROCEDURE 
    PARTITION ON TABLE user_table COLUMN userid
    FROM CLASS chargingdemoprocs.AddCredit;  
 
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_table COLUMN userid
+   FROM CLASS chargingdemoprocs.AddCreditHashed;  
+
+CREATE PROCEDURE DIRECTED
+   FROM CLASS chargingdemoprocs.ReconcileBalances;  
+
+CREATE PROCEDURE DIRECTED
+   FROM CLASS chargingdemoprocs.PurgeUserRange;  
+
+CREATE PROCEDURE 
+   FROM CLASS chargingdemoprocs.UpsertProduct;  
+
 DROP TASK DeleteStaleAllocationsTask IF EXISTS;
    
 DROP PROCEDURE DeleteStaleAllocations IF EXISTS;
@@ -155,14 +239,23 @@ CREATE PROCEDURE DIRECTED
    
 CREATE TASK DeleteStaleAllocationsTask
 ON SCHEDULE DELAY 1 SECONDS
-PROCEDURE DeleteStaleAllocations ON ERROR LOG
+PROCEDURE DeleteStaleAllocations WITH (1000,300000) ON ERROR LOG
 RUN ON PARTITIONS;
 
 DROP TASK DeleteStaleAllocationsTask;
 
 DROP TASK PurgeWrangler IF EXISTS;
 
-CREATE TASK PurgeWrangler  FROM CLASS chargingdemotasks.PurgeWrangler WITH (10,30000) ON ERROR LOG RUN ON PARTITIONS DISABLE;
+CREATE TASK PurgeWrangler  FROM CLASS chargingdemotasks.PurgeWrangler WITH (10,30000,5,1000,300000) ON ERROR LOG RUN ON PARTITIONS DISABLE;
+
+DROP TASK TransactionRetention IF EXISTS;
+
+DROP PROCEDURE PurgeOldTransactions IF EXISTS;
+
+CREATE PROCEDURE DIRECTED
+   FROM CLASS chargingdemoprocs.PurgeOldTransactions;  
+
+CREATE TASK TransactionRetention FROM CLASS chargingdemotasks.TransactionRetention WITH (10,20000,1000,3600) ON ERROR LOG RUN ON PARTITIONS;
 
 
 END_OF_BATCH
@@ -4,6 +4,8 @@ DROP TASK DeleteStaleAllocationsTask IF EXISTS;
 
 DROP TASK PurgeWrangler IF EXISTS;
 
+DROP TASK TransactionRetention IF EXISTS;
+
 DROP PROCEDURE getTotalBalance IF EXISTS;
 
 DROP PROCEDURE checkBalance IF EXISTS;
@@ -18,19 +20,55 @@ DROP PROCEDURE chargingdemoprocs.GetAndLockUser IF EXISTS;
    
 DROP PROCEDURE chargingdemoprocs.UpdateLockedUser IF EXISTS;
    
+DROP PROCEDURE LockUser IF EXISTS;
+   
+DROP PROCEDURE PatchLockedUser IF EXISTS;
+   
+DROP PROCEDURE GetUserWithVersion IF EXISTS;
+   
+DROP PROCEDURE UpdateUserIfVersion IF EXISTS;
+   
 DROP PROCEDURE chargingdemoprocs.UpsertUser IF EXISTS;
    
+DROP PROCEDURE BulkCreateUsers IF EXISTS;
+   
+DROP PROCEDURE GetUserProfile IF EXISTS;
+   
+DROP PROCEDURE PatchUserProfile IF EXISTS;
+   
 DROP PROCEDURE chargingdemoprocs.DelUser IF EXISTS;
    
 DROP PROCEDURE ReportQuotaUsage IF EXISTS;  
    
+DROP PROCEDURE ReportQuotaUsageFast IF EXISTS;  
+   
+DROP PROCEDURE ReportQuotaUsageHashed IF EXISTS;  
+   
+DROP PROCEDURE ReportQuotaUsageCompact IF EXISTS;  
+   
+DROP PROCEDURE ReportQuotaUsageBatch IF EXISTS;  
+   
+DROP PROCEDURE ReportQuotaUsageBatchHashed IF EXISTS;  
+   
 DROP PROCEDURE chargingdemoprocs.AddCredit IF EXISTS;  
+   
+DROP PROCEDURE chargingdemoprocs.AddCreditHashed IF EXISTS;  
 
 DROP PROCEDURE DeleteStaleAllocations IF EXISTS;
+
+DROP PROCEDURE PurgeOldTransactions IF EXISTS;
+
+DROP PROCEDURE ReconcileBalances IF EXISTS;
+
+DROP PROCEDURE PurgeUserRange IF EXISTS;
+
+DROP PROCEDURE UpsertProduct IF EXISTS;
     
 
 drop view allocated_by_product IF EXISTS;
 
+drop view user_reserved_credit IF EXISTS;
+
 drop view user_balance_total_view IF EXISTS;
 
 drop VIEW total_balances IF EXISTS;
@@ -38,10 +76,14 @@ drop VIEW total_balances IF EXISTS;
 
 drop table product_table IF EXISTS;
 
+drop table reference_data_version IF EXISTS;
+
 drop table user_table IF EXISTS;
 
 drop table user_recent_transactions IF EXISTS;
 
+drop table user_txn_ids IF EXISTS;
+
 DROP STREAM user_financial_events IF EXISTS ;
 
 drop table user_usage_table IF EXISTS;
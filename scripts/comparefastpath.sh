@@ -0,0 +1,50 @@
+#!/bin/sh
+
+if 
+	[ "$#" -ne "6" ]
+then
+	echo Usage: tps duration_in_seconds initial_credit how_often_we_add_credit hostname user_count
+	echo Example: sh -x comparefastpath.sh 50 180 100000 5 localhost 100000
+
+	exit 1
+fi
+
+TPS=$1
+DURATIONSECONDS=$2
+INITIALCREDIT=$3
+CREDITINTERVAL=$4
+HNAME=$5
+USERCOUNT=$6
+
+PFILE=`date '+%Y%m%d%H%M'`fastpath.txt
+
+#
+# Kill any copies that were left running in the background because someone did ctrl-c last time...
+#
+kill -9 `ps -deaf | grep voltdb-chargingdemo-client.jar | grep -v grep | awk '{ print $2 }'` 2> /dev/null
+
+#
+# Delete and re-create our users at 50K
+#
+java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $USERCOUNT 0 50 DELETE 10 600 10 $INITIALCREDIT $CREDITINTERVAL
+java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $USERCOUNT 0 50 USERS 10 600 10 $INITIALCREDIT $CREDITINTERVAL
+
+#
+# Run the same workload at the same TPS with ReportQuotaUsage and then
+# ReportQuotaUsageFast...
+#
+for FASTPATH in false true
+do
+	LFILE=chargingdemo_${TPS}_fastpath_${FASTPATH}.lst
+	java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $USERCOUNT 0 $TPS TRANSACTIONS 10 ${DURATIONSECONDS} 10 $INITIALCREDIT ${CREDITINTERVAL} fastpath=${FASTPATH} > ${LFILE}
+
+	ACTUALREPORTEDTPS=`grep "entries per ms while doing transactions" ${LFILE} | awk '{ print $3 }'`
+	GS=`grep "GREPABLE SUMMARY" ${LFILE}`
+
+	echo fastpath=${FASTPATH}:$TPS:$ACTUALREPORTEDTPS:$DURATIONSECONDS:$INITIALCREDIT:$CREDITINTERVAL:$HNAME:$GS >> $PFILE
+
+	# delete the usage records we created...
+	sqlcmd --servers=$HNAME < del.sql
+done
+
+cat $PFILE
@@ -0,0 +1,63 @@
+#!/bin/sh
+
+#
+# Same idea as runtest.sh, but instead of starting a new JVM for each TPS level
+# we start one JVM with profile=step, which goes from starttps to stoptps
+# without stopping, and reports each step as a 'GREPABLE STEP SUMMARY' line.
+#
+
+if 
+	[ "$#" -ne "9" ]
+then
+	echo Usage: starttps tps_increment stoptps step_seconds initial_credit how_often_we_add_credit thread_count hostname user_count
+	echo Example: sh -x runtestprofile.sh 10 1 21 60 100000 5 10 localhost 1000000
+
+	exit 1
+fi
+
+STARTTPS=$1
+INCTPS=$2
+STOPTPS=$3
+STEPSECONDS=$4
+INITIALCREDIT=$5
+CREDITINTERVAL=$6
+TCOUNT=$7
+HNAME=$8
+USERCOUNT=$9
+
+PFILE=`date '+%Y%m%d%H%M'`perf.txt
+LFILE=chargingdemo_${STARTTPS}_${STOPTPS}_step
+
+#
+# Kill any copies that were left running in the background because someone did ctrl-c last time...
+#
+kill -9 `ps -deaf | grep voltdb-chargingdemo-client.jar | grep -v grep | awk '{ print $2 }'` 2> /dev/null
+
+#
+# Delete a re-create that many users at 50K
+#
+java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $USERCOUNT 0 50 DELETE 10 600 10 100000 5
+java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $USERCOUNT 0 50 USERS 10 600 10 100000 5
+
+rm ${LFILE}.lst 2> /dev/null
+
+#
+# durationseconds is ignored by the step profile, as the steps decide how long we run for...
+#
+java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $USERCOUNT 0 $STOPTPS TRANSACTIONS 10 ${STEPSECONDS} 10 $INITIALCREDIT ${CREDITINTERVAL} \
+	threads=${TCOUNT} profile=step startrate=${STARTTPS} stepincrement=${INCTPS} rate=${STOPTPS} stepseconds=${STEPSECONDS} > ${LFILE}.lst
+
+# Get AWS instance type (if on AWS)
+#ITYPE=`curl http://169.254.169.254/latest/meta-data/instance-type`
+ITYPE=MAC
+
+#
+# write one line per step to master file...
+#
+grep "GREPABLE STEP SUMMARY" ${LFILE}.lst | while read GS
+do
+	echo $STEPSECONDS:$INITIALCREDIT:$CREDITINTERVAL:$TCOUNT:$HNAME:$GS::$ITYPE >> $PFILE
+done
+
+# delete the records we created...
+sqlcmd --servers=$HNAME < del.sql
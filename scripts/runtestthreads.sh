@@ -0,0 +1,92 @@
+#!/bin/sh
+
+#
+# Same as runtest.sh, but instead of starting one JVM per thread we start one
+# JVM with thread_count worker threads, each with its own user_count_per_thread
+# users.
+#
+
+if 
+	[ "$#" -ne "9" ]
+then
+	echo Usage: startps tps_increment stoptps duration_in_seconds initial_credit how_often_we_add_credit thread_count hostname user_count_per_thread 
+	echo Example: sh -x runtestthreads.sh 10 1 21 180 100000 5 10 localhost 100000
+
+	exit 1
+fi
+
+STARTTPS=$1
+INCTPS=$2
+STOPTPS=$3
+DURATIONSECONDS=$4
+INITIALCREDIT=$5
+CREDITINTERVAL=$6
+TCOUNT=$7
+HNAME=$8
+USERCOUNT=$9
+
+THISTPS=${STARTTPS}
+
+PFILE=`date '+%Y%m%d%H%M'`perf.txt
+
+#
+# Kill any copies that were left running in the background because someone did ctrl-c last time...
+#
+kill -9 `ps -deaf | grep voltdb-chargingdemo-client.jar | grep -v grep | awk '{ print $2 }'` 2> /dev/null
+
+#
+# Calculate total number of users...
+#
+TOTAL_USERCOUNT=`expr ${USERCOUNT} \* ${TCOUNT}`
+
+#
+# Delete a re-create that many users at 50K
+#
+java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $TOTAL_USERCOUNT 0 50 DELETE 10 600 10 100000 5
+java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $TOTAL_USERCOUNT 0 50 USERS 10 600 10 100000 5
+
+
+# 
+# loop through requested TPS's
+#
+while
+	[ "${THISTPS}" -le "${STOPTPS}" ]
+do
+	echo TPS = ${THISTPS}
+
+	# Create a log file
+	LFILE=chargingdemo_${THISTPS}_threads
+	rm ${LFILE}.lst 2> /dev/null
+
+	# grab CPU 60 secs in future
+	sh remotecpu.sh & 
+
+	# One JVM does the lot. ChargingDemo splits THISTPS and the users between
+	# its threads...
+	java -jar ../jars/voltdb-chargingdemo-client.jar $HNAME $TOTAL_USERCOUNT 0 $THISTPS TRANSACTIONS 10 ${DURATIONSECONDS} 10 $INITIALCREDIT ${CREDITINTERVAL} threads=${TCOUNT} > ${LFILE}.lst
+
+	# wait for remotecpu.sh...
+	wait
+
+	ACTUALREPORTEDTPS=`grep "entries per ms while doing transactions" ${LFILE}.lst | awk '{ print $3 }'`
+	GS=`grep "GREPABLE SUMMARY" ${LFILE}.lst`
+
+	# Get AWS instance type (if on AWS)
+  	#ITYPE=`curl http://169.254.169.254/latest/meta-data/instance-type`
+  	ITYPE=MAC
+
+	# Remote CPU
+	REMOTECPU=`cat remotecpu.txt`
+
+	# local CPU
+	LOCALCPU=`cat localcpu.txt` 
+
+	# write this to master file...
+  	echo $THISTPS:$ACTUALREPORTEDTPS:$DURATIONSECONDS:$INITIALCREDIT:$CREDITINTERVAL:$TCOUNT:$HNAME:$GS::$ITYPE:$REMOTECPU:$LOCALCPU >> $PFILE
+
+	# delete the records we created...
+	sqlcmd --servers=$HNAME < del.sql
+
+	# Move to next TPS value
+	THISTPS=`expr ${THISTPS} + ${INCTPS}`		
+done
@@ -0,0 +1,123 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Adds credit to a user. Shared by AddCredit, which takes a string
+ * transaction id, and AddCreditHashed, which takes a numeric one.
+ *
+ */
+public abstract class AddCreditProcedure extends TxnIdProcedure {
+
+  // @formatter:off
+
+    public static final SQLStmt getUser = new SQLStmt("SELECT userid FROM user_table WHERE userid = ?;");
+    
+    public static final SQLStmt getBalance = new SQLStmt("SELECT userid, balance FROM user_balances WHERE userid = ?;");
+    
+    public static final SQLStmt getRemainingCredit
+        = new SQLStmt("select v.userid, v.balance - r.reserved_value balance "
+                   + "from  user_balances v " 
+                   + ", user_reserved_credit r "
+                   + "where v.userid = ? "
+                   + "and   v.userid = r.userid;");
+    
+    public static final SQLStmt addCredit = new SQLStmt(
+        "INSERT INTO user_financial_events (userid   ,amount, purpose)    VALUES (?,?,?);");
+
+    public static final SQLStmt updBalance = new SQLStmt(
+        "upsert into user_balances select userid, tran_count, balance from user_balance_total_view where userid = ?;");
+
+    public static final SQLStmt addToBalance = new SQLStmt(
+        "UPDATE user_balances SET balance = balance + ?, tran_count = tran_count + 1 WHERE userid = ?;");
+
+   // @formatter:on
+
+  /**
+   * Checks that the user exists and also makes sure that this transaction
+   * hasn't already happened. See {@link TxnIdProcedure} for the ids.
+   * 
+   * @param userId
+   * @param extraCredit
+   * @param txnId
+   * @param numericTxnId
+   * @param txnCheck
+   * @return Balance and Credit info
+   * @throws VoltAbortException
+   */
+  protected VoltTable[] addCredit(long userId, long extraCredit, String txnId, long numericTxnId, long txnCheck)
+      throws VoltAbortException {
+
+    // See if we know about this user and transaction...
+    voltQueueSQL(getUser, userId);
+    queueGetTxn(userId, txnId, numericTxnId);
+
+    VoltTable[] results = voltExecuteSQL();
+
+    // Sanity Check: Is this a real user?
+    if (!results[0].advanceRow()) {
+      throw new VoltAbortException("User " + userId + " does not exist");
+    }
+
+    // Sanity Check: Has this transaction already happened?
+    final TimestampType txnTime = findTxn(userId, results[1], txnId, numericTxnId, txnCheck);
+
+    if (txnTime != null) {
+
+      this.setAppStatusCode(ReferenceData.TXN_ALREADY_HAPPENED);
+      this.setAppStatusString("Event already happened at " + txnTime.toString());
+      
+    } else {
+
+      // Report credit add...
+      
+      this.setAppStatusCode(ReferenceData.CREDIT_ADDED);
+      this.setAppStatusString(extraCredit + " added by Txn " + (txnId != null ? txnId : numericTxnId));
+      
+      // Insert a row into the stream for each user's financial events. 
+      // user_balance_total_view adds it up, and we bring the user_balances
+      // table up to date below.
+      voltQueueSQL(addCredit, userId, extraCredit, extraCredit + " added");
+
+      if (ReferenceData.INCREMENTAL_BALANCES) {
+        voltQueueSQL(addToBalance, extraCredit, userId);
+      } else {
+        voltQueueSQL(updBalance, userId);
+      }
+
+      // get credit after transaction done - this will be returned
+      // to the client.
+      voltQueueSQL(getBalance, userId);
+      voltQueueSQL(getRemainingCredit, userId);
+      queueAddTxn(userId, numericTxnId, txnCheck, null, extraCredit);
+
+    }
+
+    return voltExecuteSQL(true);
+  }
+}
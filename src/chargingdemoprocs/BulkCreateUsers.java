@@ -0,0 +1,158 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.HashSet;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Create a batch of users that all live in the same partition. This does the
+ * same work as calling UpsertUser with isNew = "Y" once per user, but with one
+ * lookup for the whole batch and one write batch after it.
+ * <p>
+ * partitionKey is only there to route us to the right partition, and is
+ * usually just one of the userids. It's up to the caller to only send us users
+ * that hash to the same place; if they don't the insert into user_table fails
+ * and the whole batch is rolled back.
+ * <p>
+ * Users that already exist are left alone, which means it's safe to send the
+ * same batch twice. Unlike UpsertUser we don't record a transaction id in
+ * user_recent_transactions, as the user existing is enough to tell us we've
+ * done this before.
+ * <p>
+ * Returns one row: USERS_CREATED and USERS_SKIPPED.
+ */
+public class BulkCreateUsers extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final int MAX_USERS = 1000;
+
+    public static final SQLStmt getExistingUsers = new SQLStmt("SELECT userid FROM user_table WHERE userid IN ?;");
+
+    public static final SQLStmt insertUser = new SQLStmt("INSERT INTO user_table (userid, user_json_object,user_last_seen,user_profile) VALUES (?,?,?,?);");
+    
+    public static final SQLStmt addCredit = new SQLStmt(
+            "INSERT INTO user_financial_events (userid   ,amount, purpose)    VALUES (?,?,?);");
+
+    public static final SQLStmt updBalance = new SQLStmt(
+            "upsert into user_balances select userid, tran_count, balance from user_balance_total_view where userid = ?;");
+
+    public static final SQLStmt createBalance = new SQLStmt(
+            "UPSERT INTO user_balances (userid, tran_count, balance) VALUES (?,1,?);");
+
+    // @formatter:on
+
+    /**
+     * Create users.
+     * 
+     * @param partitionKey
+     *            any userid that lives in the same partition as userIds
+     * @param userIds
+     * @param credits
+     *            opening credit for each user
+     * @param jsons
+     *            JSON payload for each user
+     * @param profiles
+     *            binary profile for each user (see UserProfileLayout), or an
+     *            empty array if we're only using JSON
+     * @param lastSeen
+     * @return one row with USERS_CREATED and USERS_SKIPPED
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long partitionKey, long[] userIds, long[] credits, String[] jsons, byte[][] profiles,
+            TimestampType lastSeen) throws VoltAbortException {
+
+        final int userCount = userIds.length;
+
+        // Sanity Check: Do we have the same number of everything?
+        if (userCount == 0 || userCount > MAX_USERS) {
+            throw new VoltAbortException("Between 1 and " + MAX_USERS + " users needed, got " + userCount);
+        }
+
+        if (credits.length != userCount || jsons.length != userCount
+                || (profiles.length != 0 && profiles.length != userCount)) {
+            throw new VoltAbortException("All parameter arrays must be the same length");
+        }
+
+        // Sanity Check: Are the profiles ones we understand?
+        for (int i = 0; i < profiles.length; i++) {
+            if (!UserProfileLayout.isValid(profiles[i])) {
+                throw new VoltAbortException("Profile for user " + userIds[i] + " is not valid");
+            }
+        }
+
+        voltQueueSQL(getExistingUsers, (Object) userIds);
+        VoltTable existingUsers = voltExecuteSQL()[0];
+
+        HashSet<Long> skip = new HashSet<Long>(existingUsers.getRowCount() * 2);
+
+        while (existingUsers.advanceRow()) {
+            skip.add(existingUsers.getLong("userid"));
+        }
+
+        int usersCreated = 0;
+
+        for (int i = 0; i < userCount; i++) {
+
+            // Also catches the same userid turning up twice in one batch...
+            if (!skip.add(userIds[i])) {
+                continue;
+            }
+
+            voltQueueSQL(insertUser, userIds[i], jsons[i], lastSeen, profiles.length == 0 ? null : profiles[i]);
+            voltQueueSQL(addCredit, userIds[i], credits[i],
+                    "Created user " + userIds[i] + " with opening credit of " + credits[i]);
+
+            if (ReferenceData.INCREMENTAL_BALANCES) {
+                voltQueueSQL(createBalance, userIds[i], credits[i]);
+            } else {
+                voltQueueSQL(updBalance, userIds[i]);
+            }
+
+            usersCreated++;
+        }
+
+        if (usersCreated > 0) {
+            voltExecuteSQL(true);
+        }
+
+        VoltTable summary = new VoltTable(new VoltTable.ColumnInfo("USERS_CREATED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("USERS_SKIPPED", VoltType.BIGINT));
+        summary.addRow(usersCreated, userCount - usersCreated);
+
+        if (usersCreated == userCount) {
+            this.setAppStatusCode(ReferenceData.STATUS_OK);
+        } else {
+            this.setAppStatusCode(ReferenceData.USER_EXISTS_BUT_SHOULDNT);
+        }
+
+        return new VoltTable[] { summary };
+    }
+}
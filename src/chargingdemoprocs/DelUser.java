@@ -39,6 +39,8 @@ public class DelUser extends VoltProcedure {
     
     public static final SQLStmt delTxns = new SQLStmt("DELETE FROM user_recent_transactions WHERE userid = ?;");
     
+    public static final SQLStmt delTxnIds = new SQLStmt("DELETE FROM user_txn_ids WHERE userid = ?;");
+    
     public static final SQLStmt delTotals = new SQLStmt("DELETE FROM USER_BALANCE_TOTAL_VIEW WHERE userid = ?;");
     
     
@@ -57,6 +59,7 @@ public class DelUser extends VoltProcedure {
         voltQueueSQL(delUsage, userId);
         voltQueueSQL(delBalance, userId);
         voltQueueSQL(delTxns, userId);
+        voltQueueSQL(delTxnIds, userId);
         voltQueueSQL(delTotals, userId);
 
         return voltExecuteSQL(true);
@@ -26,38 +26,70 @@ package chargingdemoprocs;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
 
+/**
+ * Delete allocations in this partition that haven't been touched for
+ * timeoutMs, oldest first, up to maxRows at a time. This is a single DELETE
+ * that walks uut_del_idx, so we don't have to read the rows first.
+ * <p>
+ * Returns one row so our caller (usually
+ * {@link chargingdemotasks.PurgeWrangler}) can decide when to call us again and
+ * with how many rows:
+ * <ul>
+ * <li>ROWS_DELETED - how many allocations we removed.</li>
+ * <li>OLDEST_LASTDATE - lastdate of the oldest allocation left, or null if
+ * there aren't any.</li>
+ * <li>OLDEST_OVERDUE_MS - how long past timeoutMs the oldest allocation left
+ * is. If it's negative it's how long until it will be stale. Null if there
+ * aren't any allocations.</li>
+ * </ul>
+ */
 public class DeleteStaleAllocations extends VoltProcedure {
 
   // @formatter:off
 
-    public static final long TIMEOUT_MS = 300000;
-    
-    public static final SQLStmt findStaleAllocation = new SQLStmt("SELECT * FROM user_usage_table "
-            + "WHERE lastdate < DATEADD(MILLISECOND,?,NOW) "
-            + "ORDER BY lastdate,userid, productid,sessionid LIMIT 1000;");
-        
-    public static final SQLStmt deleteAllocation = new SQLStmt("DELETE FROM user_usage_table WHERE userid = ? AND productid = ? AND sessionid = ?");
+    public static final long DEFAULT_TIMEOUT_MS = 300000;
+
+    /**
+     * Most rows we'll delete in one call, whatever we're asked for.
+     */
+    public static final int MAX_ROWS_PER_CALL = 10000;
     
+    public static final SQLStmt deleteStaleAllocations = new SQLStmt("DELETE FROM user_usage_table "
+            + "WHERE lastdate < ? "
+            + "ORDER BY lastdate, userid, productid, sessionid LIMIT ?;");
+
+    public static final SQLStmt getOldestAllocation = new SQLStmt("SELECT MIN(lastdate) oldest FROM user_usage_table;");
        
     // @formatter:on
 
-    public VoltTable[] run() throws VoltAbortException {
+    public VoltTable[] run(int maxRows, long timeoutMs) throws VoltAbortException {
+
+        maxRows = Math.max(1, Math.min(maxRows, MAX_ROWS_PER_CALL));
+
+        final long nowMs = getTransactionTime().getTime();
+
+        voltQueueSQL(deleteStaleAllocations, new TimestampType((nowMs - timeoutMs) * 1000), maxRows);
+        voltQueueSQL(getOldestAllocation);
+        VoltTable[] results = voltExecuteSQL(true);
 
-        // Housekeeping: Delete allocations for this user that are older than
-        // TIMEOUT_MS
-        voltQueueSQL(findStaleAllocation, -1 * TIMEOUT_MS);
-        VoltTable[] staleSessions = voltExecuteSQL();
+        final long rowsDeleted = results[0].asScalarLong();
 
-        while (staleSessions[0].advanceRow()) {
+        results[1].advanceRow();
+        final TimestampType oldest = results[1].getTimestampAsTimestamp("oldest");
 
-            long userid = staleSessions[0].getLong("userid");
-            long productid = staleSessions[0].getLong("productid");
-            long sessionid = staleSessions[0].getLong("sessionid");
-            voltQueueSQL(deleteAllocation, userid, productid, sessionid);
+        VoltTable summary = new VoltTable(new VoltTable.ColumnInfo("ROWS_DELETED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("OLDEST_LASTDATE", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("OLDEST_OVERDUE_MS", VoltType.BIGINT));
 
+        if (results[1].wasNull()) {
+            summary.addRow(rowsDeleted, null, null);
+        } else {
+            summary.addRow(rowsDeleted, oldest, nowMs - (oldest.getTime() / 1000) - timeoutMs);
         }
 
-        return voltExecuteSQL(true);
+        return new VoltTable[] { summary };
     }
 }
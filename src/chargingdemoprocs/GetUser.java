@@ -42,15 +42,11 @@ public class GetUser extends VoltProcedure {
         + "WHERE userid = ? ORDER BY txn_time, user_txn_id, productid, amount;");
     
     public static final SQLStmt getRemainingCredit
-    = new SQLStmt("select v.userid, v.balance - sum(uut.allocated_units * p.unit_cost )  balance "
+    = new SQLStmt("select v.userid, v.balance - r.reserved_value balance "
                + "from  user_balances v " 
-               + ", user_usage_table uut "
-               + ", product_table p "
+               + ", user_reserved_credit r "
                + "where v.userid = ? "
-               + "and   v.userid = uut.userid "
-               + "and   p.productid = uut.productid "
-               + "group by v.userid, v.balance "
-               + "order by v.userid, v.balance;");
+               + "and   v.userid = r.userid;");
     
     public static final SQLStmt getTotalView = new SQLStmt("SELECT * FROM user_balance_total_view WHERE userid = ?;");    
 
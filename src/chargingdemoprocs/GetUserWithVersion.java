@@ -0,0 +1,61 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Read a user's JSON along with its version, for optimistic updates with
+ * UpdateUserIfVersion. Unlike GetAndLockUser this doesn't write anything.
+ */
+public class GetUserWithVersion extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getUser = new SQLStmt("SELECT userid, user_json_object, user_version "
+            + "FROM user_table WHERE userid = ?;");
+
+    // @formatter:on
+
+    /**
+     * @param userId
+     * @return userid, user_json_object and user_version
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long userId) throws VoltAbortException {
+
+        voltQueueSQL(getUser, userId);
+        VoltTable[] results = voltExecuteSQL(true);
+
+        // Sanity check: Does this user exist?
+        if (results[0].getRowCount() == 0) {
+            throw new VoltAbortException("User " + userId + " does not exist");
+        }
+
+        return results;
+
+    }
+}
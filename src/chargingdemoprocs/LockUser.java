@@ -0,0 +1,103 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Softlock a user the same way GetAndLockUser does, but without reading their
+ * balance, usage or transactions. Use this when all you want to do next is
+ * PatchLockedUser or UpdateLockedUser.
+ * <p>
+ * Returns one row: USERID, LOCKING_SESSION_ID and LOCK_EXPIRY. The status code
+ * is RECORD_HAS_BEEN_SOFTLOCKED if we got the lock, in which case
+ * LOCKING_SESSION_ID is the sessionId to pass to the update, or
+ * RECORD_ALREADY_SOFTLOCKED if someone else has it.
+ */
+public class LockUser extends VoltProcedure {
+
+  // @formatter:off
+
+    public static final SQLStmt getUserLock = new SQLStmt("SELECT userid "
+        + ",user_softlock_sessionid,user_softlock_expiry, now the_current_timestamp "
+        + "FROM user_table "
+        + "WHERE userid = ?;");
+    
+    public static final SQLStmt upsertUserLock = new SQLStmt("UPDATE user_table "
+        + "SET user_softlock_sessionid = ? "
+        + "   ,user_softlock_expiry = DATEADD(MILLISECOND,?,?) "
+        + "WHERE userid = ?;");
+
+    // @formatter:on
+
+  /**
+   * @param userId
+   * @return one row with the user's lock
+   * @throws VoltAbortException
+   */
+  public VoltTable[] run(long userId) throws VoltAbortException {
+
+    voltQueueSQL(getUserLock, userId);
+
+    VoltTable[] userRecord = voltExecuteSQL();
+
+    // Sanity check: Does this user exist?
+    if (!userRecord[0].advanceRow()) {
+      throw new VoltAbortException("User " + userId + " does not exist");
+    }
+
+    final TimestampType currentTimestamp = userRecord[0].getTimestampAsTimestamp("the_current_timestamp");
+    final TimestampType lockingSessionExpiryTimestamp = userRecord[0].getTimestampAsTimestamp("user_softlock_expiry");
+
+    VoltTable lock = new VoltTable(new VoltTable.ColumnInfo("USERID", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("LOCKING_SESSION_ID", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("LOCK_EXPIRY", VoltType.TIMESTAMP));
+
+    if (lockingSessionExpiryTimestamp != null && lockingSessionExpiryTimestamp.compareTo(currentTimestamp) > 0) {
+
+      final long lockingSessionId = userRecord[0].getLong("user_softlock_sessionid");
+      this.setAppStatusCode(ReferenceData.RECORD_ALREADY_SOFTLOCKED);
+      this.setAppStatusString("User " + userId + " has already been locked by session " + lockingSessionId);
+      lock.addRow(userId, lockingSessionId, lockingSessionExpiryTimestamp);
+
+    } else {
+
+      final TimestampType newExpiry = new TimestampType(
+          currentTimestamp.getTime() + (ReferenceData.LOCK_TIMEOUT_MS * 1000L));
+
+      this.setAppStatusCode(ReferenceData.RECORD_HAS_BEEN_SOFTLOCKED);
+      this.setAppStatusString("User " + userId + " newly locked by session " + getUniqueId());
+      voltQueueSQL(upsertUserLock, getUniqueId(), ReferenceData.LOCK_TIMEOUT_MS, currentTimestamp, userId);
+      voltExecuteSQL(true);
+      lock.addRow(userId, getUniqueId(), newExpiry);
+    }
+
+    return new VoltTable[] { lock };
+
+  }
+}
@@ -0,0 +1,181 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.json_voltpatches.JSONException;
+import org.json_voltpatches.JSONObject;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Change some fields of a previously locked user's JSON instead of replacing
+ * all of it like UpdateLockedUser does. The caller doesn't need to have read
+ * the JSON first, so LockUser is enough to get the sessionId.
+ * <p>
+ * Each change is a field name and a new value, which is itself JSON - so a
+ * string needs quotes, and 'null' removes the field. A name with dots in it
+ * refers to a field inside an object, which we create if it isn't there.
+ * Changes are applied in order, and the lock is released as with
+ * UpdateLockedUser.
+ */
+public class PatchLockedUser extends VoltProcedure {
+
+  // @formatter:off
+
+    public static final int MAX_FIELDS = 20;
+
+    /**
+     * Size of user_table.user_json_object.
+     */
+    public static final int MAX_JSON_LENGTH = 8000;
+
+    public static final SQLStmt getUser = new SQLStmt("SELECT userid ,user_json_object " + 
+        ",user_softlock_sessionid,user_softlock_expiry "
+        + "FROM user_table "
+        + "WHERE userid = ?;");
+    
+     public static final SQLStmt removeUserLockAndUpdateJSON = new SQLStmt("UPDATE user_table "
+        + "SET user_softlock_sessionid = NULL "
+        + "   ,user_softlock_expiry = NULL "
+        + "   ,user_json_object = ? "
+        + "   ,user_version = user_version + 1 "
+        + "WHERE userid = ?;");
+
+    // @formatter:on
+
+  /**
+   * Patch a previously locked user. 'sessionid' is the unique id that was
+   * returned by LockUser or GetAndLockUser.
+   * 
+   * @param userId
+   * @param sessionId
+   * @param fieldNames
+   * @param fieldValues
+   *          JSON values, one per field name
+   * @return
+   * @throws VoltAbortException
+   */
+  public VoltTable[] run(long userId, long sessionId, String[] fieldNames, String[] fieldValues)
+      throws VoltAbortException {
+
+    // Sanity Check: Do we have the same number of everything?
+    if (fieldNames.length == 0 || fieldNames.length > MAX_FIELDS) {
+      throw new VoltAbortException("Between 1 and " + MAX_FIELDS + " fields needed, got " + fieldNames.length);
+    }
+
+    if (fieldValues.length != fieldNames.length) {
+      throw new VoltAbortException("All parameter arrays must be the same length");
+    }
+
+    voltQueueSQL(getUser, userId);
+
+    VoltTable[] userRecord = voltExecuteSQL();
+
+    // Sanity check: Does this user exist?
+    if (!userRecord[0].advanceRow()) {
+      throw new VoltAbortException("User " + userId + " does not exist");
+    }
+
+    final long lockingSessionId = userRecord[0].getLong("user_softlock_sessionid");
+    final TimestampType lockingSessionExpiryTimestamp = userRecord[0].getTimestampAsTimestamp("user_softlock_expiry");
+
+    // If there is no lock or we're the ones who locked it...
+    if (lockingSessionExpiryTimestamp == null || lockingSessionId == sessionId) {
+
+      final String oldJson = userRecord[0].getString("user_json_object");
+      String newJson = null;
+
+      try {
+        JSONObject userObject = oldJson == null ? new JSONObject() : new JSONObject(oldJson);
+
+        for (int i = 0; i < fieldNames.length; i++) {
+          applyChange(userObject, fieldNames[i], fieldValues[i]);
+        }
+
+        newJson = userObject.toString();
+
+      } catch (JSONException e) {
+        throw new VoltAbortException("Can't patch user " + userId + ": " + e.getMessage());
+      }
+
+      if (newJson.length() > MAX_JSON_LENGTH) {
+        throw new VoltAbortException(
+            "Patched JSON for user " + userId + " would be " + newJson.length() + " characters long");
+      }
+
+      voltQueueSQL(removeUserLockAndUpdateJSON, newJson, userId);
+      this.setAppStatusCode(ReferenceData.STATUS_OK);
+
+    } else {
+
+      this.setAppStatusCode(ReferenceData.RECORD_HAS_BEEN_SOFTLOCKED);
+      this.setAppStatusString("User " + userId + " currently locked by session " + lockingSessionId + ". Expires at "
+          + lockingSessionExpiryTimestamp.toString());
+
+    }
+
+    return voltExecuteSQL(true);
+
+  }
+
+  /**
+   * Set fieldName in userObject to jsonValue, or remove it if jsonValue is
+   * 'null'.
+   * 
+   * @param userObject
+   * @param fieldName
+   *          dotted path to the field
+   * @param jsonValue
+   * @throws JSONException
+   */
+  private static void applyChange(JSONObject userObject, String fieldName, String jsonValue) throws JSONException {
+
+    final String[] path = fieldName.split("\\.");
+    JSONObject parent = userObject;
+
+    for (int i = 0; i < path.length - 1; i++) {
+
+      JSONObject child = parent.optJSONObject(path[i]);
+
+      if (child == null) {
+        child = new JSONObject();
+        parent.put(path[i], child);
+      }
+
+      parent = child;
+    }
+
+    // Parse the value by wrapping it in an object, so that strings, numbers,
+    // arrays and objects all work...
+    final Object value = new JSONObject("{\"v\":" + jsonValue + "}").get("v");
+
+    if (value == JSONObject.NULL) {
+      parent.remove(path[path.length - 1]);
+    } else {
+      parent.put(path[path.length - 1], value);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Change one field of a user's binary profile. The client only sends us the
+ * field and its new value; we overwrite those bytes in the stored profile and
+ * leave everything else as it was. See {@link UserProfileLayout}.
+ */
+public class PatchUserProfile extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt getProfile = new SQLStmt("SELECT user_profile FROM user_table WHERE userid = ?;");
+
+    public static final SQLStmt updateProfile = new SQLStmt("UPDATE user_table SET user_profile = ? WHERE userid = ?;");
+
+    // @formatter:on
+
+    /**
+     * @param userId
+     * @param fieldId
+     *            one of the UserProfileLayout.FIELD_ ids
+     * @param value
+     * @return
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long userId, byte fieldId, long value) throws VoltAbortException {
+
+        if (!UserProfileLayout.isField(fieldId)) {
+            throw new VoltAbortException("Profile field " + fieldId + " does not exist");
+        }
+
+        voltQueueSQL(getProfile, userId);
+        VoltTable profileTable = voltExecuteSQL()[0];
+
+        // Sanity check: Does this user exist?
+        if (!profileTable.advanceRow()) {
+            throw new VoltAbortException("User " + userId + " does not exist");
+        }
+
+        byte[] profile = profileTable.getVarbinary("user_profile");
+
+        // Sanity check: Does this user have a profile we understand?
+        if (!UserProfileLayout.isValid(profile)) {
+            this.setAppStatusCode(ReferenceData.USER_HAS_NO_PROFILE);
+            this.setAppStatusString("User " + userId + " has no profile we can patch");
+            return voltExecuteSQL(true);
+        }
+
+        try {
+            UserProfileLayout.setField(profile, fieldId, value);
+        } catch (IllegalArgumentException e) {
+            throw new VoltAbortException(e.getMessage());
+        }
+
+        voltQueueSQL(updateProfile, profile, userId);
+
+        this.setAppStatusCode(ReferenceData.STATUS_OK);
+        return voltExecuteSQL(true);
+    }
+}
@@ -0,0 +1,99 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.HashMap;
+
+import org.voltdb.VoltTable;
+
+/**
+ * Copy of product_table's prices, held by a procedure instance so it doesn't
+ * have to query product_table on every call. Each instance belongs to one
+ * partition and is only ever used by one thread.
+ * <p>
+ * product_table is only changed by UpsertProduct, which also changes the
+ * version in reference_data_version. Procedures read that version along with
+ * the user and call {@link #load} whenever it doesn't match ours. As the version
+ * is read inside the transaction every partition sees the same prices.
+ *
+ */
+public class ProductPriceCache {
+
+    /**
+     * Value returned by {@link #getUnitCost} for a product we don't know about.
+     */
+    public static final long NO_SUCH_PRODUCT = -1;
+
+    private boolean loaded = false;
+
+    private long version;
+
+    private final HashMap<Long, Long> unitCosts = new HashMap<Long, Long>();
+
+    /**
+     * @param currentVersion
+     *            the version in reference_data_version
+     * @return true if our prices are from currentVersion.
+     */
+    public boolean isCurrent(long currentVersion) {
+        return loaded && version == currentVersion;
+    }
+
+    /**
+     * Replace our prices.
+     * 
+     * @param newVersion
+     * @param products
+     *            rows from product_table, with PRODUCTID and UNIT_COST columns
+     */
+    public void load(long newVersion, VoltTable products) {
+
+        unitCosts.clear();
+
+        products.resetRowPosition();
+
+        while (products.advanceRow()) {
+            unitCosts.put(products.getLong("PRODUCTID"), products.getLong("UNIT_COST"));
+        }
+
+        version = newVersion;
+        loaded = true;
+    }
+
+    /**
+     * @param productId
+     * @return unit cost of productId, or NO_SUCH_PRODUCT
+     */
+    public long getUnitCost(long productId) {
+
+        Long unitCost = unitCosts.get(productId);
+
+        if (unitCost == null) {
+            return NO_SUCH_PRODUCT;
+        }
+
+        return unitCost;
+    }
+
+}
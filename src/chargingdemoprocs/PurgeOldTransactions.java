@@ -0,0 +1,133 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Delete rows older than retentionMs from user_recent_transactions and
+ * user_txn_ids in this partition, oldest first, up to maxRows from each table.
+ * This is the only thing that removes them - the charging procedures don't do
+ * any housekeeping of their own. A maxRows of 0 just reports how far behind we
+ * are.
+ * <p>
+ * Returns one row so our caller (usually
+ * {@link chargingdemotasks.TransactionRetention}) can decide when to call us
+ * again:
+ * <ul>
+ * <li>ROWS_DELETED - how many rows we removed from both tables.</li>
+ * <li>BACKLOG_ROWS - how many rows older than retentionMs are left.</li>
+ * <li>OLDEST_TXN_TIME - txn_time of the oldest row left, or null if both
+ * tables are empty.</li>
+ * <li>OLDEST_OVERDUE_MS - how long past retentionMs the oldest row left is. If
+ * it's negative it's how long until it will expire. Null if both tables are
+ * empty.</li>
+ * </ul>
+ */
+public class PurgeOldTransactions extends VoltProcedure {
+
+  // @formatter:off
+
+    /**
+     * How long we kept transactions for when the tables used TTL.
+     */
+    public static final long DEFAULT_RETENTION_MS = 3600000;
+
+    /**
+     * Most rows we'll delete from each table in one call, whatever we're asked for.
+     */
+    public static final int MAX_ROWS_PER_CALL = 10000;
+
+    public static final SQLStmt deleteOldTxns = new SQLStmt("DELETE FROM user_recent_transactions "
+            + "WHERE txn_time < ? "
+            + "ORDER BY txn_time, userid, user_txn_id LIMIT ?;");
+
+    public static final SQLStmt deleteOldTxnIds = new SQLStmt("DELETE FROM user_txn_ids "
+            + "WHERE txn_time < ? "
+            + "ORDER BY txn_time, userid, txn_id LIMIT ?;");
+
+    public static final SQLStmt countOldTxns = new SQLStmt("SELECT COUNT(*) FROM user_recent_transactions WHERE txn_time < ?;");
+
+    public static final SQLStmt countOldTxnIds = new SQLStmt("SELECT COUNT(*) FROM user_txn_ids WHERE txn_time < ?;");
+
+    public static final SQLStmt getOldestTxn = new SQLStmt("SELECT MIN(txn_time) oldest FROM user_recent_transactions;");
+
+    public static final SQLStmt getOldestTxnId = new SQLStmt("SELECT MIN(txn_time) oldest FROM user_txn_ids;");
+
+    // @formatter:on
+
+    public VoltTable[] run(int maxRows, long retentionMs) throws VoltAbortException {
+
+        maxRows = Math.max(0, Math.min(maxRows, MAX_ROWS_PER_CALL));
+
+        final long nowMs = getTransactionTime().getTime();
+        final TimestampType cutoff = new TimestampType((nowMs - retentionMs) * 1000);
+
+        long rowsDeleted = 0;
+
+        if (maxRows > 0) {
+            voltQueueSQL(deleteOldTxns, cutoff, maxRows);
+            voltQueueSQL(deleteOldTxnIds, cutoff, maxRows);
+            VoltTable[] deleteResults = voltExecuteSQL();
+
+            rowsDeleted = deleteResults[0].asScalarLong() + deleteResults[1].asScalarLong();
+        }
+
+        voltQueueSQL(countOldTxns, cutoff);
+        voltQueueSQL(countOldTxnIds, cutoff);
+        voltQueueSQL(getOldestTxn);
+        voltQueueSQL(getOldestTxnId);
+        VoltTable[] results = voltExecuteSQL(true);
+
+        final long backlogRows = results[0].asScalarLong() + results[1].asScalarLong();
+
+        TimestampType oldest = null;
+
+        for (int i = 2; i < results.length; i++) {
+            results[i].advanceRow();
+            TimestampType tableOldest = results[i].getTimestampAsTimestamp("oldest");
+
+            if (!results[i].wasNull() && (oldest == null || tableOldest.compareTo(oldest) < 0)) {
+                oldest = tableOldest;
+            }
+        }
+
+        VoltTable summary = new VoltTable(new VoltTable.ColumnInfo("ROWS_DELETED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("BACKLOG_ROWS", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("OLDEST_TXN_TIME", VoltType.TIMESTAMP),
+                new VoltTable.ColumnInfo("OLDEST_OVERDUE_MS", VoltType.BIGINT));
+
+        if (oldest == null) {
+            summary.addRow(rowsDeleted, backlogRows, null, null);
+        } else {
+            summary.addRow(rowsDeleted, backlogRows, oldest, nowMs - (oldest.getTime() / 1000) - retentionMs);
+        }
+
+        return new VoltTable[] { summary };
+    }
+}
@@ -0,0 +1,119 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * Delete every user in a range of userids, along with their usage, balances,
+ * recent transactions and financial history totals. This is a DIRECTED
+ * procedure - it runs on every partition and deletes the users that live
+ * there.
+ * <p>
+ * Each call only deletes the first maxUsers users it finds in the range, so
+ * that no partition is blocked for long. As deleted users are gone the next
+ * time we look, callers just keep calling with the same parameters until
+ * every partition says it's DONE.
+ * <p>
+ * Returns one row: USERS_DELETED, ROWS_DELETED (across all tables) and DONE
+ * (1 if there's nothing left in the range, otherwise 0).
+ */
+public class PurgeUserRange extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final int MAX_USERS_PER_CALL = 10000;
+
+    public static final SQLStmt getUsers = new SQLStmt("SELECT userid FROM user_table "
+            + "WHERE userid >= ? AND userid < ? ORDER BY userid LIMIT ?;");
+
+    public static final SQLStmt delUsers = new SQLStmt("DELETE FROM user_table WHERE userid >= ? AND userid <= ?;");
+    
+    public static final SQLStmt delUsage = new SQLStmt("DELETE FROM user_usage_table WHERE userid >= ? AND userid <= ?;");
+    
+    public static final SQLStmt delBalances = new SQLStmt("DELETE FROM user_balances WHERE userid >= ? AND userid <= ?;");
+    
+    public static final SQLStmt delTxns = new SQLStmt("DELETE FROM user_recent_transactions WHERE userid >= ? AND userid <= ?;");
+    
+    public static final SQLStmt delTxnIds = new SQLStmt("DELETE FROM user_txn_ids WHERE userid >= ? AND userid <= ?;");
+    
+    public static final SQLStmt delTotals = new SQLStmt("DELETE FROM USER_BALANCE_TOTAL_VIEW WHERE userid >= ? AND userid <= ?;");
+    
+    // @formatter:on
+
+    /**
+     * Delete up to maxUsers users in the range fromUserId (inclusive) to
+     * toUserId (exclusive).
+     * 
+     * @param fromUserId
+     * @param toUserId
+     * @param maxUsers
+     * @return one row with USERS_DELETED, ROWS_DELETED and DONE
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long fromUserId, long toUserId, int maxUsers) throws VoltAbortException {
+
+        maxUsers = Math.max(1, Math.min(maxUsers, MAX_USERS_PER_CALL));
+
+        voltQueueSQL(getUsers, fromUserId, toUserId, maxUsers);
+        VoltTable users = voltExecuteSQL()[0];
+
+        final int usersFound = users.getRowCount();
+        final boolean done = usersFound < maxUsers;
+
+        // If we found all the users left in the range we also tidy up anything
+        // else in it, even if it doesn't have a user_table row. Otherwise we
+        // stop at the last user we found.
+        long lastUserId = toUserId - 1;
+
+        if (!done) {
+            lastUserId = users.fetchRow(usersFound - 1).getLong("userid");
+        }
+
+        voltQueueSQL(delUsers, fromUserId, lastUserId);
+        voltQueueSQL(delUsage, fromUserId, lastUserId);
+        voltQueueSQL(delBalances, fromUserId, lastUserId);
+        voltQueueSQL(delTxns, fromUserId, lastUserId);
+        voltQueueSQL(delTxnIds, fromUserId, lastUserId);
+        voltQueueSQL(delTotals, fromUserId, lastUserId);
+
+        VoltTable[] results = voltExecuteSQL(true);
+
+        long rowsDeleted = 0;
+
+        for (int i = 0; i < results.length; i++) {
+            rowsDeleted += results[i].asScalarLong();
+        }
+
+        VoltTable summary = new VoltTable(new VoltTable.ColumnInfo("USERS_DELETED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("ROWS_DELETED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("DONE", VoltType.TINYINT));
+        summary.addRow(results[0].asScalarLong(), rowsDeleted, done ? 1 : 0);
+
+        return new VoltTable[] { summary };
+    }
+}
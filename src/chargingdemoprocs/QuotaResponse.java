@@ -0,0 +1,79 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * Layout of the single row that {@link ReportQuotaUsageCompact} returns
+ * instead of the five or more tables ReportQuotaUsage does. It's shared by the
+ * procedure and {@link org.voltdb.chargingdemo.UpdateSessionStateCallback},
+ * which reads the columns by index, so the order here can't change without
+ * changing both.
+ *
+ */
+public class QuotaResponse {
+
+    // Column indexes...
+    public static final int STATUS = 0;
+    public static final int USERID = 1;
+    public static final int PRODUCT_ID = 2;
+    public static final int SESSION_ID = 3;
+    public static final int ALLOCATED_UNITS = 4;
+    public static final int BALANCE = 5;
+    public static final int REMAINING_CREDIT = 6;
+
+    private static final VoltTable.ColumnInfo[] COLUMNS = { new VoltTable.ColumnInfo("STATUS", VoltType.TINYINT),
+            new VoltTable.ColumnInfo("USERID", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("PRODUCT_ID", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("SESSION_ID", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("ALLOCATED_UNITS", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("BALANCE", VoltType.BIGINT),
+            new VoltTable.ColumnInfo("REMAINING_CREDIT", VoltType.BIGINT) };
+
+    /**
+     * @param status
+     *            one of the ReferenceData status codes
+     * @param userId
+     * @param productId
+     * @param sessionId
+     * @param allocatedUnits
+     *            units now reserved for this product and session
+     * @param balance
+     *            balance, ignoring reservations
+     * @param remainingCredit
+     *            balance less all of the user's reservations
+     * @return a one row response.
+     */
+    public static VoltTable[] make(byte status, long userId, long productId, long sessionId, long allocatedUnits,
+            long balance, long remainingCredit) {
+
+        VoltTable response = new VoltTable(COLUMNS);
+        response.addRow(status, userId, productId, sessionId, allocatedUnits, balance, remainingCredit);
+
+        return new VoltTable[] { response };
+    }
+
+}
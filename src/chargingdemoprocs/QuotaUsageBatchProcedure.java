@@ -0,0 +1,306 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * Reports usage and asks for more credit for several products of the same user
+ * in one transaction. Each event is handled the same way as ReportQuotaUsage
+ * would, in the order given, but we read everything in one batch and write
+ * everything in another.
+ * <p>
+ * A product can only appear once per call, as each event would otherwise need
+ * to see the reservation made by the one before it. The same goes for
+ * transaction ids.
+ * <p>
+ * Instead of ReportQuotaUsage's result tables we return one row per event:
+ * PRODUCT_ID, SESSION_ID, STATUS (one of the ReferenceData codes),
+ * ALLOCATED_UNITS and BALANCE, which is the user's balance once that event has
+ * been applied.
+ * <p>
+ * Shared by ReportQuotaUsageBatch, which takes string transaction ids, and
+ * ReportQuotaUsageBatchHashed, which takes numeric ones with one check for the
+ * whole call.
+ *
+ */
+public abstract class QuotaUsageBatchProcedure extends TxnIdProcedure {
+
+  // @formatter:off
+
+    public static final int MAX_EVENTS = 50;
+
+    public static final SQLStmt getUser = new SQLStmt("SELECT u.userid, r.version product_version FROM user_table u "
+        + "LEFT OUTER JOIN reference_data_version r ON r.id = ? WHERE u.userid = ?;");
+    
+    public static final SQLStmt getBalanceAndReservations
+        = new SQLStmt("select v.balance, r.reserved_value reserved, r.allocations "
+                   + "from  user_balances v " 
+                   + "left outer join user_reserved_credit r on v.userid = r.userid "
+                   + "where v.userid = ?;");
+    
+    public static final SQLStmt getAllProducts = new SQLStmt("SELECT productid, unit_cost FROM product_table;");
+    
+    public static final SQLStmt createAllocation = new SQLStmt("INSERT INTO user_usage_table "
+        + "(userid, productid, allocated_units, allocated_value, sessionid, lastdate) VALUES (?,?,?,?,?,NOW);");
+        
+    public static final SQLStmt getAllocations = new SQLStmt("SELECT productid, sessionid, allocated_value "
+        + "FROM user_usage_table WHERE userid = ?;");
+
+    public static final SQLStmt deleteAllocation = new SQLStmt("DELETE FROM user_usage_table WHERE userid = ? AND productid = ? AND sessionid = ?");
+    
+    public static final SQLStmt reportSpending = new SQLStmt(
+            "INSERT INTO user_financial_events (userid   ,amount, purpose)    VALUES (?,?,?);");
+  
+    public static final SQLStmt updBalance = new SQLStmt(
+        "upsert into user_balances select userid, tran_count, balance from user_balance_total_view where userid = ?;");
+
+    public static final SQLStmt addToBalance = new SQLStmt(
+        "UPDATE user_balances SET balance = balance + ?, tran_count = tran_count + 1 WHERE userid = ?;");
+
+    // @formatter:on
+
+  private final ProductPriceCache priceCache = new ProductPriceCache();
+
+  /**
+   * @param userId
+   * @param productIds
+   * @param unitsUsed
+   * @param unitsWanted
+   * @param inputSessionIds
+   *          session ids, or a value <= 0 to start a new session
+   * @param txnIds
+   *          string transaction ids, or null
+   * @param numericTxnIds
+   *          numeric transaction ids if txnIds is null
+   * @param txnCheck
+   *          goes with every one of numericTxnIds
+   * @return one row per event
+   * @throws VoltAbortException
+   */
+  protected VoltTable[] reportQuotaUsageBatch(long userId, long[] productIds, int[] unitsUsed, int[] unitsWanted,
+      long[] inputSessionIds, String[] txnIds, long[] numericTxnIds, long txnCheck) throws VoltAbortException {
+
+    final int eventCount = productIds.length;
+
+    // Sanity Check: Do we have the same number of everything?
+    if (eventCount == 0 || eventCount > MAX_EVENTS) {
+      throw new VoltAbortException("Between 1 and " + MAX_EVENTS + " events needed, got " + eventCount);
+    }
+
+    final int txnIdCount = txnIds != null ? txnIds.length : numericTxnIds.length;
+
+    if (unitsUsed.length != eventCount || unitsWanted.length != eventCount || inputSessionIds.length != eventCount
+        || txnIdCount != eventCount) {
+      throw new VoltAbortException("All parameter arrays must be the same length");
+    }
+
+    // Sanity Check: Is each product and transaction only here once?
+    for (int i = 0; i < eventCount; i++) {
+      for (int j = i + 1; j < eventCount; j++) {
+        if (productIds[i] == productIds[j]) {
+          throw new VoltAbortException("Product " + productIds[i] + " appears more than once");
+        }
+
+        if (txnIds != null ? txnIds[i].equals(txnIds[j]) : numericTxnIds[i] == numericTxnIds[j]) {
+          throw new VoltAbortException("Transaction " + (txnIds != null ? txnIds[i] : numericTxnIds[i])
+              + " appears more than once");
+        }
+      }
+    }
+
+    // Do every read we need in one go...
+    voltQueueSQL(getUser, ReferenceData.PRODUCT_VERSION_ID, userId);
+    voltQueueSQL(getBalanceAndReservations, userId);
+    voltQueueSQL(getAllocations, userId);
+
+    for (int i = 0; i < eventCount; i++) {
+      queueGetTxn(userId, txnIds != null ? txnIds[i] : null, numericTxnId(numericTxnIds, i));
+    }
+
+    VoltTable[] results = voltExecuteSQL();
+
+    // Sanity check: Does this user exist?
+    if (!results[0].advanceRow()) {
+      throw new VoltAbortException("User " + userId + " does not exist");
+    }
+
+    // Reload prices if product_table has changed since we last looked...
+    final long productVersion = results[0].getLong("PRODUCT_VERSION");
+
+    if (!priceCache.isCurrent(productVersion)) {
+      voltQueueSQL(getAllProducts);
+      priceCache.load(productVersion, voltExecuteSQL()[0]);
+    }
+
+    // Sanity Check: Do these products exist?
+    for (int i = 0; i < eventCount; i++) {
+      if (priceCache.getUnitCost(productIds[i]) == ProductPriceCache.NO_SUCH_PRODUCT) {
+        throw new VoltAbortException("Product " + productIds[i] + " does not exist");
+      }
+    }
+
+    // Sanity Check: Does this user have a balance?
+    if (!results[1].advanceRow()) {
+      throw new VoltAbortException("User " + userId + " exists but has no financial history...");
+    }
+
+    // Balance and reservations before we change anything...
+    long balance = results[1].getLong("BALANCE");
+    long reserved = results[1].getLong("RESERVED");
+
+    if (results[1].wasNull()) {
+      reserved = 0;
+    }
+
+    final VoltTable allocations = results[2];
+
+    // Find out which events have already happened before queueing any writes,
+    // as findTxn may need to run a batch of its own...
+    final boolean[] alreadyHappened = new boolean[eventCount];
+    final String[] recentTxnIds = new String[eventCount];
+
+    for (int i = 0; i < eventCount; i++) {
+      alreadyHappened[i] = findTxn(userId, results[3 + i], txnIds != null ? txnIds[i] : null,
+          numericTxnId(numericTxnIds, i), txnCheck) != null;
+      recentTxnIds[i] = getRecentTxnId();
+    }
+
+    VoltTable eventResults = new VoltTable(new VoltTable.ColumnInfo("PRODUCT_ID", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("SESSION_ID", VoltType.BIGINT), new VoltTable.ColumnInfo("STATUS", VoltType.TINYINT),
+        new VoltTable.ColumnInfo("ALLOCATED_UNITS", VoltType.BIGINT), new VoltTable.ColumnInfo("BALANCE", VoltType.BIGINT));
+
+    int eventsDone = 0;
+
+    for (int i = 0; i < eventCount; i++) {
+
+      final long productId = productIds[i];
+      long sessionId = inputSessionIds[i];
+
+      // Sanity Check: Is this a re-send of a transaction we've already done?
+      if (alreadyHappened[i]) {
+        eventResults.addRow(productId, sessionId, ReferenceData.TXN_ALREADY_HAPPENED, 0, balance);
+        continue;
+      }
+
+      if (sessionId <= 0) {
+        sessionId = this.getUniqueId();
+      }
+
+      final long unitCost = priceCache.getUnitCost(productId);
+
+      // Cancel the reservation for this product/session, if there is one...
+      allocations.resetRowPosition();
+
+      while (allocations.advanceRow()) {
+        if (allocations.getLong("PRODUCTID") == productId && allocations.getLong("SESSIONID") == sessionId) {
+          reserved -= allocations.getLong("ALLOCATED_VALUE");
+          break;
+        }
+      }
+
+      long amountSpent = unitsUsed[i] * unitCost * -1;
+
+      balance += amountSpent;
+
+      if (unitsUsed[i] > 0) {
+
+        // Report spending...
+        voltQueueSQL(reportSpending, userId, amountSpent, unitsUsed[i] + " units of product " + productId);
+
+        if (ReferenceData.INCREMENTAL_BALANCES) {
+          voltQueueSQL(addToBalance, amountSpent, userId);
+        } else {
+          voltQueueSQL(updBalance, userId);
+        }
+      }
+
+      // Delete allocation record for current product/session
+      voltQueueSQL(deleteAllocation, userId, productId, sessionId);
+
+      // Note that transaction is now 'official'
+      queueAddTxn(userId, recentTxnIds[i], numericTxnId(numericTxnIds, i), txnCheck, productId, amountSpent);
+
+      byte status = ReferenceData.STATUS_OK;
+      long allocatedUnits = 0;
+
+      // if unitsWanted is 0 or less then this event is finished...
+      if (unitsWanted[i] > 0) {
+
+        // Credit available once spending is reported and our old
+        // reservation is gone.
+        final long currentBalance = balance - reserved;
+
+        long wantToSpend = unitCost * unitsWanted[i];
+
+        // Calculate how much we can afford ..
+        long whatWeCanAfford = Long.MAX_VALUE;
+
+        if (unitCost > 0) {
+          whatWeCanAfford = currentBalance / unitCost;
+        }
+
+        if (currentBalance <= 0 || whatWeCanAfford == 0) {
+
+          status = ReferenceData.STATUS_NO_MONEY;
+
+        } else if (wantToSpend > currentBalance) {
+
+          status = ReferenceData.STATUS_SOME_UNITS_ALLOCATED;
+          allocatedUnits = whatWeCanAfford;
+
+        } else {
+
+          status = ReferenceData.STATUS_ALL_UNITS_ALLOCATED;
+          allocatedUnits = unitsWanted[i];
+
+        }
+
+        if (allocatedUnits > 0) {
+          voltQueueSQL(createAllocation, userId, productId, allocatedUnits, allocatedUnits * unitCost, sessionId);
+          reserved += allocatedUnits * unitCost;
+        }
+      }
+
+      eventResults.addRow(productId, sessionId, status, allocatedUnits, balance);
+      eventsDone++;
+    }
+
+    if (eventsDone > 0) {
+      voltExecuteSQL(true);
+    }
+
+    this.setAppStatusCode(ReferenceData.STATUS_OK);
+    this.setAppStatusString(eventsDone + " of " + eventCount + " events processed");
+
+    VoltTable[] returnTables = { eventResults };
+    return returnTables;
+  }
+
+  private static long numericTxnId(long[] numericTxnIds, int i) {
+    return numericTxnIds != null ? numericTxnIds[i] : 0;
+  }
+}
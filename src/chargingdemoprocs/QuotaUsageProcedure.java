@@ -0,0 +1,320 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Arrays;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Does the same work as ReportQuotaUsage, but needs only two batches. We read
+ * everything we need in the first batch and then work out the new balance,
+ * the new reservation and the remaining credit in Java, so the second batch
+ * only has to do the writes. ReportQuotaUsage instead asks the database for
+ * the remaining credit twice. Product prices come from a ProductPriceCache,
+ * which costs an extra batch only when product_table has changed.
+ * <p>
+ * Shared by ReportQuotaUsageFast, which takes a string transaction id, and
+ * ReportQuotaUsageHashed, which takes a numeric one. Status codes and result
+ * tables are the same as ReportQuotaUsage, so UpdateSessionStateCallback works
+ * with any of them. ReportQuotaUsageCompact asks for a compact response
+ * instead: a single row laid out by {@link QuotaResponse}, and no status
+ * string.
+ *
+ */
+public abstract class QuotaUsageProcedure extends TxnIdProcedure {
+
+  // @formatter:off
+
+    public static final SQLStmt getUser = new SQLStmt("SELECT u.userid, r.version product_version FROM user_table u "
+        + "LEFT OUTER JOIN reference_data_version r ON r.id = ? WHERE u.userid = ?;");
+    
+    public static final SQLStmt getBalanceAndReservations
+        = new SQLStmt("select v.balance, r.reserved_value reserved, r.allocations "
+                   + "from  user_balances v " 
+                   + "left outer join user_reserved_credit r on v.userid = r.userid "
+                   + "where v.userid = ?;");
+    
+    public static final SQLStmt getAllProducts = new SQLStmt("SELECT productid, unit_cost FROM product_table;");
+    
+    public static final SQLStmt createAllocation = new SQLStmt("INSERT INTO user_usage_table "
+        + "(userid, productid, allocated_units, allocated_value, sessionid, lastdate) VALUES (?,?,?,?,?,NOW);");
+        
+    public static final SQLStmt getCurrentAllocation = new SQLStmt("SELECT allocated_units, allocated_value "
+        + "FROM user_usage_table WHERE userid = ? AND productid = ? AND sessionid = ?;");
+
+    public static final SQLStmt deleteAllocation = new SQLStmt("DELETE FROM user_usage_table WHERE userid = ? AND productid = ? AND sessionid = ?");
+    
+    public static final SQLStmt reportSpending = new SQLStmt(
+            "INSERT INTO user_financial_events (userid   ,amount, purpose)    VALUES (?,?,?);");
+  
+    public static final SQLStmt updBalance = new SQLStmt(
+        "upsert into user_balances select userid, tran_count, balance from user_balance_total_view where userid = ?;");
+
+    public static final SQLStmt addToBalance = new SQLStmt(
+        "UPDATE user_balances SET balance = balance + ?, tran_count = tran_count + 1 WHERE userid = ?;");
+
+    // @formatter:on
+
+  private final ProductPriceCache priceCache = new ProductPriceCache();
+
+  /**
+   * @param userId
+   * @param productId
+   * @param unitsUsed
+   * @param unitsWanted
+   * @param inputSessionId
+   * @param txnId
+   * @param numericTxnId
+   * @param txnCheck
+   * @param compact
+   *          return a QuotaResponse row instead of ReportQuotaUsage's tables
+   * @return the same tables as ReportQuotaUsage, or a QuotaResponse row
+   * @throws VoltAbortException
+   */
+  protected VoltTable[] reportQuotaUsage(long userId, long productId, int unitsUsed, int unitsWanted,
+      long inputSessionId, String txnId, long numericTxnId, long txnCheck, boolean compact)
+      throws VoltAbortException {
+
+    long unitCost = 0;
+    long sessionId = inputSessionId;
+
+    if (sessionId <= 0) {
+      sessionId = this.getUniqueId();
+    }
+
+    // Do every read we need in one go...
+    voltQueueSQL(getUser, ReferenceData.PRODUCT_VERSION_ID, userId);
+    queueGetTxn(userId, txnId, numericTxnId);
+    voltQueueSQL(getCurrentAllocation, userId, productId, sessionId);
+    voltQueueSQL(getBalanceAndReservations, userId);
+
+    VoltTable[] results = voltExecuteSQL();
+
+    // Sanity check: Does this user exist?
+    if (!results[0].advanceRow()) {
+      throw new VoltAbortException("User " + userId + " does not exist");
+    }
+
+    // Reload prices if product_table has changed since we last looked...
+    final long productVersion = results[0].getLong("PRODUCT_VERSION");
+
+    if (!priceCache.isCurrent(productVersion)) {
+      voltQueueSQL(getAllProducts);
+      priceCache.load(productVersion, voltExecuteSQL()[0]);
+    }
+
+    // Sanity Check: Does this product exist?
+    unitCost = priceCache.getUnitCost(productId);
+
+    if (unitCost == ProductPriceCache.NO_SUCH_PRODUCT) {
+      throw new VoltAbortException("Product " + productId + " does not exist");
+    }
+
+    // Sanity Check: Is this a re-send of a transaction we've already done?
+    final TimestampType txnTime = findTxn(userId, results[1], txnId, numericTxnId, txnCheck);
+
+    if (txnTime != null) {
+      this.setAppStatusCode(ReferenceData.TXN_ALREADY_HAPPENED);
+
+      // A compact response still gets a row, so the client can finish the
+      // transaction it thinks is in flight...
+      if (compact) {
+        return alreadyHappenedResponse(userId, productId, sessionId, results[2], results[3]);
+      }
+
+      this.setAppStatusString("Event already happened at " + txnTime.toString());
+      return voltExecuteSQL(true);
+    }
+
+    // Sanity Check: Does this user have a balance?
+    if (!results[3].advanceRow()) {
+      throw new VoltAbortException("User " + userId + " exists but has no financial history...");
+    }
+
+    // Balance and reservations before we change anything...
+    long balance = results[3].getLong("BALANCE");
+    long reserved = results[3].getLong("RESERVED");
+    long allocationCount = results[3].getLong("ALLOCATIONS");
+
+    // No row in user_reserved_credit means no reservations...
+    if (results[3].wasNull()) {
+      reserved = 0;
+      allocationCount = 0;
+    }
+
+    // Cancel the reservation for this product/session, if there is one...
+    if (results[2].advanceRow()) {
+      reserved -= results[2].getLong("ALLOCATED_VALUE");
+      allocationCount--;
+    }
+
+    long amountSpent = unitsUsed * unitCost * -1;
+
+    balance += amountSpent;
+
+    // Credit available once spending is reported and our old reservation is
+    // gone.
+    long currentBalance = balance - reserved;
+
+    // ReportQuotaUsage only returns the results of its last batch, so we skip
+    // the tables it would have got from earlier ones.
+    int firstTableToReturn = 0;
+
+    if (unitsUsed > 0) {
+
+      // Report spending...
+      voltQueueSQL(reportSpending, userId, amountSpent, unitsUsed + " units of product " + productId);
+
+      if (ReferenceData.INCREMENTAL_BALANCES) {
+        voltQueueSQL(addToBalance, amountSpent, userId);
+      } else {
+        voltQueueSQL(updBalance, userId);
+      }
+      firstTableToReturn = 2;
+
+    }
+
+    // Delete allocation record for current product/session
+    voltQueueSQL(deleteAllocation, userId, productId, sessionId);
+
+    // Note that transaction is now 'official'
+    queueAddTxn(userId, numericTxnId, txnCheck, productId, amountSpent);
+
+    long allocatedUnits = 0;
+    byte status = ReferenceData.STATUS_OK;
+
+    // if unitsWanted is 0 or less then this transaction is finished...
+    if (unitsWanted > 0) {
+
+      firstTableToReturn += 2;
+
+      long wantToSpend = unitCost * unitsWanted;
+
+      // Calculate how much we can afford ..
+      long whatWeCanAfford = Long.MAX_VALUE;
+
+      if (unitCost > 0) {
+        whatWeCanAfford = currentBalance / unitCost;
+      }
+
+      if (currentBalance <= 0 || whatWeCanAfford == 0) {
+
+        status = ReferenceData.STATUS_NO_MONEY;
+
+      } else if (wantToSpend > currentBalance) {
+
+        status = ReferenceData.STATUS_SOME_UNITS_ALLOCATED;
+        allocatedUnits = whatWeCanAfford;
+
+      } else {
+
+        status = ReferenceData.STATUS_ALL_UNITS_ALLOCATED;
+        allocatedUnits = unitsWanted;
+
+      }
+
+      this.setAppStatusCode(status);
+
+      if (!compact) {
+        this.setAppStatusString(
+            status == ReferenceData.STATUS_NO_MONEY ? "Not enough money" : "Allocated " + allocatedUnits + " units");
+      }
+
+      if (allocatedUnits > 0) {
+        voltQueueSQL(createAllocation, userId, productId, allocatedUnits, allocatedUnits * unitCost, sessionId);
+        reserved += allocatedUnits * unitCost;
+        allocationCount++;
+      }
+    }
+
+    final VoltTable[] writeResults = voltExecuteSQL(true);
+
+    if (compact) {
+      return QuotaResponse.make(status, userId, productId, sessionId, allocatedUnits, balance, balance - reserved);
+    }
+
+    // Build the same tables that ReportQuotaUsage gets by re-reading
+    // user_usage_table and user_balances...
+    VoltTable currentAllocation = new VoltTable(new VoltTable.ColumnInfo("ALLOCATED_UNITS", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("SESSIONID", VoltType.BIGINT), new VoltTable.ColumnInfo("LASTDATE", VoltType.TIMESTAMP),
+        new VoltTable.ColumnInfo("USERID", VoltType.BIGINT), new VoltTable.ColumnInfo("PRODUCTID", VoltType.BIGINT));
+
+    if (allocatedUnits > 0) {
+      currentAllocation.addRow(allocatedUnits, sessionId, getTransactionTime(), userId, productId);
+    }
+
+    VoltTable remainingCredit = new VoltTable(new VoltTable.ColumnInfo("USERID", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("BALANCE", VoltType.BIGINT));
+
+    if (allocationCount > 0) {
+      remainingCredit.addRow(userId, balance - reserved);
+    }
+
+    VoltTable newBalance = new VoltTable(new VoltTable.ColumnInfo("BALANCE", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("PRODUCT_ID", VoltType.BIGINT), new VoltTable.ColumnInfo("SESSION_ID", VoltType.BIGINT),
+        new VoltTable.ColumnInfo("USERID", VoltType.BIGINT));
+
+    newBalance.addRow(balance, productId, sessionId, userId);
+
+    VoltTable[] returnTables = Arrays.copyOfRange(writeResults, firstTableToReturn, writeResults.length + 3);
+    returnTables[returnTables.length - 3] = currentAllocation;
+    returnTables[returnTables.length - 2] = remainingCredit;
+    returnTables[returnTables.length - 1] = newBalance;
+
+    return returnTables;
+  }
+
+  /**
+   * @return a QuotaResponse row for a transaction that has already happened,
+   *         with the user's current balance and whatever is still reserved
+   *         for this session.
+   */
+  private VoltTable[] alreadyHappenedResponse(long userId, long productId, long sessionId,
+      VoltTable currentAllocation, VoltTable balanceAndReservations) {
+
+    long allocatedUnits = 0;
+    long balance = 0;
+    long reserved = 0;
+
+    if (currentAllocation.advanceRow()) {
+      allocatedUnits = currentAllocation.getLong("ALLOCATED_UNITS");
+    }
+
+    if (balanceAndReservations.advanceRow()) {
+      balance = balanceAndReservations.getLong("BALANCE");
+      reserved = balanceAndReservations.getLong("RESERVED");
+
+      if (balanceAndReservations.wasNull()) {
+        reserved = 0;
+      }
+    }
+
+    return QuotaResponse.make(ReferenceData.TXN_ALREADY_HAPPENED, userId, productId, sessionId, allocatedUnits,
+        balance, balance - reserved);
+  }
+}
@@ -0,0 +1,118 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * Check that user_balances agrees with user_balance_total_view for a range of
+ * users. This is a DIRECTED procedure - it runs on every partition and looks at
+ * the users that live there.
+ * <p>
+ * When ReferenceData.INCREMENTAL_BALANCES is true user_balances is maintained
+ * by delta updates, and the view is only kept for audit. This procedure is how
+ * we prove the two still match. Callers should keep the range of userids small
+ * enough that each call is short, as it blocks the partition while it runs.
+ */
+public class ReconcileBalances extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final int MAX_MISMATCHES_TO_REPORT = 100;
+
+    public static final SQLStmt countBalances = new SQLStmt("SELECT COUNT(*) how_many FROM user_balances "
+            + "WHERE userid >= ? AND userid < ?;");
+
+    public static final SQLStmt countMismatches = new SQLStmt("SELECT COUNT(*) how_many "
+            + "FROM user_balances b "
+            + "LEFT OUTER JOIN user_balance_total_view v ON b.userid = v.userid "
+            + "WHERE b.userid >= ? AND b.userid < ? "
+            + "AND (v.userid IS NULL OR b.balance <> v.balance OR b.tran_count <> v.tran_count);");
+
+    public static final SQLStmt countMissingBalances = new SQLStmt("SELECT COUNT(*) how_many "
+            + "FROM user_balance_total_view v "
+            + "LEFT OUTER JOIN user_balances b ON b.userid = v.userid "
+            + "WHERE v.userid >= ? AND v.userid < ? "
+            + "AND b.userid IS NULL;");
+
+    public static final SQLStmt getMismatches = new SQLStmt("SELECT b.userid, b.tran_count, b.balance "
+            + ", v.tran_count view_tran_count, v.balance view_balance "
+            + "FROM user_balances b "
+            + "LEFT OUTER JOIN user_balance_total_view v ON b.userid = v.userid "
+            + "WHERE b.userid >= ? AND b.userid < ? "
+            + "AND (v.userid IS NULL OR b.balance <> v.balance OR b.tran_count <> v.tran_count) "
+            + "ORDER BY b.userid LIMIT ?;");
+
+    public static final SQLStmt getMissingBalances = new SQLStmt("SELECT v.userid, b.tran_count, b.balance "
+            + ", v.tran_count view_tran_count, v.balance view_balance "
+            + "FROM user_balance_total_view v "
+            + "LEFT OUTER JOIN user_balances b ON b.userid = v.userid "
+            + "WHERE v.userid >= ? AND v.userid < ? "
+            + "AND b.userid IS NULL "
+            + "ORDER BY v.userid LIMIT ?;");
+
+    // @formatter:on
+
+    /**
+     * Compare user_balances and user_balance_total_view for userids in the range
+     * fromUserId (inclusive) to toUserId (exclusive).
+     * 
+     * @param fromUserId
+     * @param toUserId
+     * @return A one row summary (USERS_CHECKED, MISMATCHES), then the user_balances
+     *         rows that disagree with the view, then view rows that have no
+     *         user_balances row. The last two are limited to
+     *         MAX_MISMATCHES_TO_REPORT rows each.
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long fromUserId, long toUserId) throws VoltAbortException {
+
+        voltQueueSQL(countBalances, fromUserId, toUserId);
+        voltQueueSQL(countMismatches, fromUserId, toUserId);
+        voltQueueSQL(countMissingBalances, fromUserId, toUserId);
+        voltQueueSQL(getMismatches, fromUserId, toUserId, MAX_MISMATCHES_TO_REPORT);
+        voltQueueSQL(getMissingBalances, fromUserId, toUserId, MAX_MISMATCHES_TO_REPORT);
+
+        VoltTable[] results = voltExecuteSQL(true);
+
+        long mismatches = results[1].asScalarLong() + results[2].asScalarLong();
+
+        VoltTable summary = new VoltTable(new VoltTable.ColumnInfo("USERS_CHECKED", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("MISMATCHES", VoltType.BIGINT));
+        summary.addRow(results[0].asScalarLong(), mismatches);
+
+        if (mismatches == 0) {
+            this.setAppStatusCode(ReferenceData.STATUS_OK);
+        } else {
+            this.setAppStatusCode(ReferenceData.BALANCE_MISMATCH);
+            this.setAppStatusString(mismatches + " users have balances that don't match user_balance_total_view");
+        }
+
+        VoltTable[] returnTables = { summary, results[3], results[4] };
+        return returnTables;
+    }
+}
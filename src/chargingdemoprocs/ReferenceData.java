@@ -44,9 +44,28 @@ public class ReferenceData {
     public static final byte RECORD_ALREADY_SOFTLOCKED = 53;
     public static final byte RECORD_HAS_BEEN_SOFTLOCKED = 54;
     public static final byte USER_EXISTS_BUT_SHOULDNT = 55;
+    public static final byte BALANCE_MISMATCH = 56;
+    public static final byte USER_HAS_NO_PROFILE = 57;
+    public static final byte VERSION_CONFLICT = 58;
     
     public static final byte CREDIT_ADDED = 55;
     
     public static final int  LOCK_TIMEOUT_MS = 50;
+    
+    /**
+     * When true procedures apply each financial event to user_balances as a
+     * delta. When false they copy the user's row back from
+     * user_balance_total_view after every event, which is how this demo used to
+     * work. Either way ReconcileBalances can check the two agree.
+     * <p>
+     * This is a build-time switch and is on by default. To change it you have
+     * to rebuild the jar and load it again.
+     */
+    public static final boolean INCREMENTAL_BALANCES = true;
+
+    /**
+     * Row in reference_data_version that changes whenever product_table does.
+     */
+    public static final byte PRODUCT_VERSION_ID = 0;
 
 }
@@ -31,7 +31,8 @@ public class ReportQuotaUsage extends VoltProcedure {
 
   // @formatter:off
 
-    public static final SQLStmt getUser = new SQLStmt("SELECT userid FROM user_table WHERE userid = ?;");
+    public static final SQLStmt getUser = new SQLStmt("SELECT u.userid, r.version product_version FROM user_table u "
+        + "LEFT OUTER JOIN reference_data_version r ON r.id = ? WHERE u.userid = ?;");
     
     public static final SQLStmt getTxn = new SQLStmt("SELECT txn_time FROM user_recent_transactions WHERE userid = ? AND user_txn_id = ?;");
        
@@ -41,20 +42,16 @@ public class ReportQuotaUsage extends VoltProcedure {
         + " CAST (? AS BIGINT) session_id, userid FROM user_balances WHERE userid = ?;");
     
     public static final SQLStmt getRemainingCredit
-        = new SQLStmt("select v.userid, v.balance - sum(uut.allocated_units * p.unit_cost )  balance "
+        = new SQLStmt("select v.userid, v.balance - r.reserved_value balance "
                    + "from  user_balances v " 
-                   + ", user_usage_table uut "
-                   + ", product_table p "
+                   + ", user_reserved_credit r "
                    + "where v.userid = ? "
-                   + "and   v.userid = uut.userid "
-                   + "and   p.productid = uut.productid "
-                   + "group by v.userid, v.balance "
-                   + "order by v.userid, v.balance;");
+                   + "and   v.userid = r.userid;");
     
-    public static final SQLStmt getProduct = new SQLStmt("SELECT unit_cost FROM product_table WHERE productid = ?;");
+    public static final SQLStmt getAllProducts = new SQLStmt("SELECT productid, unit_cost FROM product_table;");
     
     public static final SQLStmt createAllocation = new SQLStmt("INSERT INTO user_usage_table "
-        + "(userid, productid, allocated_units,sessionid, lastdate) VALUES (?,?,?,?,NOW);");
+        + "(userid, productid, allocated_units, allocated_value, sessionid, lastdate) VALUES (?,?,?,?,?,NOW);");
         
     public static final SQLStmt getCurrentAllocation = new SQLStmt("SELECT allocated_units, sessionid, lastdate, userid, productid "
         + "FROM user_usage_table WHERE userid = ? AND productid = ? AND sessionid = ?;");
@@ -67,17 +64,13 @@ public class ReportQuotaUsage extends VoltProcedure {
     public static final SQLStmt updBalance = new SQLStmt(
         "upsert into user_balances select userid, tran_count, balance from user_balance_total_view where userid = ?;");
 
-    public static final SQLStmt removeOldestTransaction = new SQLStmt("DELETE " 
-            + "FROM user_recent_transactions "
-            + "WHERE userid = ? "
-            + "AND SINCE_EPOCH(Second,txn_time) < SINCE_EPOCH(Second,DATEADD(MILLISECOND, ?,NOW))"
-            + "ORDER BY txn_time,userid,user_txn_id LIMIT 1;");
+    public static final SQLStmt addToBalance = new SQLStmt(
+        "UPDATE user_balances SET balance = balance + ?, tran_count = tran_count + 1 WHERE userid = ?;");
 
-    private static final long FIVE_MINUTES_AGO_IN_MS = 1000 * 60 * -5;
-
-    
     // @formatter:on
 
+  private final ProductPriceCache priceCache = new ProductPriceCache();
+
   public VoltTable[] run(long userId, long productId, int unitsUsed, int unitsWanted, long inputSessionId, String txnId)
       throws VoltAbortException {
 
@@ -89,10 +82,8 @@ public class ReportQuotaUsage extends VoltProcedure {
       sessionId = this.getUniqueId();
     }
 
-    voltQueueSQL(getUser, userId);
-    voltQueueSQL(getProduct, productId);
+    voltQueueSQL(getUser, ReferenceData.PRODUCT_VERSION_ID, userId);
     voltQueueSQL(getTxn, userId, txnId);
-    voltQueueSQL(removeOldestTransaction, userId, FIVE_MINUTES_AGO_IN_MS);
 
     VoltTable[] results = voltExecuteSQL();
 
@@ -101,17 +92,25 @@ public class ReportQuotaUsage extends VoltProcedure {
       throw new VoltAbortException("User " + userId + " does not exist");
     }
 
+    // Reload prices if product_table has changed since we last looked...
+    final long productVersion = results[0].getLong("PRODUCT_VERSION");
+
+    if (!priceCache.isCurrent(productVersion)) {
+      voltQueueSQL(getAllProducts);
+      priceCache.load(productVersion, voltExecuteSQL()[0]);
+    }
+
     // Sanity Check: Does this product exist?
-    if (!results[1].advanceRow()) {
+    unitCost = priceCache.getUnitCost(productId);
+
+    if (unitCost == ProductPriceCache.NO_SUCH_PRODUCT) {
       throw new VoltAbortException("Product " + productId + " does not exist");
-    } else {
-      unitCost = results[1].getLong("UNIT_COST");
     }
 
     // Sanity Check: Is this a re-send of a transaction we've already done?
-    if (results[2].advanceRow()) {
+    if (results[1].advanceRow()) {
       this.setAppStatusCode(ReferenceData.TXN_ALREADY_HAPPENED);
-      this.setAppStatusString("Event already happened at " + results[2].getTimestampAsTimestamp("txn_time").toString());
+      this.setAppStatusString("Event already happened at " + results[1].getTimestampAsTimestamp("txn_time").toString());
       return voltExecuteSQL(true);
     }
     
@@ -124,7 +123,12 @@ public class ReportQuotaUsage extends VoltProcedure {
 
        // Report spending...
       voltQueueSQL(reportSpending, userId, amountSpent, unitsUsed + " units of product " + productId);
-      voltQueueSQL(updBalance, userId);
+
+      if (ReferenceData.INCREMENTAL_BALANCES) {
+        voltQueueSQL(addToBalance, amountSpent, userId);
+      } else {
+        voltQueueSQL(updBalance, userId);
+      }
 
       voltExecuteSQL();
 
@@ -175,13 +179,13 @@ public class ReportQuotaUsage extends VoltProcedure {
 
       this.setAppStatusString("Allocated " + whatWeCanAfford + " units");
       this.setAppStatusCode(ReferenceData.STATUS_SOME_UNITS_ALLOCATED);
-      voltQueueSQL(createAllocation, userId, productId, whatWeCanAfford, sessionId);
+      voltQueueSQL(createAllocation, userId, productId, whatWeCanAfford, whatWeCanAfford * unitCost, sessionId);
 
     } else {
 
       this.setAppStatusString("Allocated " + unitsWanted + " units");
       this.setAppStatusCode(ReferenceData.STATUS_ALL_UNITS_ALLOCATED);
-      voltQueueSQL(createAllocation, userId, productId, unitsWanted, sessionId);
+      voltQueueSQL(createAllocation, userId, productId, unitsWanted, wantToSpend, sessionId);
 
     }
 
@@ -0,0 +1,46 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.VoltTable;
+
+/**
+ * Variant of ReportQuotaUsageBatch that takes numeric transaction ids instead
+ * of strings, and records them in the narrow user_txn_ids table. Every id in a
+ * call shares one txnCheck. See {@link TxnIdHash} for how txnIds and txnCheck
+ * work, and {@link TxnIdProcedure} for what happens if two transactions share
+ * a txnId.
+ * <p>
+ * Returns the same table as ReportQuotaUsageBatch, so
+ * UpdateSessionStateBatchCallback works with either.
+ *
+ */
+public class ReportQuotaUsageBatchHashed extends QuotaUsageBatchProcedure {
+
+  public VoltTable[] run(long userId, long[] productIds, int[] unitsUsed, int[] unitsWanted, long[] inputSessionIds,
+      long[] txnIds, long txnCheck) throws VoltAbortException {
+    return reportQuotaUsageBatch(userId, productIds, unitsUsed, unitsWanted, inputSessionIds, null, txnIds,
+        txnCheck);
+  }
+}
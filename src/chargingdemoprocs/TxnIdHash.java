@@ -0,0 +1,113 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Compact transaction ids for user_txn_ids, the narrow alternative to
+ * user_recent_transactions. An id is a pair of longs: txn_id, which is the
+ * key, and txn_check, which we compare to tell a replay from two different
+ * transactions that happen to share a txn_id. If the check doesn't match
+ * the procedures fall back to user_recent_transactions, using
+ * {@link #getFallbackTxnId(long, long)} as the key, so a collision costs an
+ * extra lookup instead of a lost transaction.
+ * <p>
+ * Clients that already have string ids can turn them into a pair with
+ * {@link #hash(CharSequence)} and {@link #check(CharSequence)}, which use
+ * different multipliers so the same two strings are very unlikely to collide
+ * in both. {@link org.voltdb.chargingdemo.TxnIdGenerator} makes pairs without
+ * building strings at all.
+ *
+ */
+public class TxnIdHash {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final long CHECK_SEED = 0x2545f4914f6cdd1dL;
+
+    private static final long CHECK_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    /**
+     * @param txnId
+     * @return 64 bit FNV-1a hash of txnId, mixed so that ids that differ only
+     *         in their last character are spread out.
+     */
+    public static long hash(CharSequence txnId) {
+
+        long h = FNV_OFFSET_BASIS;
+
+        for (int i = 0; i < txnId.length(); i++) {
+            h ^= txnId.charAt(i);
+            h *= FNV_PRIME;
+        }
+
+        return mix(h);
+    }
+
+    /**
+     * @param txnId
+     * @return a second 64 bit hash of txnId, independent of
+     *         {@link #hash(CharSequence)}.
+     */
+    public static long check(CharSequence txnId) {
+
+        long h = CHECK_SEED;
+
+        for (int i = 0; i < txnId.length(); i++) {
+            h = (h + txnId.charAt(i)) * CHECK_MULTIPLIER;
+        }
+
+        return mix(h ^ txnId.length());
+    }
+
+    /**
+     * MurmurHash3's 64 bit finalizer. Every input maps to a different output,
+     * so mixing a sequence number never produces the same value twice.
+     *
+     * @param k
+     * @return k, mixed.
+     */
+    public static long mix(long k) {
+
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+
+        return k;
+    }
+
+    /**
+     * @param txnId
+     * @param txnCheck
+     * @return key used in user_recent_transactions when txnId is already in
+     *         user_txn_ids with a different check.
+     */
+    public static String getFallbackTxnId(long txnId, long txnCheck) {
+        return "#" + Long.toHexString(txnId) + "_" + Long.toHexString(txnCheck);
+    }
+
+}
@@ -0,0 +1,170 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Base class for procedures that make sure a transaction only happens once.
+ * A transaction either has a string id, which is kept in
+ * user_recent_transactions, or a numeric id and check from
+ * {@link TxnIdHash}, which are kept in the narrower user_txn_ids. If a numeric
+ * id is already there with a different check we have a collision, and use
+ * user_recent_transactions instead, keyed by
+ * {@link TxnIdHash#getFallbackTxnId(long, long)}, which costs one extra batch.
+ * <p>
+ * Callers queue {@link #queueGetTxn(long, String, long)} in their first batch,
+ * pass its result to {@link #findTxn(long, VoltTable, String, long, long)}
+ * and, if the transaction is new, record it in their last batch with
+ * {@link #queueAddTxn(long, long, long, Long, long)}. String ids are passed
+ * as txnId; numeric ones as numericTxnId and txnCheck with a null txnId.
+ * <p>
+ * Procedures that handle several transactions at once call findTxn for all of
+ * them before queueing any writes, keep what {@link #getRecentTxnId()} says
+ * after each, and pass it to
+ * {@link #queueAddTxn(long, String, long, long, Long, long)}.
+ *
+ */
+public abstract class TxnIdProcedure extends VoltProcedure {
+
+  // @formatter:off
+
+    public static final SQLStmt getTxn = new SQLStmt("SELECT txn_time FROM user_recent_transactions WHERE userid = ? AND user_txn_id = ?;");
+       
+    public static final SQLStmt addTxn = new SQLStmt("INSERT INTO user_recent_transactions (userid, user_txn_id, txn_time, productid, amount) VALUES (?,?,NOW,?,?);");
+
+    public static final SQLStmt getTxnId = new SQLStmt("SELECT txn_check, txn_time FROM user_txn_ids WHERE userid = ? AND txn_id = ?;");
+
+    public static final SQLStmt addTxnId = new SQLStmt("INSERT INTO user_txn_ids (userid, txn_id, txn_check, txn_time) VALUES (?,?,?,NOW);");
+
+    // @formatter:on
+
+  /**
+   * Key the current transaction goes under in user_recent_transactions, or
+   * null if it goes in user_txn_ids. Set by findTxn.
+   */
+  private String recentTxnId = null;
+
+  /**
+   * Queue a lookup of the transaction.
+   * 
+   * @param userId
+   * @param txnId
+   * @param numericTxnId
+   */
+  protected void queueGetTxn(long userId, String txnId, long numericTxnId) {
+
+    if (txnId != null) {
+      voltQueueSQL(getTxn, userId, txnId);
+    } else {
+      voltQueueSQL(getTxnId, userId, numericTxnId);
+    }
+  }
+
+  /**
+   * See if the transaction has already happened. If a numeric id turns out to
+   * belong to someone else's transaction we look for the fallback id in
+   * user_recent_transactions, which runs a batch of its own.
+   * 
+   * @param userId
+   * @param txn
+   *          what the statement queued by queueGetTxn returned
+   * @param txnId
+   * @param numericTxnId
+   * @param txnCheck
+   * @return when the transaction happened, or null if it hasn't.
+   */
+  protected TimestampType findTxn(long userId, VoltTable txn, String txnId, long numericTxnId, long txnCheck) {
+
+    recentTxnId = txnId;
+
+    if (!txn.advanceRow()) {
+      return null;
+    }
+
+    if (txnId != null || txn.getLong("TXN_CHECK") == txnCheck) {
+      return txn.getTimestampAsTimestamp("TXN_TIME");
+    }
+
+    recentTxnId = TxnIdHash.getFallbackTxnId(numericTxnId, txnCheck);
+
+    voltQueueSQL(getTxn, userId, recentTxnId);
+    VoltTable fallbackTxn = voltExecuteSQL()[0];
+
+    if (fallbackTxn.advanceRow()) {
+      return fallbackTxn.getTimestampAsTimestamp("TXN_TIME");
+    }
+
+    return null;
+  }
+
+  /**
+   * Queue a statement to record the transaction. Must be called after
+   * findTxn.
+   * 
+   * @param userId
+   * @param numericTxnId
+   * @param txnCheck
+   * @param productId
+   *          or null
+   * @param amount
+   */
+  protected void queueAddTxn(long userId, long numericTxnId, long txnCheck, Long productId, long amount) {
+    queueAddTxn(userId, recentTxnId, numericTxnId, txnCheck, productId, amount);
+  }
+
+  /**
+   * Queue a statement to record a transaction that findTxn looked at earlier.
+   * 
+   * @param userId
+   * @param recentTxnId
+   *          what getRecentTxnId returned after findTxn
+   * @param numericTxnId
+   * @param txnCheck
+   * @param productId
+   *          or null
+   * @param amount
+   */
+  protected void queueAddTxn(long userId, String recentTxnId, long numericTxnId, long txnCheck, Long productId,
+      long amount) {
+
+    if (recentTxnId != null) {
+      voltQueueSQL(addTxn, userId, recentTxnId, productId, amount);
+    } else {
+      voltQueueSQL(addTxnId, userId, numericTxnId, txnCheck);
+    }
+  }
+
+  /**
+   * @return the key the transaction findTxn last looked at goes under in
+   *         user_recent_transactions, or null if it goes in user_txn_ids.
+   */
+  protected String getRecentTxnId() {
+    return recentTxnId;
+  }
+
+}
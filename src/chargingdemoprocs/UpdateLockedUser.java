@@ -41,6 +41,7 @@ public class UpdateLockedUser extends VoltProcedure {
         + "SET user_softlock_sessionid = NULL "
         + "   ,user_softlock_expiry = NULL "
         + "   ,user_json_object = ? "
+        + "   ,user_version = user_version + 1 "
         + "WHERE userid = ?;");
 
     // @formatter:on
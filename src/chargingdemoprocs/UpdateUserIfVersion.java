@@ -0,0 +1,90 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+
+/**
+ * Replace a user's JSON, but only if nobody has changed it since we read it
+ * with GetUserWithVersion. Every successful change adds one to user_version.
+ * <p>
+ * Returns one row: UPDATED (1 or 0) and USER_VERSION, which is the new version
+ * if we updated it or the version someone else left if we didn't. In that case
+ * the status code is VERSION_CONFLICT and the caller should read the user again
+ * and have another go.
+ */
+public class UpdateUserIfVersion extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt updateIfVersion = new SQLStmt("UPDATE user_table "
+            + "SET user_json_object = ? "
+            + "   ,user_version = user_version + 1 "
+            + "WHERE userid = ? "
+            + "AND user_version = ?;");
+
+    public static final SQLStmt getVersion = new SQLStmt("SELECT user_version FROM user_table WHERE userid = ?;");
+
+    // @formatter:on
+
+    /**
+     * @param userId
+     * @param expectedVersion
+     *            user_version when we read the user
+     * @param jsonPayload
+     * @return one row with UPDATED and USER_VERSION
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long userId, long expectedVersion, String jsonPayload) throws VoltAbortException {
+
+        voltQueueSQL(updateIfVersion, jsonPayload, userId, expectedVersion);
+        voltQueueSQL(getVersion, userId);
+
+        VoltTable[] results = voltExecuteSQL(true);
+
+        // Sanity check: Does this user exist?
+        if (!results[1].advanceRow()) {
+            throw new VoltAbortException("User " + userId + " does not exist");
+        }
+
+        final boolean updated = results[0].asScalarLong() == 1;
+        final long currentVersion = results[1].getLong("user_version");
+
+        VoltTable outcome = new VoltTable(new VoltTable.ColumnInfo("UPDATED", VoltType.TINYINT),
+                new VoltTable.ColumnInfo("USER_VERSION", VoltType.BIGINT));
+        outcome.addRow(updated ? 1 : 0, currentVersion);
+
+        if (updated) {
+            this.setAppStatusCode(ReferenceData.STATUS_OK);
+        } else {
+            this.setAppStatusCode(ReferenceData.VERSION_CONFLICT);
+            this.setAppStatusString("User " + userId + " is at version " + currentVersion + ", not " + expectedVersion);
+        }
+
+        return new VoltTable[] { outcome };
+    }
+}
@@ -0,0 +1,67 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2018 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Create or change a product. All changes to product_table should come through
+ * here, as we also move reference_data_version on so that every
+ * ProductPriceCache reloads.
+ */
+public class UpsertProduct extends VoltProcedure {
+
+    // @formatter:off
+
+    public static final SQLStmt upsertProduct = new SQLStmt("UPSERT INTO product_table "
+            + "(productid, productname, unit_cost) VALUES (?,?,?);");
+
+    public static final SQLStmt setVersion = new SQLStmt("UPSERT INTO reference_data_version "
+            + "(id, version) VALUES (?,?);");
+
+    // @formatter:on
+
+    /**
+     * @param productId
+     * @param productName
+     * @param unitCost
+     * @return result of the upsert
+     * @throws VoltAbortException
+     */
+    public VoltTable[] run(long productId, String productName, long unitCost) throws VoltAbortException {
+
+        if (unitCost < 0) {
+            throw new VoltAbortException("Product " + productId + " can't have a negative unit cost");
+        }
+
+        voltQueueSQL(upsertProduct, productId, productName, unitCost);
+
+        // Our unique id always goes up, so it makes a good version number...
+        voltQueueSQL(setVersion, ReferenceData.PRODUCT_VERSION_ID, getUniqueId());
+
+        return voltExecuteSQL(true);
+    }
+}
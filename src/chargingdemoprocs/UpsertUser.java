@@ -40,10 +40,9 @@ public class UpsertUser extends VoltProcedure {
 
     public static final SQLStmt addTxn = new SQLStmt("INSERT INTO user_recent_transactions (userid, user_txn_id, txn_time, amount) VALUES (?,?,NOW,?);");
 
-    public static final SQLStmt purgeTxn = new SQLStmt("DELETE FROM user_recent_transactions "
-            + "WHERE userid = ? AND user_txn_id != ? AND txn_time < DATEADD( MINUTE, ?, NOW);");
-    
     public static final SQLStmt upsertUser = new SQLStmt("UPSERT INTO user_table (userid, user_json_object,user_last_seen) VALUES (?,?,?);");
+
+    public static final SQLStmt bumpUserVersion = new SQLStmt("UPDATE user_table SET user_version = user_version + 1 WHERE userid = ?;");
     
     public static final SQLStmt addCredit = new SQLStmt(
             "INSERT INTO user_financial_events (userid   ,amount, purpose)    VALUES (?,?,?);");
@@ -51,7 +50,11 @@ public class UpsertUser extends VoltProcedure {
     public static final SQLStmt updBalance = new SQLStmt(
             "upsert into user_balances select userid, tran_count, balance from user_balance_total_view where userid = ?;");
 
-    private static final int PURGE_MINUTES = -120;
+    public static final SQLStmt createBalance = new SQLStmt(
+            "UPSERT INTO user_balances (userid, tran_count, balance) VALUES (?,1,?);");
+
+    public static final SQLStmt addToBalance = new SQLStmt(
+            "UPDATE user_balances SET balance = balance + ?, tran_count = tran_count + 1 WHERE userid = ?;");
 
     // @formatter:on
 
@@ -101,7 +104,13 @@ public class UpsertUser extends VoltProcedure {
                 final String status = "Created user " + userId + " with opening credit of " + addBalance;
                 voltQueueSQL(upsertUser, userId, json, lastSeen);
                 voltQueueSQL(addCredit, userId, addBalance, status);
-                voltQueueSQL(updBalance, userId);
+
+                if (ReferenceData.INCREMENTAL_BALANCES) {
+                    voltQueueSQL(createBalance, userId, addBalance);
+                } else {
+                    voltQueueSQL(updBalance, userId);
+                }
+
                 this.setAppStatusCode(ReferenceData.STATUS_OK);
                 this.setAppStatusString(status);
 
@@ -121,9 +130,14 @@ public class UpsertUser extends VoltProcedure {
                         + currentBalance;
 
                 voltQueueSQL(upsertUser, userId, json, lastSeen);
+                voltQueueSQL(bumpUserVersion, userId);
                 voltQueueSQL(addCredit, userId, addBalance, status);
-                voltQueueSQL(updBalance, userId);
-                voltQueueSQL(purgeTxn, userId, txnId, PURGE_MINUTES);
+
+                if (ReferenceData.INCREMENTAL_BALANCES) {
+                    voltQueueSQL(addToBalance, addBalance, userId);
+                } else {
+                    voltQueueSQL(updBalance, userId);
+                }
 
                 this.setAppStatusCode(ReferenceData.STATUS_OK);
                 this.setAppStatusString(status);
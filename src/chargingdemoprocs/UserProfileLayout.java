@@ -0,0 +1,154 @@
+package chargingdemoprocs;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of user_table.user_profile, a compact binary alternative to the JSON
+ * in user_json_object. It's shared by the procedures, which patch single
+ * fields, and {@link org.voltdb.chargingdemo.UserProfileCodec} on the client,
+ * which reads and writes whole profiles.
+ * <p>
+ * Everything is big endian. The first byte is the layout version. It's followed
+ * by a fixed section where each field is always at the same offset, so a
+ * field can be changed by overwriting its bytes, and then a two byte length and
+ * up to MAX_EXTRA_LENGTH bytes that we don't look inside. New fields go on the
+ * end of the fixed section, along with a new version number; a procedure must
+ * never patch a profile whose version it doesn't know.
+ *
+ */
+public class UserProfileLayout {
+
+    public static final byte VERSION_1 = 1;
+
+    public static final byte CURRENT_VERSION = VERSION_1;
+
+    public static final int VERSION_OFFSET = 0;
+
+    // Field ids, which are also indexes into FIELD_OFFSETS and FIELD_WIDTHS.
+    public static final byte FIELD_FLAGS = 0;
+    public static final byte FIELD_TIER = 1;
+    public static final byte FIELD_PLAN_ID = 2;
+    public static final byte FIELD_HOME_REGION = 3;
+    public static final byte FIELD_CREATED_MS = 4;
+    public static final byte FIELD_LAST_TOPUP_MS = 5;
+
+    public static final int[] FIELD_OFFSETS = { 1, 2, 3, 7, 11, 19 };
+
+    public static final int[] FIELD_WIDTHS = { 1, 1, 4, 4, 8, 8 };
+
+    public static final int EXTRA_LENGTH_OFFSET = 27;
+
+    public static final int FIXED_LENGTH = EXTRA_LENGTH_OFFSET + 2;
+
+    /**
+     * Size of user_table.user_profile.
+     */
+    public static final int MAX_LENGTH = 1024;
+
+    public static final int MAX_EXTRA_LENGTH = MAX_LENGTH - FIXED_LENGTH;
+
+    /**
+     * @param profile
+     * @return true if profile is a layout we know and its lengths add up.
+     */
+    public static boolean isValid(byte[] profile) {
+
+        if (profile == null || profile.length < FIXED_LENGTH || profile.length > MAX_LENGTH
+                || profile[VERSION_OFFSET] != VERSION_1) {
+            return false;
+        }
+
+        return profile.length == FIXED_LENGTH + getExtraLength(profile);
+    }
+
+    /**
+     * @param profile
+     * @return how many opaque bytes follow the fixed section.
+     */
+    public static int getExtraLength(byte[] profile) {
+        return ByteBuffer.wrap(profile).getShort(EXTRA_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    /**
+     * @param profile
+     * @param fieldId
+     * @return the value of fieldId.
+     */
+    public static long getField(byte[] profile, byte fieldId) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(profile);
+        final int offset = FIELD_OFFSETS[fieldId];
+
+        switch (FIELD_WIDTHS[fieldId]) {
+        case 1:
+            return buffer.get(offset);
+        case 4:
+            return buffer.getInt(offset);
+        default:
+            return buffer.getLong(offset);
+        }
+    }
+
+    /**
+     * Overwrite one field in place. Nothing else in profile changes.
+     * 
+     * @param profile
+     * @param fieldId
+     * @param value
+     * @throws IllegalArgumentException
+     *             if value won't fit in the field.
+     */
+    public static void setField(byte[] profile, byte fieldId, long value) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(profile);
+        final int offset = FIELD_OFFSETS[fieldId];
+
+        switch (FIELD_WIDTHS[fieldId]) {
+        case 1:
+            if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("Field " + fieldId + " can't hold " + value);
+            }
+            buffer.put(offset, (byte) value);
+            break;
+        case 4:
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Field " + fieldId + " can't hold " + value);
+            }
+            buffer.putInt(offset, (int) value);
+            break;
+        default:
+            buffer.putLong(offset, value);
+        }
+    }
+
+    /**
+     * @param fieldId
+     * @return true if fieldId is a field in CURRENT_VERSION.
+     */
+    public static boolean isField(byte fieldId) {
+        return fieldId >= 0 && fieldId < FIELD_OFFSETS.length;
+    }
+}
@@ -23,9 +23,7 @@
 package chargingdemotasks;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.voltdb.VoltTable;
@@ -35,15 +33,50 @@ import org.voltdb.task.ActionScheduler;
 import org.voltdb.task.ScheduledAction;
 import org.voltdb.task.TaskHelper;
 
+import chargingdemoprocs.DeleteStaleAllocations;
+
 /**
- * Runnable task that maintains a cache of results from
- * 
- * @Statistics and SystemCatalog, as well as the tasks that create and use this
- *             data.
- * 
+ * Task that calls DeleteStaleAllocations for one partition, working out how
+ * many rows to ask it to delete and how long to wait before calling it again.
+ * <p>
+ * We run with 'RUN ON PARTITIONS', so there's one of us per partition, each
+ * adapting to its own partition:
+ * <ul>
+ * <li>If calls are taking longer than our latency budget we halve the batch
+ * size, as we're holding up charging traffic. We use a moving average so one
+ * slow call doesn't count.</li>
+ * <li>Otherwise if we filled the batch, or there are still stale rows, we grow
+ * the batch by a quarter.</li>
+ * <li>If there are still stale rows we call again after the short delay.</li>
+ * <li>Otherwise we've caught up. We wait until the oldest allocation will go
+ * stale, but never less than the short delay or more than the long one.</li>
+ * </ul>
+ * Latency is measured from when we expected the call to start to when we got
+ * the result, so it includes time spent queued behind other transactions.
  */
 public class PurgeWrangler implements ActionScheduler {
 
+    /**
+     * Batch size we start with.
+     */
+    static final int INITIAL_BATCH_SIZE = 100;
+
+    /**
+     * Smallest batch size we'll go down to.
+     */
+    static final int MIN_BATCH_SIZE = 10;
+
+    /**
+     * How much weight the latest latency has in m_smoothedLatencyMs. A single
+     * slow call shouldn't halve our batch size.
+     */
+    static final double LATENCY_SMOOTHING = 0.25;
+
+    /**
+     * How often we write a summary to volt.log
+     */
+    static final long SUMMARY_INTERVAL_MS = 60000;
+
     /**
      * delay in ms between individual job calls
      */
@@ -54,6 +87,45 @@ public class PurgeWrangler implements ActionScheduler {
      */
     long m_longInterval = 20000;
 
+    /**
+     * If a call to DeleteStaleAllocations takes longer than this (ms) we ask it
+     * to do less next time.
+     */
+    long m_latencyBudgetMs = 5;
+
+    /**
+     * Most rows we'll ask DeleteStaleAllocations to delete in one call.
+     */
+    int m_maxBatchSize = DeleteStaleAllocations.MAX_ROWS_PER_CALL;
+
+    /**
+     * How long (ms) an allocation can go untouched before we delete it.
+     */
+    long m_timeoutMs = DeleteStaleAllocations.DEFAULT_TIMEOUT_MS;
+
+    /**
+     * How many rows we'll ask for next time
+     */
+    int m_batchSize = INITIAL_BATCH_SIZE;
+
+    /**
+     * System.nanoTime() when we expect our next call to start.
+     */
+    long m_expectedStartNanos = 0;
+
+    /**
+     * Exponentially weighted average of how long our calls take (ms).
+     */
+    double m_smoothedLatencyMs = 0;
+
+    /**
+     * Totals since we last wrote a summary.
+     */
+    long m_summaryStartMs = System.currentTimeMillis();
+    long m_summaryRowsDeleted = 0;
+    long m_summaryCalls = 0;
+    long m_summaryOverBudget = 0;
+
     /**
      * TaskHelper is a utiity class that among other things allows us to write
      * to volt.log...
@@ -65,60 +137,154 @@ public class PurgeWrangler implements ActionScheduler {
      * provided by VoltDB:
      * <p>
      * <code>
-     * CREATE TASK PurgeWrangler  FROM CLASS watchermanager.StatisticsWrangler WITH (10,30000) ON ERROR LOG;
+     * CREATE TASK PurgeWrangler FROM CLASS chargingdemotasks.PurgeWrangler WITH (10,30000,5,1000,300000) ON ERROR LOG RUN ON PARTITIONS;
      * </code>
      * 
-     * @param m_helper
+     * @param helper
      *            A TaskHelper that gives us access to volt.log etc.
-     * @param m_shortTimeInterval
-     *            how long to wait between task invocations (ms)
-     * @param m_longInterval
-     *            how long as set of tasks should take to run in total (ms)
+     * @param shortInterval
+     *            how long to wait between calls when we're behind (ms)
+     * @param longInterval
+     *            longest we'll wait between calls (ms)
+     * @param latencyBudgetMs
+     *            how long a call is allowed to take before we make the batch
+     *            smaller (ms)
+     * @param maxBatchSize
+     *            most rows to delete in one call. Can't be more than
+     *            DeleteStaleAllocations.MAX_ROWS_PER_CALL
+     * @param timeoutMs
+     *            how long an allocation can go untouched before we delete it
+     *            (ms)
      */
-    public void initialize(TaskHelper helper, int shortInterval, int longInterval) {
+    public void initialize(TaskHelper helper, int shortInterval, int longInterval, int latencyBudgetMs,
+            int maxBatchSize, int timeoutMs) {
 
         this.m_shortTimeInterval = shortInterval;
         this.m_longInterval = longInterval;
+        this.m_latencyBudgetMs = latencyBudgetMs;
+        this.m_maxBatchSize = Math.max(MIN_BATCH_SIZE,
+                Math.min(maxBatchSize, DeleteStaleAllocations.MAX_ROWS_PER_CALL));
+        this.m_batchSize = Math.min(INITIAL_BATCH_SIZE, m_maxBatchSize);
+        this.m_timeoutMs = timeoutMs;
         this.m_helper = helper;
 
-        msg(TaskMessageType.INFO,
-                "PurgeWrangler started with long/short delays of " + longInterval + "/" + shortInterval);
+        msg(TaskMessageType.INFO, "PurgeWrangler started with long/short delays of " + longInterval + "/"
+                + shortInterval + ", latency budget of " + latencyBudgetMs + "ms, max batch of " + m_maxBatchSize + " and timeout of " + timeoutMs + "ms");
 
     }
 
-    /**
-     * Jumpstart the task queue by calling @SystemInformation OVERVIEW, which
-     * will tell us cluster id.
-     */
     @Override
     public ScheduledAction getFirstScheduledAction() {
-
-        final Object[] m_overviewParams = {};
-        return ScheduledAction.procedureCall(m_shortTimeInterval, TimeUnit.MILLISECONDS, this::getNextScheduledAction,
-                "DeleteStaleAllocations", m_overviewParams);
+        return callDeleteStaleAllocations(m_shortTimeInterval);
     }
 
     /**
-     * Get next thing to do.
+     * Look at how the last call went and decide what to do next.
      * 
      * @return ScheduledAction
      */
     public ScheduledAction getNextScheduledAction(ActionResult ar) {
 
-        long delay = m_longInterval;
+        final long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - m_expectedStartNanos);
+
+        if (ar.getResponse().getStatus() != ClientResponse.SUCCESS) {
+            msg(TaskMessageType.WARNING, "DeleteStaleAllocations failed: " + ar.getResponse().getStatusString());
+            return callDeleteStaleAllocations(m_longInterval);
+        }
+
+        VoltTable summary = ar.getResponse().getResults()[0];
+        summary.advanceRow();
 
-        final Object[] m_overviewParams = {};
+        final long rowsDeleted = summary.getLong("ROWS_DELETED");
+        final long oldestOverdueMs = summary.getLong("OLDEST_OVERDUE_MS");
+        final boolean tableIsEmpty = summary.wasNull();
+
+        final boolean behind = rowsDeleted >= m_batchSize || (!tableIsEmpty && oldestOverdueMs > 0);
+
+        // Batch size depends on how long we take when there's work to do...
+        if (rowsDeleted > 0) {
+
+            if (m_smoothedLatencyMs == 0) {
+                m_smoothedLatencyMs = latencyMs;
+            } else {
+                m_smoothedLatencyMs = (LATENCY_SMOOTHING * latencyMs)
+                        + ((1 - LATENCY_SMOOTHING) * m_smoothedLatencyMs);
+            }
 
-        if (ar.getResponse().getStatus() == ClientResponse.SUCCESS && ar.getResponse().getResults().length > 50) {
+            if (m_smoothedLatencyMs > m_latencyBudgetMs) {
+                m_summaryOverBudget++;
+                m_batchSize = Math.max(MIN_BATCH_SIZE, m_batchSize / 2);
+            } else if (behind) {
+                m_batchSize = Math.min(m_maxBatchSize, m_batchSize + (m_batchSize / 4) + 1);
+            }
+        }
+
+        // ...and delay on whether we've caught up.
+        long delay;
+
+        if (behind) {
             delay = m_shortTimeInterval;
+        } else if (tableIsEmpty) {
+            delay = m_longInterval;
+        } else {
+            // Come back when the oldest allocation goes stale...
+            delay = Math.max(m_shortTimeInterval, Math.min(m_longInterval, -1 * oldestOverdueMs));
+        }
+
+        if (m_helper == null || m_helper.isDebugLoggingEnabled()) {
+            msg(TaskMessageType.DEBUG,
+                    "DeleteStaleAllocations removed " + rowsDeleted + " rows in " + latencyMs + "ms (average "
+                            + (long) m_smoothedLatencyMs + "ms), oldest overdue by "
+                            + (tableIsEmpty ? "n/a" : oldestOverdueMs + "ms") + ". Next batch is " + m_batchSize
+                            + ", delay " + delay + "ms");
         }
 
-        msg(TaskMessageType.INFO, "Calling DeleteStaleAllocations. Last pass removed "
-                + ar.getResponse().getResults().length + " records. Delay is " + delay + " ms");
+        reportSummary(rowsDeleted);
+
+        return callDeleteStaleAllocations(delay);
+
+    }
+
+    /**
+     * @param delay
+     *            in ms
+     * @return a call to DeleteStaleAllocations with our current batch size and
+     *         timeout.
+     */
+    private ScheduledAction callDeleteStaleAllocations(long delay) {
+
+        m_expectedStartNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
 
         return ScheduledAction.procedureCall(delay, TimeUnit.MILLISECONDS, this::getNextScheduledAction,
-                "DeleteStaleAllocations", m_overviewParams);
+                "DeleteStaleAllocations", m_batchSize, m_timeoutMs);
+    }
 
+    /**
+     * Keep totals and write them to volt.log every SUMMARY_INTERVAL_MS, instead
+     * of logging every call.
+     * 
+     * @param rowsDeleted
+     */
+    private void reportSummary(long rowsDeleted) {
+
+        m_summaryRowsDeleted += rowsDeleted;
+        m_summaryCalls++;
+
+        final long now = System.currentTimeMillis();
+
+        if (now - m_summaryStartMs >= SUMMARY_INTERVAL_MS) {
+
+            if (m_summaryRowsDeleted > 0 || m_summaryOverBudget > 0) {
+                msg(TaskMessageType.INFO,
+                        "PurgeWrangler removed " + m_summaryRowsDeleted + " stale allocations in " + m_summaryCalls
+                                + " calls, " + m_summaryOverBudget + " over budget. Batch size now " + m_batchSize);
+            }
+
+            m_summaryStartMs = now;
+            m_summaryRowsDeleted = 0;
+            m_summaryCalls = 0;
+            m_summaryOverBudget = 0;
+        }
     }
 
     /**
@@ -0,0 +1,254 @@
+/* This file is part of VoltDB.
+ * Copyright (C) 2020 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+package chargingdemotasks;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.task.ActionResult;
+import org.voltdb.task.ActionScheduler;
+import org.voltdb.task.ScheduledAction;
+import org.voltdb.task.TaskHelper;
+
+import chargingdemoprocs.PurgeOldTransactions;
+
+/**
+ * Keeps user_recent_transactions and user_txn_ids down to the last
+ * retentionSeconds of transactions by calling PurgeOldTransactions on each
+ * partition. While there's a backlog we call it every shortInterval ms;
+ * otherwise we come back when the oldest row expires, or after longInterval
+ * ms, whichever is sooner.
+ * <p>
+ * Every SUMMARY_INTERVAL_MS we write how many rows we purged and how many
+ * expired rows are still waiting to volt.log.
+ */
+public class TransactionRetention implements ActionScheduler {
+
+    /**
+     * How often we write a summary to volt.log
+     */
+    static final long SUMMARY_INTERVAL_MS = 60000;
+
+    /**
+     * delay in ms between calls when we're behind
+     */
+    long m_shortTimeInterval = 10;
+
+    /**
+     * longest delay in ms between calls
+     */
+    long m_longInterval = 20000;
+
+    /**
+     * Most rows we'll ask PurgeOldTransactions to delete from each table in
+     * one call.
+     */
+    int m_batchSize = 1000;
+
+    /**
+     * How long (ms) we keep transactions for.
+     */
+    long m_retentionMs = PurgeOldTransactions.DEFAULT_RETENTION_MS;
+
+    /**
+     * Totals since we started, and expired rows left after our last call.
+     */
+    long m_totalRowsDeleted = 0;
+    long m_totalCalls = 0;
+    long m_backlogRows = 0;
+
+    /**
+     * Totals since we last wrote a summary.
+     */
+    long m_summaryStartMs = System.currentTimeMillis();
+    long m_summaryRowsDeleted = 0;
+    long m_summaryCalls = 0;
+
+    /**
+     * TaskHelper is a utiity class that among other things allows us to write
+     * to volt.log...
+     */
+    TaskHelper m_helper;
+
+    /**
+     * Called as a consequence of the CREATE TASK DDL, with the 'helper' being
+     * provided by VoltDB:
+     * <p>
+     * <code>
+     * CREATE TASK TransactionRetention FROM CLASS chargingdemotasks.TransactionRetention WITH (10,20000,1000,3600) ON ERROR LOG RUN ON PARTITIONS;
+     * </code>
+     * 
+     * @param helper
+     *            A TaskHelper that gives us access to volt.log etc.
+     * @param shortInterval
+     *            how long to wait between calls when we're behind (ms)
+     * @param longInterval
+     *            longest we'll wait between calls (ms)
+     * @param batchSize
+     *            most rows to delete from each table in one call. Can't be
+     *            more than PurgeOldTransactions.MAX_ROWS_PER_CALL
+     * @param retentionSeconds
+     *            how long we keep transactions for
+     */
+    public void initialize(TaskHelper helper, int shortInterval, int longInterval, int batchSize,
+            int retentionSeconds) {
+
+        this.m_shortTimeInterval = shortInterval;
+        this.m_longInterval = longInterval;
+        this.m_batchSize = Math.max(1, Math.min(batchSize, PurgeOldTransactions.MAX_ROWS_PER_CALL));
+        this.m_retentionMs = TimeUnit.SECONDS.toMillis(retentionSeconds);
+        this.m_helper = helper;
+
+        msg(TaskMessageType.INFO, "TransactionRetention started with long/short delays of " + longInterval + "/"
+                + shortInterval + ", batch of " + m_batchSize + " and retention of " + retentionSeconds + "s");
+
+    }
+
+    @Override
+    public ScheduledAction getFirstScheduledAction() {
+        return callPurgeOldTransactions(m_shortTimeInterval);
+    }
+
+    /**
+     * Look at how the last call went and decide when to call again.
+     * 
+     * @return ScheduledAction
+     */
+    public ScheduledAction getNextScheduledAction(ActionResult ar) {
+
+        if (ar.getResponse().getStatus() != ClientResponse.SUCCESS) {
+            msg(TaskMessageType.WARNING, "PurgeOldTransactions failed: " + ar.getResponse().getStatusString());
+            return callPurgeOldTransactions(m_longInterval);
+        }
+
+        VoltTable summary = ar.getResponse().getResults()[0];
+        summary.advanceRow();
+
+        final long rowsDeleted = summary.getLong("ROWS_DELETED");
+        m_backlogRows = summary.getLong("BACKLOG_ROWS");
+        final long oldestOverdueMs = summary.getLong("OLDEST_OVERDUE_MS");
+        final boolean tablesAreEmpty = summary.wasNull();
+
+        long delay;
+
+        if (m_backlogRows > 0) {
+            delay = m_shortTimeInterval;
+        } else if (tablesAreEmpty) {
+            delay = m_longInterval;
+        } else {
+            // Come back when the oldest transaction expires...
+            delay = Math.max(m_shortTimeInterval, Math.min(m_longInterval, -1 * oldestOverdueMs));
+        }
+
+        if (m_helper == null || m_helper.isDebugLoggingEnabled()) {
+            msg(TaskMessageType.DEBUG, "PurgeOldTransactions removed " + rowsDeleted + " rows, " + m_backlogRows
+                    + " expired rows left. Next call in " + delay + "ms");
+        }
+
+        reportSummary(rowsDeleted);
+
+        return callPurgeOldTransactions(delay);
+
+    }
+
+    /**
+     * @param delay
+     *            in ms
+     * @return a call to PurgeOldTransactions with our batch size and
+     *         retention.
+     */
+    private ScheduledAction callPurgeOldTransactions(long delay) {
+        return ScheduledAction.procedureCall(delay, TimeUnit.MILLISECONDS, this::getNextScheduledAction,
+                "PurgeOldTransactions", m_batchSize, m_retentionMs);
+    }
+
+    /**
+     * Keep totals and write them to volt.log every SUMMARY_INTERVAL_MS, instead
+     * of logging every call.
+     * 
+     * @param rowsDeleted
+     */
+    private void reportSummary(long rowsDeleted) {
+
+        m_totalRowsDeleted += rowsDeleted;
+        m_totalCalls++;
+        m_summaryRowsDeleted += rowsDeleted;
+        m_summaryCalls++;
+
+        final long now = System.currentTimeMillis();
+
+        if (now - m_summaryStartMs >= SUMMARY_INTERVAL_MS) {
+
+            if (m_summaryRowsDeleted > 0 || m_backlogRows > 0) {
+                msg(TaskMessageType.INFO,
+                        "TransactionRetention purged " + m_summaryRowsDeleted + " rows in " + m_summaryCalls
+                                + " calls (" + m_totalRowsDeleted + " in " + m_totalCalls + " since start), backlog "
+                                + m_backlogRows + " rows");
+            }
+
+            m_summaryStartMs = now;
+            m_summaryRowsDeleted = 0;
+            m_summaryCalls = 0;
+        }
+    }
+
+    /**
+     * Write a message to volt.log or standard output.
+     * 
+     * @param messageType
+     *            a type defined in TaskMessageType
+     * @param message
+     *            message text
+     */
+    public void msg(TaskMessageType messageType, String message) {
+
+        if (m_helper != null) {
+
+            switch (messageType) {
+            case DEBUG:
+                m_helper.logDebug(message);
+                break;
+            case INFO:
+                m_helper.logInfo(message);
+                break;
+            case WARNING:
+                m_helper.logWarning(message);
+                break;
+            case ERROR:
+                m_helper.logError(message);
+                break;
+            }
+
+        } else {
+            SimpleDateFormat sdfDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            Date now = new Date();
+            String strDate = sdfDate.format(now);
+            System.out.println(strDate + ":" + message);
+        }
+
+    }
+
+}
@@ -5,28 +5,44 @@ import org.voltdb.client.ClientResponse;
 
 public class AddCreditCallback extends ReportLatencyCallback {
 
-  UserState[] state = null;
+  UserStateStore state = null;
 
   int userId = 0;
   int offset = 0;
 
-  public AddCreditCallback(String statname, UserState[] state, int userId, int offset) {
-    super(statname);
+  public AddCreditCallback(String statname, UserStateStore state, int userId, int offset) {
+    this(statname, state, userId, offset, System.nanoTime());
+  }
+
+  public AddCreditCallback(String statname, UserStateStore state, int userId, int offset, long startNanos) {
+    super(statname, startNanos);
     this.state = state;
     this.userId = userId;
     this.offset = offset;
   }
 
+  /**
+   * Get ready for another call.
+   * 
+   * @param startNanos
+   * @param userId
+   * @return this
+   */
+  public AddCreditCallback start(long startNanos, int userId) {
+    this.startNanos = startNanos;
+    this.userId = userId;
+    return this;
+  }
+
   /*
    * (non-Javadoc)
    * 
    * @see
-   * org.voltdb.chargingdemo.ReportLatencyCallback#clientCallback(org.voltdb.
+   * org.voltdb.chargingdemo.ReportLatencyCallback#onResponse(org.voltdb.
    * client.ClientResponse)
    */
   @Override
-  public void clientCallback(ClientResponse arg0) throws Exception {
-    super.clientCallback(arg0);
+  protected void onResponse(ClientResponse arg0) throws Exception {
 
     // Find id. It'll be in the second last VoltTable..
     VoltTable balanceTable = arg0.getResults()[arg0.getResults().length - 3];
@@ -36,8 +52,12 @@ public class AddCreditCallback extends ReportLatencyCallback {
       int userid = (int) balanceTable.getLong("userid");
       long balance = balanceTable.getLong("balance");
 
-      synchronized (state) {
-        state[userid - offset].reportBalance(balance);
+      state.lock(userid - offset);
+
+      try {
+        state.reportBalance(userid - offset, balance);
+      } finally {
+        state.unlock(userid - offset);
       }
 
     }
@@ -0,0 +1,178 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * How much memory the client allocated while it did something, and how much
+ * time it spent collecting garbage as a result. We add up per-thread
+ * allocation counts from com.sun.management.ThreadMXBean, which HotSpot and
+ * OpenJ9 provide; elsewhere we only report garbage collection.
+ * <p>
+ * Only threads that are still alive when we finish are counted, so threads
+ * that stop first, such as TransactionWorkers, must measure themselves with
+ * {@link #getCurrentThreadAllocatedBytes()} and pass the total to
+ * {@link #finish(long, long)}.
+ *
+ */
+public class AllocationReport {
+
+  static final com.sun.management.ThreadMXBean threadBean = getThreadBean();
+
+  final long startNanos;
+  final long[] startThreadIds;
+  final long[] startThreadBytes;
+  final long startGcCount;
+  final long startGcMs;
+
+  public AllocationReport() {
+
+    startNanos = System.nanoTime();
+
+    if (threadBean != null) {
+      startThreadIds = threadBean.getAllThreadIds();
+      startThreadBytes = threadBean.getThreadAllocatedBytes(startThreadIds);
+    } else {
+      startThreadIds = new long[0];
+      startThreadBytes = new long[0];
+    }
+
+    startGcCount = getGcCount();
+    startGcMs = getGcMs();
+  }
+
+  /**
+   * @return bytes allocated so far by the calling thread, or 0 if we can't
+   *         tell.
+   */
+  public static long getCurrentThreadAllocatedBytes() {
+
+    if (threadBean == null) {
+      return 0;
+    }
+
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * @param transactions
+   *          how many transactions we did
+   * @param finishedThreadBytes
+   *          bytes allocated by threads that have already stopped
+   * @return a one line report.
+   */
+  public String finish(long transactions, long finishedThreadBytes) {
+
+    final double seconds = Math.max(1, System.nanoTime() - startNanos) / 1000000000d;
+    final long gcCount = getGcCount() - startGcCount;
+    final long gcMs = getGcMs() - startGcMs;
+
+    StringBuilder b = new StringBuilder();
+
+    if (threadBean != null) {
+
+      long bytes = finishedThreadBytes;
+
+      final long[] threadIds = threadBean.getAllThreadIds();
+      final long[] threadBytes = threadBean.getThreadAllocatedBytes(threadIds);
+
+      for (int i = 0; i < threadIds.length; i++) {
+
+        if (threadBytes[i] > 0) {
+          bytes += threadBytes[i] - getStartBytes(threadIds[i]);
+        }
+      }
+
+      b.append("Client allocated ");
+      b.append(bytes / (1024 * 1024));
+      b.append("MB (");
+      b.append((long) (bytes / seconds / (1024 * 1024)));
+      b.append("MB/sec, ");
+      b.append(transactions > 0 ? bytes / transactions : 0);
+      b.append(" bytes/transaction), ");
+
+    } else {
+      b.append("Client allocation isn't available on this JVM, ");
+    }
+
+    b.append(gcCount);
+    b.append(" garbage collections taking ");
+    b.append(gcMs);
+    b.append("ms");
+
+    return b.toString();
+  }
+
+  private long getStartBytes(long threadId) {
+
+    for (int i = 0; i < startThreadIds.length; i++) {
+      if (startThreadIds[i] == threadId) {
+        return Math.max(0, startThreadBytes[i]);
+      }
+    }
+
+    return 0;
+  }
+
+  private static long getGcCount() {
+
+    long count = 0;
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+
+    return count;
+  }
+
+  private static long getGcMs() {
+
+    long ms = 0;
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      ms += Math.max(0, gc.getCollectionTime());
+    }
+
+    return ms;
+  }
+
+  private static com.sun.management.ThreadMXBean getThreadBean() {
+
+    try {
+      com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+      if (bean.isThreadAllocatedMemorySupported()) {
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+      }
+    } catch (ClassCastException | UnsupportedOperationException e) {
+      // Not HotSpot...
+    }
+
+    return null;
+  }
+
+}
@@ -0,0 +1,387 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientImpl;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+import org.voltdb.voltutil.stats.LatencyHandle;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+import chargingdemoprocs.BulkCreateUsers;
+
+/**
+ * Creates users with BulkCreateUsers instead of one UpsertUser call each. We
+ * keep one pending batch per partition, and send it when it's full. Up to
+ * maxInFlight batches can be in flight at once; after that add() waits for one
+ * to come back.
+ * <p>
+ * We use the client's own hashinator to work out which partition a user lives
+ * in, so the client needs to be topology aware. If the client doesn't know yet
+ * we send that user in a batch of its own, which is always safe.
+ *
+ */
+public class BulkUserLoader {
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+  /**
+   * How long we'll wait for the client to learn the cluster topology before
+   * falling back to batches of one.
+   */
+  private static final long TOPOLOGY_WAIT_MS = 5000;
+
+  private static final long UNKNOWN_PARTITION = -1;
+
+  final Client client;
+  final int batchSize;
+  final int maxInFlight;
+  final Date lastSeen;
+
+  final Semaphore inFlight;
+
+  final HashMap<Long, Batch> pending = new HashMap<Long, Batch>();
+
+  final LatencyHandle latency = SafeHistogramCache.getInstance().getLatencyHandle("BulkCreateUsers");
+
+  final AtomicLong usersCreated = new AtomicLong();
+  final AtomicLong usersSkipped = new AtomicLong();
+  final AtomicLong usersFailed = new AtomicLong();
+
+  long batchesSent = 0;
+
+  boolean partitionsKnown = false;
+
+  /**
+   * @param client
+   * @param batchSize
+   *          most users per BulkCreateUsers call
+   * @param maxInFlight
+   *          most BulkCreateUsers calls we'll have outstanding at once
+   * @param lastSeen
+   *          user_last_seen for every user we create
+   */
+  public BulkUserLoader(Client client, int batchSize, int maxInFlight, Date lastSeen) {
+    super();
+    this.client = client;
+    this.batchSize = Math.max(1, Math.min(batchSize, BulkCreateUsers.MAX_USERS));
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.lastSeen = lastSeen;
+    this.inFlight = new Semaphore(this.maxInFlight);
+  }
+
+  /**
+   * Something that wants to know when a user it gave us has been dealt with.
+   */
+  public interface UserCompletion {
+
+    /**
+     * @param created
+     *          true if the user now exists, whether we created it or it was
+     *          already there. false if the call failed.
+     */
+    void userDone(boolean created);
+  }
+
+  /**
+   * Queue a user for creation, sending its partition's batch if it's now full.
+   * 
+   * @param userId
+   * @param credit
+   * @param json
+   * @throws Exception
+   */
+  public void add(long userId, long credit, String json) throws Exception {
+    add(userId, credit, json, null);
+  }
+
+  /**
+   * Queue a user for creation, sending its partition's batch if it's now full.
+   * 
+   * @param userId
+   * @param credit
+   * @param json
+   * @param completion
+   *          told when the call this user went out in comes back. Can be null.
+   * @throws Exception
+   */
+  public void add(long userId, long credit, String json, UserCompletion completion) throws Exception {
+    add(userId, credit, json, null, completion);
+  }
+
+  /**
+   * Queue a user for creation, sending its partition's batch if it's now full.
+   * Either every user we're given has a profile or none of them do.
+   * 
+   * @param userId
+   * @param credit
+   * @param json
+   * @param profile
+   *          encoded binary profile. Can be null.
+   * @param completion
+   *          told when the call this user went out in comes back. Can be null.
+   * @throws Exception
+   */
+  public void add(long userId, long credit, String json, byte[] profile, UserCompletion completion)
+      throws Exception {
+
+    final long partition = getPartition(userId);
+
+    if (partition == UNKNOWN_PARTITION) {
+      Batch loner = new Batch(1);
+      loner.add(userId, credit, json, profile, completion);
+      send(loner);
+      return;
+    }
+
+    Batch batch = pending.get(partition);
+
+    if (batch == null) {
+      batch = new Batch(batchSize);
+      pending.put(partition, batch);
+    }
+
+    batch.add(userId, credit, json, profile, completion);
+
+    if (batch.size() >= batchSize) {
+      pending.remove(partition);
+      send(batch);
+    }
+  }
+
+  /**
+   * Send whatever is left in our partially full batches and wait for every
+   * call to come back.
+   * 
+   * @throws Exception
+   */
+  public void finish() throws Exception {
+
+    for (Batch batch : pending.values()) {
+      send(batch);
+    }
+
+    pending.clear();
+
+    inFlight.acquire(maxInFlight);
+    inFlight.release(maxInFlight);
+  }
+
+  public long getUsersCreated() {
+    return usersCreated.get();
+  }
+
+  public long getUsersSkipped() {
+    return usersSkipped.get();
+  }
+
+  public long getUsersFailed() {
+    return usersFailed.get();
+  }
+
+  public long getBatchesSent() {
+    return batchesSent;
+  }
+
+  /**
+   * @param userId
+   * @return the partition userId lives in, or UNKNOWN_PARTITION if the client
+   *         doesn't know the topology.
+   * @throws InterruptedException
+   */
+  private long getPartition(long userId) throws InterruptedException {
+
+    if (!(client instanceof ClientImpl)) {
+      return UNKNOWN_PARTITION;
+    }
+
+    ClientImpl clientImpl = (ClientImpl) client;
+
+    if (!partitionsKnown) {
+
+      // The client learns the topology in the background once it connects...
+      final long giveUpMs = System.currentTimeMillis() + TOPOLOGY_WAIT_MS;
+
+      while (clientImpl.getPartitionForParameter(VoltType.BIGINT.getValue(), userId) == UNKNOWN_PARTITION
+          && System.currentTimeMillis() < giveUpMs) {
+        Thread.sleep(10);
+      }
+
+      partitionsKnown = true;
+
+      if (clientImpl.getPartitionForParameter(VoltType.BIGINT.getValue(), userId) == UNKNOWN_PARTITION) {
+        ChargingDemo.msg("Client doesn't know which partition users live in; sending them one at a time");
+      }
+    }
+
+    return clientImpl.getPartitionForParameter(VoltType.BIGINT.getValue(), userId);
+  }
+
+  private void send(Batch batch) throws Exception {
+
+    inFlight.acquire();
+
+    BulkCreateUsersCallback callback = new BulkCreateUsersCallback(batch, System.nanoTime());
+
+    try {
+      if (!client.callProcedure(callback, "BulkCreateUsers", batch.userIds.get(0), batch.getUserIds(),
+          batch.getCredits(), batch.jsons.toArray(new String[batch.size()]), batch.getProfiles(), lastSeen)) {
+        callback.fail("BulkCreateUsers not queued");
+      }
+    } catch (Exception e) {
+      callback.fail(e.getMessage());
+      throw e;
+    }
+
+    batchesSent++;
+  }
+
+  /**
+   * Users for one partition that we haven't sent yet.
+   */
+  private static class Batch {
+
+    final ArrayList<Long> userIds;
+    final ArrayList<Long> credits;
+    final ArrayList<String> jsons;
+    final ArrayList<byte[]> profiles;
+    final ArrayList<UserCompletion> completions;
+
+    Batch(int capacity) {
+      userIds = new ArrayList<Long>(capacity);
+      credits = new ArrayList<Long>(capacity);
+      jsons = new ArrayList<String>(capacity);
+      profiles = new ArrayList<byte[]>(capacity);
+      completions = new ArrayList<UserCompletion>(capacity);
+    }
+
+    void add(long userId, long credit, String json, byte[] profile, UserCompletion completion) {
+      userIds.add(userId);
+      credits.add(credit);
+      jsons.add(json);
+      profiles.add(profile);
+      completions.add(completion);
+    }
+
+    void done(boolean created) {
+      for (int i = 0; i < completions.size(); i++) {
+        if (completions.get(i) != null) {
+          completions.get(i).userDone(created);
+        }
+      }
+    }
+
+    int size() {
+      return userIds.size();
+    }
+
+    long[] getUserIds() {
+      return toArray(userIds);
+    }
+
+    long[] getCredits() {
+      return toArray(credits);
+    }
+
+    /**
+     * @return our profiles, or an empty array if we don't have any.
+     */
+    byte[][] getProfiles() {
+
+      if (profiles.get(0) == null) {
+        return new byte[0][];
+      }
+
+      return profiles.toArray(new byte[profiles.size()][]);
+    }
+
+    private static long[] toArray(ArrayList<Long> list) {
+      long[] array = new long[list.size()];
+
+      for (int i = 0; i < array.length; i++) {
+        array[i] = list.get(i);
+      }
+
+      return array;
+    }
+  }
+
+  /**
+   * Counts what happened to a batch and lets the next one go.
+   */
+  private class BulkCreateUsersCallback implements ProcedureCallback {
+
+    final Batch batch;
+    final int userCount;
+    final long startNanos;
+
+    BulkCreateUsersCallback(Batch batch, long startNanos) {
+      this.batch = batch;
+      this.userCount = batch.size();
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public void clientCallback(ClientResponse arg0) throws Exception {
+
+      try {
+        if (arg0.getStatus() != ClientResponse.SUCCESS) {
+          usersFailed.addAndGet(userCount);
+          ChargingDemo.msg("BulkCreateUsers failed: " + arg0.getStatusString());
+          batch.done(false);
+        } else {
+          VoltTable summary = arg0.getResults()[0];
+          summary.advanceRow();
+          usersCreated.addAndGet(summary.getLong("USERS_CREATED"));
+          usersSkipped.addAndGet(summary.getLong("USERS_SKIPPED"));
+          batch.done(true);
+        }
+
+        latency.reportLatencyNanos(startNanos, "BulkCreateUsers");
+
+      } finally {
+        inFlight.release();
+      }
+    }
+
+    void fail(String message) {
+      usersFailed.addAndGet(userCount);
+      ChargingDemo.msg("BulkCreateUsers failed: " + message);
+      batch.done(false);
+      inFlight.release();
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+/**
+ * A fixed ring of callbacks, made up front, each handed out for one call at a
+ * time. Calls take the slots in turn. As responses mostly come back in the
+ * order the calls were sent, the next slot is nearly always free again by the
+ * time we get back round to it; if it isn't we move on to the one after.
+ * Neither handing out nor returning a callback allocates or takes a lock.
+ * <p>
+ * A callback goes back in the ring once it has dealt with its response. If
+ * the call can't be queued the caller must return it, using
+ * {@link PooledCallback#release()}.
+ * <p>
+ * If every slot is in flight, acquire makes a one-off callback that isn't
+ * returned. This is counted in "Callback ring full", and the first time it
+ * happens we say so, as it means the ring is too small for the number of calls
+ * in flight.
+ * <p>
+ * Only one thread may call acquire. Responses can come back on any thread.
+ *
+ * @param <T>
+ *          type of callback
+ */
+public class CallbackPool<T extends PooledCallback> {
+
+  /**
+   * How many callbacks a pool has unless we're told otherwise.
+   */
+  public static final int DEFAULT_SIZE = 4096;
+
+  static final LongAdder ringFull = SafeHistogramCache.getInstance().getCounterHandle("Callback ring full");
+
+  final PooledCallback[] ring;
+
+  final Supplier<T> factory;
+
+  final String name;
+
+  /**
+   * Slot the next call gets, if it's free. Grows forever; only the bottom bits
+   * are used.
+   */
+  int nextSlot = 0;
+
+  boolean saidRingFull = false;
+
+  /**
+   * @param name
+   *          used in messages
+   * @param size
+   *          how many callbacks to make. Rounded up to a power of 2.
+   * @param factory
+   *          makes a callback
+   */
+  public CallbackPool(String name, int size, Supplier<T> factory) {
+
+    int slots = 1;
+
+    while (slots < size) {
+      slots <<= 1;
+    }
+
+    this.name = name;
+    this.ring = new PooledCallback[slots];
+    this.factory = factory;
+
+    for (int i = 0; i < ring.length; i++) {
+      ring[i] = factory.get();
+      ring[i].pool = this;
+    }
+  }
+
+  /**
+   * @return a callback that isn't in use. Call its start method before using
+   *         it.
+   */
+  @SuppressWarnings("unchecked")
+  public T acquire() {
+
+    for (int i = 0; i < ring.length; i++) {
+
+      final PooledCallback callback = ring[nextSlot++ & (ring.length - 1)];
+
+      if (!callback.inUse) {
+        callback.inUse = true;
+        return (T) callback;
+      }
+    }
+
+    ringFull.increment();
+
+    if (!saidRingFull) {
+      saidRingFull = true;
+      ChargingDemo.msg("All " + ring.length + " " + name + " callbacks are in flight, making extra ones");
+    }
+
+    return factory.get();
+  }
+
+  /**
+   * @return how many callbacks are waiting to be used.
+   */
+  public int getFreeCount() {
+
+    int freeCount = 0;
+
+    for (int i = 0; i < ring.length; i++) {
+      if (!ring[i].inUse) {
+        freeCount++;
+      }
+    }
+
+    return freeCount;
+  }
+
+}
@@ -23,15 +23,18 @@ package org.voltdb.chargingdemo;
  * OTHER DEALINGS IN THE SOFTWARE.
  */
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Random;
+import java.util.HashMap;
 
+import org.voltdb.VoltTable;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientConfig;
 import org.voltdb.client.ClientFactory;
 import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
 import org.voltdb.voltutil.stats.SafeHistogramCache;
 import org.voltdb.voltutil.stats.StatsHistogram;
 
@@ -42,12 +45,55 @@ public class ChargingDemo {
   private static final String TASK_USERS = "USERS";
   private static final String TASK_RUN = "RUN";
   private static final String TASK_DELETE = "DELETE";
+  private static final String TASK_IMPORT = "IMPORT";
   
   public static final String[] PRODUCT_NAMES = { "Our Web Site", "SMS messages", "Domestic Internet Access per GB"
           , "Roaming Internet Access per GB", "Domestic calls per minute"};
   
   public static final int[] PRODUCT_PRICES = {0,1,20,342,3};
 
+  // Optional name=value parameters that can follow the positional ones
+  private static final String OPTION_FASTPATH = "fastpath";
+  private static final String OPTION_RECONCILE = "reconcile";
+  private static final String OPTION_BATCHSIZE = "batchsize";
+  private static final String OPTION_THREADS = "threads";
+  private static final String OPTION_RATE = "rate";
+  private static final String OPTION_PROFILE = "profile";
+  private static final String OPTION_STARTRATE = "startrate";
+  private static final String OPTION_STEPINCREMENT = "stepincrement";
+  private static final String OPTION_STEPSECONDS = "stepseconds";
+  private static final String OPTION_USERBATCH = "userbatch";
+  private static final String OPTION_USERINFLIGHT = "userinflight";
+  private static final String OPTION_IMPORTFILE = "importfile";
+  private static final String OPTION_IMPORTFORMAT = "importformat";
+  private static final String OPTION_CHECKPOINTFILE = "checkpointfile";
+  private static final String OPTION_PURGEBATCH = "purgebatch";
+  private static final String OPTION_USERFORMAT = "userformat";
+  private static final String OPTION_TXNIDS = "txnids";
+  private static final String OPTION_RESPONSE = "response";
+  private static final String OPTION_USERDIST = "userdist";
+  private static final String OPTION_PRODUCTDIST = "productdist";
+
+  /**
+   * Latencies in the GREPABLE SUMMARY lines are ms, to the nearest microsecond.
+   */
+  private static final String LATENCY_FORMAT = "%.3f";
+
+  private static final int RECONCILE_USERS_PER_CALL = 10000;
+
+  private static final String USERFORMAT_JSON = "json";
+  private static final String USERFORMAT_BINARY = "binary";
+  private static final String TXNIDS_STRING = "string";
+  private static final String TXNIDS_HASHED = "hashed";
+  private static final String RESPONSE_FULL = "full";
+  private static final String RESPONSE_COMPACT = "compact";
+
+  private static final int PURGE_USERS_PER_CALL = 5000;
+
+  private static final long PURGE_REPORT_INTERVAL_MS = 10000;
+
+  private static HashMap<String, String> options = new HashMap<String, String>();
+
   /**
    * @param args
    */
@@ -57,10 +103,8 @@ public class ChargingDemo {
 
     msg("Parameters:" + Arrays.toString(args));
 
-    Random r = new Random();
-
-    if (args.length < 8) {
-      msg("Usage: hostnames recordcount offset tpms task loblength durationseconds queryseconds initialcredit addcreditinterval");
+    if (args.length < 10) {
+      msg("Usage: hostnames recordcount offset tpms task loblength durationseconds queryseconds initialcredit addcreditinterval [name=value ...]");
       System.exit(1);
     }
 
@@ -84,12 +128,14 @@ public class ChargingDemo {
     String task = args[4];
 
     if (!(task.equalsIgnoreCase(TASK_TRANSACTIONS) || task.equalsIgnoreCase(TASK_USERS)
-        || task.equalsIgnoreCase(TASK_RUN) || task.equalsIgnoreCase(TASK_DELETE))) {
+        || task.equalsIgnoreCase(TASK_RUN) || task.equalsIgnoreCase(TASK_DELETE)
+        || task.equalsIgnoreCase(TASK_IMPORT))) {
       msg("Legal values for TASK: ");
       msg(TASK_TRANSACTIONS);
       msg(TASK_USERS);
       msg(TASK_RUN);
       msg(TASK_DELETE);
+      msg(TASK_IMPORT);
       System.exit(2);
     }
 
@@ -109,12 +155,62 @@ public class ChargingDemo {
     // How often we add credit regardless of how much is left
     int addCreditInterval = Integer.parseInt(args[9]);
 
+    // Anything after the positional parameters is an optional name=value pair
+    for (int i = 10; i < args.length; i++) {
+      String[] nameAndValue = args[i].split("=", 2);
+
+      if (nameAndValue.length == 2) {
+        options.put(nameAndValue[0].toLowerCase(), nameAndValue[1]);
+      } else {
+        msg("Ignoring malformed option '" + args[i] + "', expected name=value");
+      }
+    }
+
+    // How many of a user's products to report usage for in one call. Anything
+    // over 1 means we use ReportQuotaUsageBatch or ReportQuotaUsageBatchHashed.
+    final int batchSize = Math.min(Integer.parseInt(getOption(OPTION_BATCHSIZE, "1")), PRODUCT_NAMES.length);
+
+    // Use numeric transaction ids, kept in user_txn_ids?
+    boolean hashedTxnIds = getOption(OPTION_TXNIDS, TXNIDS_STRING).equalsIgnoreCase(TXNIDS_HASHED);
+
+    // Get one row back from ReportQuotaUsageCompact instead of several tables?
+    final boolean compactResponses = getOption(OPTION_RESPONSE, RESPONSE_FULL).equalsIgnoreCase(RESPONSE_COMPACT);
+
+    // Use the two batch version of ReportQuotaUsage?
+    String reportQuotaUsageProcName = Boolean.parseBoolean(getOption(OPTION_FASTPATH, "false"))
+        ? "ReportQuotaUsageFast"
+        : "ReportQuotaUsage";
+
+    if (compactResponses && !hashedTxnIds) {
+      msg("ReportQuotaUsageCompact only knows about numeric transaction ids, using them");
+      hashedTxnIds = true;
+    }
+
+    if (hashedTxnIds) {
+      reportQuotaUsageProcName = compactResponses ? "ReportQuotaUsageCompact" : "ReportQuotaUsageHashed";
+      msg("Using numeric transaction ids and AddCreditHashed");
+    }
+
+    if (batchSize > 1) {
+      msg("Using " + (hashedTxnIds ? "ReportQuotaUsageBatchHashed" : "ReportQuotaUsageBatch")
+          + " to report usage for " + batchSize + " products at a time");
+
+      if (compactResponses) {
+        msg("ReportQuotaUsageBatch always returns full responses");
+      }
+    } else {
+      msg("Using " + reportQuotaUsageProcName + " to report usage");
+    }
+
+    // Store users as JSON in user_json_object or as binary in user_profile?
+    final boolean binaryProfiles = getOption(OPTION_USERFORMAT, USERFORMAT_JSON).equalsIgnoreCase(USERFORMAT_BINARY);
+
     long lastGlobalQueryMs = 0;
 
     // In some cases we might want to run a check at the
     // end of the benchmark that all of our transactions did in fact happen.
-    // the 'state' array contains a model of what things *ought* to look like.
-    UserState[] state = new UserState[userCount];
+    // 'state' contains a model of what things *ought* to look like.
+    UserStateStore state = new UserStateStore(userCount, initialCredit);
 
     try {
       // A VoltDB Client object maintains multiple connections to all the
@@ -123,204 +219,249 @@ public class ChargingDemo {
       
       // Make sure required metadata exists...
       for (int i=0; i < PRODUCT_NAMES.length; i++) {
-          mainClient.callProcedure("product_table.UPSERT", i, PRODUCT_NAMES[i], PRODUCT_PRICES[i]);
+          mainClient.callProcedure("UpsertProduct", i, PRODUCT_NAMES[i], PRODUCT_PRICES[i]);
       }
       
 
       // UpdateSessionStateCallback examines responses and updates the sessionId
       // for a
       // user. SessionId is created inside a VoltDB procedure.
-      UpdateSessionStateCallback ussc = new UpdateSessionStateCallback(state, offset);
+      UpdateSessionStateCallback ussc = new UpdateSessionStateCallback(state, offset, compactResponses);
 
       // Delete users if asked...
       if (task.equalsIgnoreCase(TASK_DELETE) || task.equalsIgnoreCase(TASK_RUN)) {
+        purgeUsers(mainClient, offset, userCount,
+            Integer.parseInt(getOption(OPTION_PURGEBATCH, Integer.toString(PURGE_USERS_PER_CALL))));
+      }
 
-        final long startMsDelete = System.currentTimeMillis();
-        long currentMs = System.currentTimeMillis();
+      // Create users if needed.
+      if (task.equalsIgnoreCase(TASK_USERS) || task.equalsIgnoreCase(TASK_RUN)) {
 
-        // To make sure we do things at a consistent rate (tpMs) we
-        // track how many transactions we've queued this ms and sleep if
-        // we've reached our limit.
-        int tpThisMs = 0;
+        final long startMsUpsert = System.currentTimeMillis();
 
-        // So we iterate through all our users...
-        for (int i = 0; i < userCount; i++) {
+        // How many users to create per BulkCreateUsers call. 1 means we use
+        // UpsertUser, one call per user.
+        final int userBatchSize = Integer
+            .parseInt(getOption(OPTION_USERBATCH, Integer.toString(BulkUserLoader.DEFAULT_BATCH_SIZE)));
 
-          if (tpThisMs++ > tpMs) {
+        if (userBatchSize > 1) {
 
-            // but sleep if we're moving too fast...
-            while (currentMs == System.currentTimeMillis()) {
-              Thread.sleep(0, 50000);
-            }
+          final int userInFlight = Integer
+              .parseInt(getOption(OPTION_USERINFLIGHT, Integer.toString(BulkUserLoader.DEFAULT_MAX_IN_FLIGHT)));
 
-            currentMs = System.currentTimeMillis();
-            tpThisMs = 0;
-          }
+          msg("Using BulkCreateUsers to create " + userBatchSize + " users per call, " + userInFlight
+              + " calls in flight");
 
-          // Put a request to delete a user into the queue.
-          ReportLatencyCallback deleteUserCallback = new ReportLatencyCallback("DelUser");
-          mainClient.callProcedure(deleteUserCallback, "DelUser", i + offset);
+          BulkUserLoader loader = new BulkUserLoader(mainClient, userBatchSize, userInFlight,
+              new Date(startMsUpsert));
 
-          if (i % 100000 == 1) {
-            msg("Deleted " + i + " users...");
+          if (binaryProfiles) {
+            msg("Users get a binary profile instead of a JSON payload");
           }
 
-        }
+          for (int i = 0; i < userCount; i++) {
 
-        // Because we've put messages into the clients queue we
-        // need to wait for them to be processed.
-        msg("All entries in queue, waiting for it to drain...");
-        mainClient.drain();
+            if (binaryProfiles) {
+              loader.add(i + offset, initialCredit, null,
+                  UserProfileCodec.getArbitraryProfile(i + offset, 0, startMsUpsert), null);
+            } else {
+              loader.add(i + offset, initialCredit, ourJson);
+            }
 
-        final long entriesPerMs = userCount / (System.currentTimeMillis() - startMsDelete);
-        msg("Deleted " + entriesPerMs + " users per ms...");
+            if (i % 100000 == 1) {
+              msg("Queued " + i + " users, " + getUsersPerSecond(loader.getUsersCreated(), startMsUpsert)
+                  + " users/sec...");
+            }
+          }
 
-      }
+          msg("All entries in queue, waiting for it to drain...");
+          loader.finish();
 
-      // Create users if needed.
-      if (task.equalsIgnoreCase(TASK_USERS) || task.equalsIgnoreCase(TASK_RUN)) {
+          msg("Created " + loader.getUsersCreated() + " users in " + loader.getBatchesSent() + " calls, "
+              + getUsersPerSecond(loader.getUsersCreated(), startMsUpsert) + " users/sec. "
+              + loader.getUsersSkipped() + " already existed, " + loader.getUsersFailed() + " failed");
 
-        final long startMsUpsert = System.currentTimeMillis();
-        long currentMs = System.currentTimeMillis();
-        int tpThisMs = 0;
+        } else {
 
-        for (int i = 0; i < userCount; i++) {
+          if (binaryProfiles) {
+            msg("UpsertUser only knows about JSON, ignoring " + OPTION_USERFORMAT);
+          }
 
-          if (tpThisMs++ > tpMs) {
+          long currentMs = System.currentTimeMillis();
+          int tpThisMs = 0;
 
-            while (currentMs == System.currentTimeMillis()) {
-              Thread.sleep(0, 50000);
-            }
+          CallbackPool<ReportLatencyCallback> upsertUserCallbacks = new CallbackPool<ReportLatencyCallback>(
+              "UpsertUser", CallbackPool.DEFAULT_SIZE, () -> new ReportLatencyCallback("UpsertUser"));
+          final Date lastSeen = new Date(startMsUpsert);
+          final StringBuilder txnIdBuilder = new StringBuilder("Create_");
 
-            currentMs = System.currentTimeMillis();
-            tpThisMs = 0;
-          }
+          for (int i = 0; i < userCount; i++) {
 
-          ReportLatencyCallback upsertUserCallback = new ReportLatencyCallback("UpsertUser");
+            if (tpThisMs++ > tpMs) {
 
-          mainClient.callProcedure(upsertUserCallback, "UpsertUser", i + offset, initialCredit, "Y", ourJson, "Created",
-              new Date(startMsUpsert), "Create_" + i);
+              while (currentMs == System.currentTimeMillis()) {
+                Thread.sleep(0, 50000);
+              }
 
-          if (i % 100000 == 1) {
-            msg("Upserted " + i + " users...");
+              currentMs = System.currentTimeMillis();
+              tpThisMs = 0;
+            }
 
-          }
+            ReportLatencyCallback upsertUserCallback = upsertUserCallbacks.acquire().start(System.nanoTime());
+            boolean queued = false;
 
-          state[i] = new UserState(i, initialCredit);
+            txnIdBuilder.setLength("Create_".length());
 
-        }
+            try {
+              queued = mainClient.callProcedure(upsertUserCallback, "UpsertUser", i + offset, initialCredit, "Y",
+                  ourJson, "Created", lastSeen, txnIdBuilder.append(i).toString());
+            } finally {
+              // If it wasn't queued there'll be no response to return it...
+              if (!queued) {
+                upsertUserCallback.release();
+              }
+            }
 
-        msg("All entries in queue, waiting for it to drain...");
-        mainClient.drain();
+            if (i % 100000 == 1) {
+              msg("Upserted " + i + " users...");
 
-        long entriesPerMs = userCount / (System.currentTimeMillis() - startMsUpsert);
-        msg("Upserted " + entriesPerMs + " users per ms...");
+            }
 
-      }
+          }
 
-      // Now do the actual benchmark bit....
-      if (task.equalsIgnoreCase(TASK_TRANSACTIONS) || task.equalsIgnoreCase(TASK_RUN)) {
+          msg("All entries in queue, waiting for it to drain...");
+          mainClient.drain();
 
-        for (int i = 0; i < userCount; i++) {
+          msg("Upserted " + userCount + " users, " + getUsersPerSecond(userCount, startMsUpsert) + " users/sec");
 
-          if (state[i] == null) {
-            state[i] = new UserState(i, initialCredit);
-            state[i].IncUserStatus();
-          }
         }
+      }
 
-        final long startMsRun = System.currentTimeMillis();
-        long currentMs = System.currentTimeMillis();
-        int tpThisMs = 0;
+      // Load users from a file...
+      if (task.equalsIgnoreCase(TASK_IMPORT)) {
 
-        final long endtimeMs = System.currentTimeMillis() + (durationSeconds * 1000);
+        final String importFileName = getOption(OPTION_IMPORTFILE, null);
 
-        // How many transactions we've done...
-        int tranCount = 0;
-        int inFlightCount = 0;
+        if (importFileName == null) {
+          throw new Exception(TASK_IMPORT + " needs " + OPTION_IMPORTFILE + "=filename");
+        }
 
-        while (endtimeMs > System.currentTimeMillis()) {
+        SubscriberImporter importer = new SubscriberImporter(mainClient, new File(importFileName),
+            new File(getOption(OPTION_CHECKPOINTFILE, importFileName + ".checkpoint")),
+            getOption(OPTION_IMPORTFORMAT, SubscriberImporter.guessFormat(importFileName)).toLowerCase(),
+            initialCredit,
+            Integer.parseInt(getOption(OPTION_USERBATCH, Integer.toString(BulkUserLoader.DEFAULT_BATCH_SIZE))),
+            Integer.parseInt(
+                getOption(OPTION_USERINFLIGHT, Integer.toString(BulkUserLoader.DEFAULT_MAX_IN_FLIGHT))));
 
-          if (tpThisMs++ > tpMs) {
+        if (!importer.run()) {
+          msg("Import incomplete; run it again to carry on from the checkpoint");
+        }
+      }
 
-            while (currentMs == System.currentTimeMillis()) {
-              Thread.sleep(0, 50000);
-            }
+      // Now do the actual benchmark bit....
+      if (task.equalsIgnoreCase(TASK_TRANSACTIONS) || task.equalsIgnoreCase(TASK_RUN)) {
 
-            currentMs = System.currentTimeMillis();
-            tpThisMs = 0;
+        // Users we didn't create in this run aren't new...
+        if (task.equalsIgnoreCase(TASK_TRANSACTIONS)) {
+          for (int i = 0; i < userCount; i++) {
+            state.incUserStatus(i);
           }
+        }
 
-          // Find session to do a transaction for...
-          int oursession = r.nextInt(userCount);
+        // Target rate in transactions per ms. Unlike tpMs this can be a
+        // fraction, and with a 'ramp' or 'step' profile it's where we end up.
+        final double rate = Double.parseDouble(getOption(OPTION_RATE, Integer.toString(tpMs)));
+        final RateScheduler.Profile profile = RateScheduler.Profile
+            .valueOf(getOption(OPTION_PROFILE, "constant").toUpperCase());
+        final double startRate = Double.parseDouble(getOption(OPTION_STARTRATE, "0"));
+        final double stepIncrement = Double.parseDouble(getOption(OPTION_STEPINCREMENT, "1"));
+        final long stepNanos = Long.parseLong(getOption(OPTION_STEPSECONDS, "60")) * 1000000000L;
 
-          // See if session already has an active transaction and avoid
-          // it if it does.
+        // Each worker thread gets its own range of users and an equal share of
+        // the rate...
+        final int threadCount = Math.max(1, Math.min(Integer.parseInt(getOption(OPTION_THREADS, "1")), userCount));
 
-          if (state[oursession].isTxInFlight()) {
-            inFlightCount++;
-          } else {
+        msg("Starting " + threadCount + " worker thread(s), profile " + profile);
 
-            int ourProduct = r.nextInt(PRODUCT_NAMES.length);
-            long sessionId = UserState.SESSION_NOT_STARTED;
+        // How users and products are picked. Each worker picks from its own
+        // users, so with a skewed distribution each has its own hot users.
+        // Samplers don't change once they're made, so workers with the same
+        // number of users share one...
+        final String userDist = getOption(OPTION_USERDIST, "uniform");
+        final KeySampler productSampler = KeySampler.parse(getOption(OPTION_PRODUCTDIST, "uniform"),
+            PRODUCT_NAMES.length);
+        final HashMap<Integer, KeySampler> userSamplers = new HashMap<Integer, KeySampler>();
 
-            // Come up with reports on how much we used and how much we want...
+        // Used to work out where we should be for the whole client, not to
+        // send anything.
+        final RateScheduler overall = makeScheduler(profile, startRate, rate, stepIncrement, stepNanos,
+            durationSeconds * 1000000000L, 1, 0);
 
-            // usedUnits is usually less than what we requested last time.
+        TransactionWorker[] workers = new TransactionWorker[threadCount];
+        RateScheduler[] schedulers = new RateScheduler[threadCount];
+        Thread[] workerThreads = new Thread[threadCount];
 
-            final int requestUnits = 50 + r.nextInt(49);
-            long usedUnits = r.nextInt(50);
+        int firstUser = 0;
 
-            // state[oursession].getUserStatus() will be zero (STATUS_NEW_USER)
-            // the first time we access a session.
+        // Make the workers before we start the clock, as big samplers take a
+        // while...
+        for (int i = 0; i < threadCount; i++) {
 
-            sessionId = state[oursession].getProductSessionId(ourProduct);
+          final int workerUserCount = (userCount / threadCount) + (i < userCount % threadCount ? 1 : 0);
 
-            if (sessionId == UserState.SESSION_NOT_STARTED) {
-              usedUnits = 0;
-            } else if (state[oursession].getProductAllocation(ourProduct) < usedUnits) {
-              usedUnits = state[oursession].getProductAllocation(ourProduct);
-            }
+          final KeySampler userSampler = userSamplers.computeIfAbsent(workerUserCount,
+              keyCount -> KeySampler.parse(userDist, keyCount));
 
-            // Every ADD_CREDIT_INTERVAL we add credit instead of using it...
-            if (addCreditInterval == 0 && state[oursession].getBalance() < 20) {
+          schedulers[i] = makeScheduler(profile, startRate, rate, stepIncrement, stepNanos,
+              durationSeconds * 1000000000L, threadCount, (double) i / threadCount);
 
-              final long extraCredit = chooseTopUpAmount(state[oursession].getBalance(), r);
+          workers[i] = new TransactionWorker(i, mainClient, state, offset, firstUser, workerUserCount, schedulers[i],
+              addCreditInterval, batchSize, reportQuotaUsageProcName, hashedTxnIds ? new TxnIdGenerator() : null,
+              ussc, userSampler, productSampler);
+          workerThreads[i] = new Thread(workers[i], "TransactionWorker" + i);
 
-              AddCreditCallback addCreditCallback = new AddCreditCallback("AddCredit", state, oursession, offset);
-              mainClient.callProcedure(addCreditCallback, "AddCredit", oursession + offset, extraCredit,
-                  "AddCreditOnShortage" + "_" + state[oursession].getUserStatus() + "_" + tranCount + "_"
-                      + extraCredit);
+          firstUser += workerUserCount;
+        }
 
-            } else if (addCreditInterval > 0 && state[oursession].getUserStatus() >= addCreditInterval
-                && state[oursession].getUserStatus() % addCreditInterval == 0) {
+        msg("Users are picked using " + workers[0].userSampler + ", products using " + productSampler);
 
-              final long extraCredit = chooseTopUpAmount(state[oursession].getBalance(), r);
+        // Measure how much garbage the run creates...
+        final AllocationReport allocationReport = new AllocationReport();
 
-              ReportLatencyCallback addCreditCallback = new ReportLatencyCallback("AddCredit");
-              mainClient.callProcedure(addCreditCallback, "AddCredit", oursession + offset, extraCredit,
-                  "AddCreditAtInterval" + "_" + state[oursession].getUserStatus() + "_" + tranCount + "_"
-                      + extraCredit);
+        // All the schedulers start at the same moment, but are staggered by
+        // their phase so the workers take turns...
+        final long startMsRun = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        overall.start(startNanos, startMsRun);
 
-            } else {
-              // Otherwise report how much credit we used and ask for more...
-              state[oursession].startTran();
+        for (int i = 0; i < threadCount; i++) {
+          schedulers[i].start(startNanos, startMsRun);
+          workerThreads[i].start();
+        }
 
-              mainClient.callProcedure(ussc, "ReportQuotaUsage", oursession + offset, ourProduct, usedUnits,
-                  requestUnits, sessionId, "ReportQuotaUsage" + "_" + state[oursession].getUserStatus() + "_"
-                      + tranCount + "_" + usedUnits + "_" + ourProduct);
+        final long endtimeMs = startMsRun + (overall.getDurationNanos() / 1000000);
 
-            }
+        // For a step profile we report each step separately...
+        int currentStep = 0;
+        long stepStartMs = startMsRun;
+        long stepStartTranCount = 0;
 
-            state[oursession].IncUserStatus();
+        // The workers generate the load. We just run the global queries...
+        while (endtimeMs > System.currentTimeMillis()) {
 
-            tranCount++;
-          }
+          Thread.sleep(Math.max(1, Math.min(Math.min(endtimeMs - System.currentTimeMillis(), 1000),
+              lastGlobalQueryMs + (globalQueryFreqSeconds * 1000) - System.currentTimeMillis())));
 
-          if (tranCount % 100000 == 1) {
-            msg("Transaction " + tranCount + ", in flight transactions seen="+inFlightCount);
-            inFlightCount=0;
+          // See if we've moved on to a new step...
+          final int step = overall.getStep(System.nanoTime());
 
+          if (step != currentStep) {
+            final long stepTranCount = getTranCount(workers);
+            reportStep(shc, overall, currentStep, stepStartMs, stepTranCount - stepStartTranCount, batchSize);
+            currentStep = step;
+            stepStartMs = System.currentTimeMillis();
+            stepStartTranCount = stepTranCount;
           }
 
           // See if we need to do global queries...
@@ -330,27 +471,39 @@ public class ChargingDemo {
             final int queryUserId = 42;
             // Query user #queryUserId...
             msg("Query user #" + queryUserId + "...");
-            final long startQueryUserMs = System.currentTimeMillis();
+            final long startQueryUserNanos = System.nanoTime();
             ClientResponse userResponse = mainClient.callProcedure("GetUser", queryUserId);
-            shc.reportLatency("GetUser", startQueryUserMs, "", 50);
+            shc.reportLatencyNanos("GetUser", startQueryUserNanos, "");
 
             for (int i = 0; i < userResponse.getResults().length; i++) {
               msg(System.lineSeparator() + userResponse.getResults()[i].toFormattedString());
             }
 
+            if (binaryProfiles) {
+              final long startQueryProfileNanos = System.nanoTime();
+              ClientResponse profileResponse = mainClient.callProcedure("GetUserProfile", queryUserId);
+              shc.reportLatencyNanos("GetUserProfile", startQueryProfileNanos, "");
+
+              VoltTable profileTable = profileResponse.getResults()[0];
+
+              if (profileTable.advanceRow() && profileTable.getVarbinary("user_profile") != null) {
+                msg("Profile: " + UserProfileCodec.decode(profileTable.getVarbinary("user_profile")));
+              }
+            }
+
             msg("Show amount of credit currently reserved for products...");
-            final long startQueryAllocationsMs = System.currentTimeMillis();
+            final long startQueryAllocationsNanos = System.nanoTime();
             ClientResponse allocResponse = mainClient.callProcedure("showCurrentAllocations");
-            shc.reportLatency("showCurrentAllocations", startQueryAllocationsMs, "", 50);
+            shc.reportLatencyNanos("showCurrentAllocations", startQueryAllocationsNanos, "");
 
             for (int i = 0; i < allocResponse.getResults().length; i++) {
               msg(System.lineSeparator() + allocResponse.getResults()[i].toFormattedString());
             }
 
             msg("Show total credit held by system...");
-            final long startQueryTotalBalanceMs = System.currentTimeMillis();
+            final long startQueryTotalBalanceNanos = System.nanoTime();
             ClientResponse balanceResponse = mainClient.callProcedure("getTotalBalance");
-            shc.reportLatency("getTotalBalance", startQueryTotalBalanceMs, "", 50);
+            shc.reportLatencyNanos("getTotalBalance", startQueryTotalBalanceNanos, "");
 
             for (int i = 0; i < balanceResponse.getResults().length; i++) {
               msg(System.lineSeparator() + balanceResponse.getResults()[i].toFormattedString());
@@ -360,14 +513,42 @@ public class ChargingDemo {
 
         }
 
+        // How many transactions we've done...
+        int tranCount = 0;
+        int inFlightCount = 0;
+        int droppedSlotCount = 0;
+        long workerAllocatedBytes = 0;
+
+        for (int i = 0; i < threadCount; i++) {
+
+          workerThreads[i].join();
+
+          if (workers[i].getFailure() != null) {
+            throw workers[i].getFailure();
+          }
+
+          tranCount += workers[i].getTranCount();
+          inFlightCount += workers[i].getInFlightCount();
+          droppedSlotCount += workers[i].getDroppedSlotCount();
+          workerAllocatedBytes += workers[i].getAllocatedBytes();
+        }
+
+        if (profile == RateScheduler.Profile.STEP) {
+          reportStep(shc, overall, currentStep, stepStartMs, tranCount - stepStartTranCount, batchSize);
+        }
+
         msg(tranCount + " transactions done...");
         msg("All entries in queue, waiting for it to drain...");
         mainClient.drain();
         msg("Queue drained...");
         
-        long transactionsPerMs = tranCount / (System.currentTimeMillis() - startMsRun);
-        msg("processed " + transactionsPerMs + " entries per ms while doing transactions...");
+        final long runMs = System.currentTimeMillis() - startMsRun;
+        long transactionsPerMs = tranCount / runMs;
+        msg("processed " + transactionsPerMs + " entries per ms while doing transactions, "
+            + (droppedSlotCount / runMs) + " per ms dropped as every user tried was busy (" + droppedSlotCount
+            + " in total)...");
         msg(inFlightCount + " events where a tx was in flgiht were observed");
+        msg(allocationReport.finish(tranCount, workerAllocatedBytes));
         msg("Waiting 10 seconds - if we are using XDCR we need to wait for remote transactions to reach us");
 
         Thread.sleep(10000);
@@ -380,18 +561,14 @@ public class ChargingDemo {
         oneLineSummary.append(transactionsPerMs);
         oneLineSummary.append(':');
 
-        getProcPercentiles(shc, oneLineSummary, "ReportQuotaUsage");
-
-        getProcPercentiles(shc, oneLineSummary, "UpdateSession");
-
-        getProcPercentiles(shc, oneLineSummary, "GetUser");
-
-        getProcPercentiles(shc, oneLineSummary, "showCurrentAllocations");
-
-        getProcPercentiles(shc, oneLineSummary, "getTotalBalance");
+        getAllProcPercentiles(shc, oneLineSummary, batchSize);
 
         msg(oneLineSummary.toString());
 
+        if (Boolean.parseBoolean(getOption(OPTION_RECONCILE, "false"))) {
+          reconcileBalances(mainClient, offset, userCount);
+        }
+
       }
 
       msg("Closing connection...");
@@ -406,12 +583,205 @@ public class ChargingDemo {
 
   }
 
-  private static long chooseTopUpAmount(long balance, Random r) {
-    if (balance > 0) {
-      return 100 + r.nextInt(300);
+  /**
+   * Delete every user from offset to offset + userCount - 1, and everything
+   * that belongs to them, with PurgeUserRange. Each call deletes up to
+   * usersPerCall users in every partition at once, and we keep calling until
+   * every partition says it's finished.
+   * 
+   * @param mainClient
+   * @param offset
+   * @param userCount
+   * @param usersPerCall
+   * @throws Exception
+   */
+  private static void purgeUsers(Client mainClient, int offset, int userCount, int usersPerCall) throws Exception {
+
+    msg("Purging users " + offset + " to " + (offset + userCount - 1) + ", " + usersPerCall
+        + " users per partition per call...");
+
+    final long startMs = System.currentTimeMillis();
+    long nextReportMs = startMs + PURGE_REPORT_INTERVAL_MS;
+
+    long usersDeleted = 0;
+    long rowsDeleted = 0;
+    int calls = 0;
+    boolean done = false;
+
+    while (!done) {
+
+      ClientResponseWithPartitionKey[] responses = mainClient.callAllPartitionProcedure("PurgeUserRange", offset,
+          offset + userCount, usersPerCall);
+      calls++;
+      done = true;
+
+      for (int i = 0; i < responses.length; i++) {
+
+        ClientResponse response = responses[i].response;
+
+        if (response.getStatus() != ClientResponse.SUCCESS) {
+          throw new Exception("PurgeUserRange failed: " + response.getStatusString());
+        }
+
+        VoltTable summary = response.getResults()[0];
+        summary.advanceRow();
+        usersDeleted += summary.getLong("USERS_DELETED");
+        rowsDeleted += summary.getLong("ROWS_DELETED");
+
+        if (summary.getLong("DONE") == 0) {
+          done = false;
+        }
+      }
+
+      if (System.currentTimeMillis() > nextReportMs) {
+        msg("Purged " + usersDeleted + " users so far, " + getUsersPerSecond(usersDeleted, startMs) + " users/sec...");
+        nextReportMs = System.currentTimeMillis() + PURGE_REPORT_INTERVAL_MS;
+      }
+    }
+
+    msg("Purged " + usersDeleted + " users and " + rowsDeleted + " rows in " + calls + " calls, "
+        + getUsersPerSecond(usersDeleted, startMs) + " users/sec");
+  }
+
+  /**
+   * Check that user_balances agrees with the financial events stream view for
+   * every user we created, RECONCILE_USERS_PER_CALL users at a time.
+   * 
+   * @param mainClient
+   * @param offset
+   * @param userCount
+   * @throws Exception
+   */
+  private static void reconcileBalances(Client mainClient, int offset, int userCount) throws Exception {
+
+    msg("Reconciling user_balances with user_balance_total_view...");
+
+    long usersChecked = 0;
+    long mismatches = 0;
+
+    for (long fromUserId = offset; fromUserId < offset + userCount; fromUserId += RECONCILE_USERS_PER_CALL) {
+
+      ClientResponseWithPartitionKey[] responses = mainClient.callAllPartitionProcedure("ReconcileBalances",
+          fromUserId, Math.min(fromUserId + RECONCILE_USERS_PER_CALL, offset + userCount));
+
+      for (int i = 0; i < responses.length; i++) {
+
+        ClientResponse response = responses[i].response;
+
+        if (response.getStatus() != ClientResponse.SUCCESS) {
+          throw new Exception("ReconcileBalances failed: " + response.getStatusString());
+        }
+
+        VoltTable summary = response.getResults()[0];
+        summary.advanceRow();
+        usersChecked += summary.getLong("USERS_CHECKED");
+        mismatches += summary.getLong("MISMATCHES");
+
+        if (summary.getLong("MISMATCHES") > 0) {
+          msg(response.getAppStatusString());
+          msg(System.lineSeparator() + response.getResults()[1].toFormattedString());
+          msg(System.lineSeparator() + response.getResults()[2].toFormattedString());
+        }
+      }
     }
-    return 100 + r.nextInt(300) + (-1 * balance);
 
+    msg("Reconciled " + usersChecked + " users, " + mismatches + " mismatches");
+  }
+
+  /**
+   * Create a scheduler for one worker.
+   * 
+   * @param profile
+   * @param startRate
+   * @param rate
+   *          rate for the whole client
+   * @param stepIncrement
+   * @param stepNanos
+   * @param durationNanos
+   * @param threadCount
+   *          how many schedulers are sharing rate
+   * @param phase
+   * @return a scheduler for 1/threadCount of rate
+   */
+  private static RateScheduler makeScheduler(RateScheduler.Profile profile, double startRate, double rate,
+      double stepIncrement, long stepNanos, long durationNanos, int threadCount, double phase) {
+
+    switch (profile) {
+    case RAMP:
+      return RateScheduler.ramp(startRate / threadCount, rate / threadCount, durationNanos, phase);
+    case STEP:
+      return RateScheduler.step(startRate / threadCount, stepIncrement / threadCount, rate / threadCount,
+          stepNanos, phase);
+    default:
+      return RateScheduler.constant(rate / threadCount, durationNanos, phase);
+    }
+  }
+
+  /**
+   * @param workers
+   * @return how many transactions our workers have done so far
+   */
+  private static long getTranCount(TransactionWorker[] workers) {
+
+    long tranCount = 0;
+
+    for (int i = 0; i < workers.length; i++) {
+      tranCount += workers[i].getTranCount();
+    }
+
+    return tranCount;
+  }
+
+  /**
+   * Print a GREPABLE STEP SUMMARY line for the step we've just finished and
+   * reset our stats so the next step starts from scratch.
+   * 
+   * @param shc
+   * @param overall
+   * @param step
+   * @param stepStartMs
+   * @param stepTranCount
+   * @param batchSize
+   */
+  private static void reportStep(SafeHistogramCache shc, RateScheduler overall, int step, long stepStartMs,
+      long stepTranCount, int batchSize) {
+
+    final long stepMs = Math.max(1, System.currentTimeMillis() - stepStartMs);
+
+    StringBuffer oneLineSummary = new StringBuffer("GREPABLE STEP SUMMARY:");
+
+    oneLineSummary.append(step);
+    oneLineSummary.append(':');
+
+    oneLineSummary.append(overall.getStepRate(step));
+    oneLineSummary.append(':');
+
+    oneLineSummary.append((double) stepTranCount / stepMs);
+    oneLineSummary.append(':');
+
+    getAllProcPercentiles(shc, oneLineSummary, batchSize);
+
+    msg(oneLineSummary.toString());
+
+    shc.reset();
+  }
+
+  /**
+   * @param shc
+   * @param oneLineSummary
+   * @param batchSize
+   */
+  private static void getAllProcPercentiles(SafeHistogramCache shc, StringBuffer oneLineSummary, int batchSize) {
+
+    getProcPercentiles(shc, oneLineSummary, batchSize > 1 ? "ReportQuotaUsageBatch" : "ReportQuotaUsage");
+
+    getProcPercentiles(shc, oneLineSummary, "UpdateSession");
+
+    getProcPercentiles(shc, oneLineSummary, "GetUser");
+
+    getProcPercentiles(shc, oneLineSummary, "showCurrentAllocations");
+
+    getProcPercentiles(shc, oneLineSummary, "getTotalBalance");
   }
 
   /**
@@ -419,18 +789,37 @@ public class ChargingDemo {
    * @param oneLineSummary
    */
   private static void getProcPercentiles(SafeHistogramCache shc, StringBuffer oneLineSummary, String procName) {
- 
+
     StatsHistogram rqu = shc.get(procName);
-    oneLineSummary.append((int) rqu.getLatencyAverage());
+    oneLineSummary.append(String.format(LATENCY_FORMAT, rqu.hasReports() ? rqu.getLatencyAverage() : 0));
     oneLineSummary.append(':');
 
-    oneLineSummary.append(rqu.getLatencyPct(50));
+    oneLineSummary.append(String.format(LATENCY_FORMAT, rqu.getLatencyPctMs(50)));
     oneLineSummary.append(':');
 
-    oneLineSummary.append(rqu.getLatencyPct(99));
+    oneLineSummary.append(String.format(LATENCY_FORMAT, rqu.getLatencyPctMs(99)));
     oneLineSummary.append(':');
   }
 
+
+  /**
+   * Get an optional name=value parameter.
+   * 
+   * @param name
+   * @param defaultValue
+   * @return value given on the command line, or defaultValue
+   */
+  static String getOption(String name, String defaultValue) {
+
+    String value = options.get(name.toLowerCase());
+
+    if (value == null) {
+      return defaultValue;
+    }
+
+    return value;
+  }
+
   /**
    * Print a formatted message.
    * 
@@ -445,6 +834,15 @@ public class ChargingDemo {
 
   }
 
+  /**
+   * @param users
+   * @param startMs
+   * @return users per second since startMs
+   */
+  private static long getUsersPerSecond(long users, long startMs) {
+    return (users * 1000) / Math.max(1, System.currentTimeMillis() - startMs);
+  }
+
   /**
    * Connect to VoltDB using a comma delimited hostname list.
    * 
@@ -491,7 +889,7 @@ public class ChargingDemo {
    * @param length
    * @return
    */
-  private static String getArbitraryJsonString(int length) {
+  public static String getArbitraryJsonString(int length) {
 
     final String startJson = "{ \"payload\":\"";
     final String endJson = "\" }";
@@ -0,0 +1,366 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks keys - users or products - between 0 and keyCount - 1. Real traffic
+ * isn't uniform: a few users do most of the work, and some products are far
+ * more popular than others. Four distributions are supported:
+ * <ul>
+ * <li>UNIFORM - every key is equally likely.</li>
+ * <li>ZIPF - key k is picked in proportion to 1/(k+1)^skew, so key 0 is the
+ * busiest. A skew of 0 is uniform; around 1 is typical of real traffic.</li>
+ * <li>HOTSPOT - hotTraffic of the picks go to the first hotKeys of the keys,
+ * and the rest are spread evenly over the others.</li>
+ * <li>WEIGHTED - key k is picked in proportion to weights[k].</li>
+ * </ul>
+ * ZIPF and WEIGHTED work out an alias table up front (Vose's method), so a pick
+ * is one random int, one random float and at most two array reads however
+ * skewed things are. The table costs 8 bytes per key, and is built in place so
+ * that's all it needs while it's being made too.
+ * <p>
+ * A sampler doesn't change once it's made, so threads can share one as long as
+ * each has its own Random.
+ *
+ */
+public class KeySampler {
+
+  public enum Distribution {
+    UNIFORM, ZIPF, HOTSPOT, WEIGHTED
+  }
+
+  private final Distribution distribution;
+  private final int keyCount;
+
+  /**
+   * HOTSPOT: how many keys are hot, and what fraction of picks go to them.
+   */
+  private final int hotKeys;
+  private final double hotTraffic;
+
+  /**
+   * ZIPF and WEIGHTED: for column k, the chance of picking k instead of
+   * alias[k].
+   */
+  private final float[] prob;
+  private final int[] alias;
+
+  /**
+   * Ends the lists of columns in makeAliasTable.
+   */
+  private static final int NO_COLUMN = -1;
+
+  /**
+   * What we were asked for, for messages.
+   */
+  private final String description;
+
+  /**
+   * @param weights
+   *          for ZIPF and WEIGHTED, one per key. Becomes prob, so mustn't be
+   *          used by anyone else.
+   */
+  private KeySampler(Distribution distribution, int keyCount, int hotKeys, double hotTraffic, float[] weights,
+      String description) {
+
+    if (keyCount < 1) {
+      throw new IllegalArgumentException("keyCount must be at least 1");
+    }
+
+    this.distribution = distribution;
+    this.keyCount = keyCount;
+    this.hotKeys = hotKeys;
+    this.hotTraffic = hotTraffic;
+    this.description = description;
+
+    if (weights != null) {
+      this.prob = weights;
+      this.alias = new int[keyCount];
+      makeAliasTable(prob, alias);
+    } else {
+      this.prob = null;
+      this.alias = null;
+    }
+  }
+
+  /**
+   * @param keyCount
+   * @return a sampler where every key is equally likely
+   */
+  public static KeySampler uniform(int keyCount) {
+    return new KeySampler(Distribution.UNIFORM, keyCount, 0, 0, null, "uniform");
+  }
+
+  /**
+   * @param keyCount
+   * @param skew
+   *          0 or more. The bigger it is the more picks go to the first few
+   *          keys.
+   * @return a sampler where key k is picked in proportion to 1/(k+1)^skew
+   */
+  public static KeySampler zipf(int keyCount, double skew) {
+
+    if (skew < 0) {
+      throw new IllegalArgumentException("skew can't be negative");
+    }
+
+    float[] weights = new float[keyCount];
+
+    for (int i = 0; i < keyCount; i++) {
+      weights[i] = (float) Math.pow(i + 1, -skew);
+    }
+
+    return new KeySampler(Distribution.ZIPF, keyCount, 0, 0, weights, "zipf:" + skew);
+  }
+
+  /**
+   * @param keyCount
+   * @param hotKeyFraction
+   *          fraction of the keys that are hot, between 0 and 1
+   * @param hotTraffic
+   *          fraction of picks that go to a hot key, between 0 and 1
+   * @return a sampler where hotTraffic of the picks go to the first
+   *         hotKeyFraction of the keys
+   */
+  public static KeySampler hotspot(int keyCount, double hotKeyFraction, double hotTraffic) {
+
+    if (hotKeyFraction < 0 || hotKeyFraction > 1 || hotTraffic < 0 || hotTraffic > 1) {
+      throw new IllegalArgumentException("hotspot fractions must be between 0 and 1");
+    }
+
+    final int hotKeys = (int) Math.min(keyCount, Math.max(1, Math.round(keyCount * hotKeyFraction)));
+
+    // If every key is hot there's nowhere else for the other picks to go...
+    return new KeySampler(Distribution.HOTSPOT, keyCount, hotKeys, hotKeys == keyCount ? 1 : hotTraffic, null,
+        "hotspot:" + hotKeyFraction + ":" + hotTraffic);
+  }
+
+  /**
+   * @param weights
+   *          one per key. Can't be negative, and at least one must be more
+   *          than 0.
+   * @return a sampler where key k is picked in proportion to weights[k]
+   */
+  public static KeySampler weighted(double[] weights) {
+
+    float[] floatWeights = new float[weights.length];
+
+    for (int i = 0; i < weights.length; i++) {
+      floatWeights[i] = (float) weights[i];
+    }
+
+    return new KeySampler(Distribution.WEIGHTED, weights.length, 0, 0, floatWeights,
+        "weighted:" + Arrays.toString(weights));
+  }
+
+  /**
+   * Make a sampler from a command line option. One of:
+   * <ul>
+   * <li>uniform</li>
+   * <li>zipf:skew</li>
+   * <li>hotspot:hotKeyFraction:hotTraffic</li>
+   * <li>weighted:w0,w1,... - one weight per key</li>
+   * </ul>
+   * 
+   * @param spec
+   * @param keyCount
+   * @return a sampler
+   */
+  public static KeySampler parse(String spec, int keyCount) {
+
+    final String[] parts = spec.split(":");
+
+    switch (Distribution.valueOf(parts[0].toUpperCase())) {
+    case ZIPF:
+      return zipf(keyCount, parts.length > 1 ? Double.parseDouble(parts[1]) : 1);
+    case HOTSPOT:
+      return hotspot(keyCount, parts.length > 1 ? Double.parseDouble(parts[1]) : 0.01,
+          parts.length > 2 ? Double.parseDouble(parts[2]) : 0.5);
+    case WEIGHTED:
+
+      final String[] weightStrings = parts.length > 1 ? parts[1].split(",") : new String[0];
+
+      if (weightStrings.length != keyCount) {
+        throw new IllegalArgumentException(
+            "Expected " + keyCount + " weights in '" + spec + "', got " + weightStrings.length);
+      }
+
+      double[] weights = new double[keyCount];
+
+      for (int i = 0; i < keyCount; i++) {
+        weights[i] = Double.parseDouble(weightStrings[i]);
+      }
+
+      return weighted(weights);
+    default:
+      return uniform(keyCount);
+    }
+  }
+
+  /**
+   * @param r
+   * @return a key between 0 and getKeyCount() - 1
+   */
+  public int next(Random r) {
+
+    switch (distribution) {
+    case HOTSPOT:
+
+      if (r.nextDouble() < hotTraffic) {
+        return r.nextInt(hotKeys);
+      }
+
+      return hotKeys + r.nextInt(keyCount - hotKeys);
+
+    case ZIPF:
+    case WEIGHTED:
+
+      final int column = r.nextInt(keyCount);
+
+      if (r.nextFloat() < prob[column]) {
+        return column;
+      }
+
+      return alias[column];
+
+    default:
+      return r.nextInt(keyCount);
+    }
+  }
+
+  /**
+   * @return how many keys we pick from.
+   */
+  public int getKeyCount() {
+    return keyCount;
+  }
+
+  public Distribution getDistribution() {
+    return distribution;
+  }
+
+  @Override
+  public String toString() {
+    return description + " over " + keyCount + " keys";
+  }
+
+  /**
+   * Vose's alias method. Each of the keyCount columns holds 1/keyCount of the
+   * probability, split between the key itself and at most one other key.
+   * <p>
+   * We don't use any arrays other than the two we're filling in. Scaled
+   * weights are kept in prob until a column is finished, and the lists of
+   * columns that are under and over the average are linked through alias, as
+   * a column is only ever in one list and doesn't need its alias until it
+   * leaves it.
+   * 
+   * @param prob
+   *          the weights, which are replaced by the chance of picking each
+   *          column's own key
+   * @param alias
+   */
+  private static void makeAliasTable(float[] prob, int[] alias) {
+
+    final int keyCount = prob.length;
+
+    double total = 0;
+
+    for (int i = 0; i < keyCount; i++) {
+
+      if (prob[i] < 0 || Float.isNaN(prob[i]) || Float.isInfinite(prob[i])) {
+        throw new IllegalArgumentException("Weight " + i + " is " + prob[i]);
+      }
+
+      total += prob[i];
+    }
+
+    if (total <= 0) {
+      throw new IllegalArgumentException("At least one weight must be more than 0");
+    }
+
+    // Scale so the average weight is 1, and sort the columns into ones that
+    // are under and over that...
+    int smallHead = NO_COLUMN;
+    int largeHead = NO_COLUMN;
+
+    for (int i = 0; i < keyCount; i++) {
+
+      prob[i] = (float) (prob[i] * keyCount / total);
+
+      if (prob[i] < 1) {
+        alias[i] = smallHead;
+        smallHead = i;
+      } else {
+        alias[i] = largeHead;
+        largeHead = i;
+      }
+    }
+
+    // Top up each small column from a large one, which may then become small
+    // itself. One large column can top up millions of small ones, so we keep
+    // what's left of it in a double until we're done with it...
+    int large = NO_COLUMN;
+    double largeWeight = 0;
+
+    while (smallHead != NO_COLUMN && largeHead != NO_COLUMN) {
+
+      if (large != largeHead) {
+        large = largeHead;
+        largeWeight = prob[large];
+      }
+
+      final int small = smallHead;
+      smallHead = alias[small];
+      alias[small] = large;
+
+      largeWeight = (largeWeight + prob[small]) - 1;
+
+      if (largeWeight < 1) {
+        largeHead = alias[large];
+        prob[large] = (float) largeWeight;
+        alias[large] = smallHead;
+        smallHead = large;
+      }
+    }
+
+    // Whatever's left is 1 give or take rounding errors...
+    while (largeHead != NO_COLUMN) {
+      final int next = alias[largeHead];
+      prob[largeHead] = 1;
+      alias[largeHead] = largeHead;
+      largeHead = next;
+    }
+
+    while (smallHead != NO_COLUMN) {
+      final int next = alias[smallHead];
+      prob[smallHead] = 1;
+      alias[smallHead] = smallHead;
+      smallHead = next;
+    }
+  }
+
+}
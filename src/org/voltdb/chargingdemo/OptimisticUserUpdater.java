@@ -0,0 +1,168 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.voltutil.stats.LatencyHandle;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+import chargingdemoprocs.ReferenceData;
+
+/**
+ * Changes a user's JSON without locking it. We read the JSON and its version
+ * with GetUserWithVersion, work out the new JSON, and write it with
+ * UpdateUserIfVersion, which only works if the version hasn't moved. If it
+ * has, someone else got there first, so we read it again and have another go,
+ * up to maxAttempts times in all.
+ * <p>
+ * Attempts, conflicts and give-ups are counted in SafeHistogramCache, so they
+ * show up in the stats along with the latency of each whole update.
+ * Several threads can share one of these.
+ *
+ */
+public class OptimisticUserUpdater {
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  /**
+   * Longest we'll wait (in microseconds) before trying again after a
+   * conflict. We pick a random time up to this so competing callers spread out.
+   */
+  private static final int MAX_BACKOFF_MICROS = 1000;
+
+  /**
+   * Works out what a user's JSON should be.
+   */
+  public interface JsonChange {
+
+    /**
+     * @param userId
+     * @param currentJson
+     *          the user's JSON as we just read it. May be null.
+     * @return the JSON the user should have. Might be called more than once
+     *         if we have to retry.
+     */
+    String apply(long userId, String currentJson);
+  }
+
+  final Client client;
+  final int maxAttempts;
+
+  final LongAdder attempts;
+  final LongAdder conflicts;
+  final LongAdder gaveUp;
+  final LatencyHandle latency;
+
+  public OptimisticUserUpdater(Client client, int maxAttempts) {
+    super();
+    this.client = client;
+    this.maxAttempts = Math.max(1, maxAttempts);
+
+    SafeHistogramCache shc = SafeHistogramCache.getInstance();
+    attempts = shc.getCounterHandle("OptimisticUserUpdater attempts");
+    conflicts = shc.getCounterHandle("OptimisticUserUpdater conflicts");
+    gaveUp = shc.getCounterHandle("OptimisticUserUpdater gave up");
+    latency = shc.getLatencyHandle("OptimisticUserUpdate");
+  }
+
+  /**
+   * Change userId's JSON.
+   * 
+   * @param userId
+   * @param change
+   * @return the user's new version, or -1 if we still had a conflict after
+   *         maxAttempts tries.
+   * @throws Exception
+   *           if the user doesn't exist or a call fails for any other reason.
+   */
+  public long update(long userId, JsonChange change) throws Exception {
+
+    final long startNanos = System.nanoTime();
+
+    for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+
+      attempts.increment();
+
+      VoltTable user = client.callProcedure("GetUserWithVersion", userId).getResults()[0];
+      user.advanceRow();
+
+      final long version = user.getLong("user_version");
+      final String newJson = change.apply(userId, user.getString("user_json_object"));
+
+      ClientResponse response = client.callProcedure("UpdateUserIfVersion", userId, version, newJson);
+
+      VoltTable outcome = response.getResults()[0];
+      outcome.advanceRow();
+
+      if (response.getAppStatus() != ReferenceData.VERSION_CONFLICT) {
+        latency.reportLatencyNanos(startNanos, "OptimisticUserUpdate");
+        return outcome.getLong("USER_VERSION");
+      }
+
+      conflicts.increment();
+
+      if (attempt < maxAttempts) {
+        final long backoffMicros = ThreadLocalRandom.current().nextInt(MAX_BACKOFF_MICROS * attempt / maxAttempts + 1);
+        Thread.sleep(backoffMicros / 1000, (int) (backoffMicros % 1000) * 1000);
+      }
+    }
+
+    gaveUp.increment();
+    latency.reportLatencyNanos(startNanos, "OptimisticUserUpdate");
+    return -1;
+  }
+
+  public long getAttempts() {
+    return attempts.sum();
+  }
+
+  public long getConflicts() {
+    return conflicts.sum();
+  }
+
+  public long getGaveUp() {
+    return gaveUp.sum();
+  }
+
+  /**
+   * @return conflicts as a fraction of attempts, since the stats were last
+   *         reset.
+   */
+  public double getConflictRate() {
+
+    final long attemptCount = attempts.sum();
+
+    if (attemptCount == 0) {
+      return 0;
+    }
+
+    return (double) conflicts.sum() / attemptCount;
+  }
+
+}
@@ -0,0 +1,57 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import org.voltdb.client.ProcedureCallback;
+
+/**
+ * A callback that can be handed out by a {@link CallbackPool}. Whatever the
+ * callback needs to know about a call lives in its own fields, set by a start
+ * method before the call is sent.
+ *
+ */
+public abstract class PooledCallback implements ProcedureCallback {
+
+  /**
+   * Pool we go back to after each response, or null.
+   */
+  CallbackPool<?> pool = null;
+
+  /**
+   * True from when our pool hands us out until we're released. Cleared by
+   * whichever client thread handles the response, so it's volatile.
+   */
+  volatile boolean inUse = false;
+
+  /**
+   * Go back to our pool, if we have one. Subclasses do this once they've
+   * finished with a response, so callers only need to if the call this
+   * callback was for was never queued. Nothing may touch our fields
+   * afterwards.
+   */
+  void release() {
+    inUse = false;
+  }
+
+}
@@ -0,0 +1,310 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop scheduler for generating load. Instead of counting how many
+ * transactions we've sent this millisecond we work out, in nanoseconds, when
+ * each transaction <i>should</i> start. Callers wait until then and send it. If
+ * we fall behind we don't skip anything - the next transaction is just late,
+ * and as latency is measured from when it should have started the delay shows
+ * up in the latency figures instead of being hidden (coordinated omission).
+ * <p>
+ * Rates are in transactions per millisecond and can be fractional. Three
+ * profiles are supported:
+ * <ul>
+ * <li>CONSTANT - endRate for the whole run.</li>
+ * <li>RAMP - rate goes up (or down) in a straight line from startRate to
+ * endRate over the whole run.</li>
+ * <li>STEP - rate starts at startRate and goes up by stepIncrement every
+ * stepNanos, stopping once we've done a step at endRate.</li>
+ * </ul>
+ * Each worker thread has its own scheduler. A scheduler isn't thread safe.
+ *
+ */
+public class RateScheduler {
+
+  public enum Profile {
+    CONSTANT, RAMP, STEP
+  }
+
+  private static final long NANOS_PER_MS = 1000000;
+
+  /**
+   * If we have more than this long to wait we park, otherwise we spin.
+   */
+  private static final long SPIN_NANOS = 50000;
+
+  private final Profile profile;
+  private final double startRate;
+  private final double endRate;
+  private final double stepIncrement;
+  private final long stepNanos;
+  private final long durationNanos;
+
+  /**
+   * Used to stagger several schedulers with the same profile so their
+   * transactions don't all want to start at the same moment. Between 0 and 1.
+   */
+  private final double phase;
+
+  private long startNanos;
+  private long startMs;
+
+  /**
+   * How many transactions we've scheduled so far.
+   */
+  private long opCount = 0;
+
+  private RateScheduler(Profile profile, double startRate, double endRate, double stepIncrement, long stepNanos,
+      long durationNanos, double phase) {
+    this.profile = profile;
+    this.startRate = startRate;
+    this.endRate = endRate;
+    this.stepIncrement = stepIncrement;
+    this.stepNanos = stepNanos;
+    this.durationNanos = durationNanos;
+    this.phase = phase;
+    start(System.nanoTime(), System.currentTimeMillis());
+  }
+
+  /**
+   * @param rate
+   *          transactions per ms
+   * @param durationNanos
+   * @param phase
+   * @return a scheduler that runs at rate for durationNanos
+   */
+  public static RateScheduler constant(double rate, long durationNanos, double phase) {
+    return new RateScheduler(Profile.CONSTANT, rate, rate, 0, durationNanos, durationNanos, phase);
+  }
+
+  /**
+   * @param startRate
+   *          transactions per ms at the start
+   * @param endRate
+   *          transactions per ms at the end
+   * @param durationNanos
+   * @param phase
+   * @return a scheduler whose rate changes steadily from startRate to endRate
+   *         over durationNanos
+   */
+  public static RateScheduler ramp(double startRate, double endRate, long durationNanos, double phase) {
+    return new RateScheduler(Profile.RAMP, startRate, endRate, 0, durationNanos, durationNanos, phase);
+  }
+
+  /**
+   * @param startRate
+   *          transactions per ms for the first step
+   * @param stepIncrement
+   *          how much the rate goes up by each step
+   * @param endRate
+   *          rate of the last step
+   * @param stepNanos
+   *          how long each step lasts
+   * @param phase
+   * @return a scheduler that goes from startRate to endRate in steps.
+   */
+  public static RateScheduler step(double startRate, double stepIncrement, double endRate, long stepNanos,
+      double phase) {
+
+    if (stepIncrement <= 0) {
+      throw new IllegalArgumentException("stepIncrement must be more than 0");
+    }
+
+    final long stepCount = 1 + (long) Math.floor(((endRate - startRate) / stepIncrement) + 0.000001);
+
+    return new RateScheduler(Profile.STEP, startRate, endRate, stepIncrement, stepNanos,
+        stepNanos * Math.max(stepCount, 1), phase);
+  }
+
+  /**
+   * Start (or restart) the schedule. Several schedulers can be given the same
+   * start time so they keep in step with each other.
+   * 
+   * @param startNanos
+   *          a System.nanoTime() value
+   * @param startMs
+   *          System.currentTimeMillis() at the same moment
+   */
+  public void start(long startNanos, long startMs) {
+    this.startNanos = startNanos;
+    this.startMs = startMs;
+    opCount = 0;
+  }
+
+  /**
+   * Work out when the next transaction should start.
+   * 
+   * @return a System.nanoTime() value, or -1 if the schedule has finished.
+   */
+  public long next() {
+
+    final long offsetNanos = getOffsetNanos(opCount + phase);
+
+    if (offsetNanos < 0 || offsetNanos >= durationNanos) {
+      return -1;
+    }
+
+    opCount++;
+    return startNanos + offsetNanos;
+  }
+
+  /**
+   * Wait until the next transaction should start.
+   * 
+   * @return when it should have started, or -1 if the schedule has finished.
+   */
+  public long awaitNext() {
+
+    final long intendedStartNanos = next();
+
+    if (intendedStartNanos >= 0) {
+
+      long remaining = intendedStartNanos - System.nanoTime();
+
+      while (remaining > 0) {
+
+        if (remaining > SPIN_NANOS) {
+          LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+
+        remaining = intendedStartNanos - System.nanoTime();
+      }
+    }
+
+    return intendedStartNanos;
+  }
+
+  /**
+   * @param nanos
+   *          a System.nanoTime() value
+   * @return which step we're on at nanos. Always 0 unless our profile is STEP.
+   *         Once the schedule has finished it's the last step.
+   */
+  public int getStep(long nanos) {
+
+    if (profile != Profile.STEP || nanos < startNanos) {
+      return 0;
+    }
+
+    return (int) (Math.min(nanos - startNanos, durationNanos - 1) / stepNanos);
+  }
+
+  /**
+   * @param nanos
+   *          a System.nanoTime() value
+   * @return the rate we should be running at at nanos, in transactions per ms.
+   */
+  public double getRate(long nanos) {
+
+    final long offsetNanos = Math.max(0, Math.min(nanos - startNanos, durationNanos));
+
+    switch (profile) {
+    case RAMP:
+      return startRate + ((endRate - startRate) * offsetNanos / durationNanos);
+    case STEP:
+      return getStepRate(getStep(nanos));
+    default:
+      return endRate;
+    }
+  }
+
+  /**
+   * @return how long the whole schedule takes.
+   */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /**
+   * @return Our start time as a System.currentTimeMillis() value
+   */
+  public long getStartMs() {
+    return startMs;
+  }
+
+  /**
+   * @param step
+   * @return transactions per ms for step
+   */
+  public double getStepRate(int step) {
+    return Math.min(endRate, startRate + (step * stepIncrement));
+  }
+
+  /**
+   * @param op
+   *          transaction number, allowing for phase
+   * @return how long after the start transaction number op should happen, or -1
+   *         if it never will.
+   */
+  private long getOffsetNanos(double op) {
+
+    switch (profile) {
+
+    case RAMP: {
+      // Rate in transactions per ns is a + bt, so by time t we've done
+      // at + (bt^2)/2. Solve for t.
+      final double a = startRate / NANOS_PER_MS;
+      final double b = (endRate - startRate) / NANOS_PER_MS / durationNanos;
+
+      if (b == 0) {
+        return a > 0 ? (long) (op / a) : -1;
+      }
+
+      final double discriminant = (a * a) + (2 * b * op);
+
+      if (discriminant < 0) {
+        return -1;
+      }
+
+      return (long) ((Math.sqrt(discriminant) - a) / b);
+    }
+
+    case STEP: {
+      double opsBeforeThisStep = 0;
+
+      for (int step = 0; (long) step * stepNanos < durationNanos; step++) {
+
+        final double rate = getStepRate(step) / NANOS_PER_MS;
+        final double opsThisStep = rate * stepNanos;
+
+        if (rate > 0 && op < opsBeforeThisStep + opsThisStep) {
+          return ((long) step * stepNanos) + (long) ((op - opsBeforeThisStep) / rate);
+        }
+
+        opsBeforeThisStep += opsThisStep;
+      }
+
+      return -1;
+    }
+
+    default:
+      return endRate > 0 ? (long) (op * NANOS_PER_MS / endRate) : -1;
+    }
+  }
+
+}
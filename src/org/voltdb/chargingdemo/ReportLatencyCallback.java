@@ -24,39 +24,85 @@ package org.voltdb.chargingdemo;
  */
 
 import org.voltdb.client.ClientResponse;
-import org.voltdb.client.ProcedureCallback;
+import org.voltdb.voltutil.stats.LatencyHandle;
 import org.voltdb.voltutil.stats.SafeHistogramCache;
 
 /**
  * Simple callback that complains if something went badly wrong and tracks
  * latency.
+ * <p>
+ * Can be used once, or handed out by a {@link CallbackPool}, in which case
+ * {@link #start(long)} sets up each call and the callback goes back to the
+ * pool once the response has been dealt with.
  * 
  * @author drolfe
  *
  */
-public class ReportLatencyCallback implements ProcedureCallback {
-
-  SafeHistogramCache shc = SafeHistogramCache.getInstance();
+public class ReportLatencyCallback extends PooledCallback {
 
   String statname;
 
-  long startMs;
+  LatencyHandle latency;
+
+  long startNanos;
 
   public ReportLatencyCallback(String statname) {
+    this(statname, System.nanoTime());
+  }
+
+  /**
+   * @param statname
+   * @param startNanos
+   *          System.nanoTime() when the call should have started. Latency is
+   *          measured from here.
+   */
+  public ReportLatencyCallback(String statname, long startNanos) {
     super();
     this.statname = statname;
-    startMs = System.currentTimeMillis();
+    this.startNanos = startNanos;
+    this.latency = SafeHistogramCache.getInstance().getLatencyHandle(statname);
+  }
+
+  /**
+   * Get ready for another call.
+   * 
+   * @param startNanos
+   *          System.nanoTime() when the call should have started.
+   * @return this
+   */
+  public ReportLatencyCallback start(long startNanos) {
+    this.startNanos = startNanos;
+    return this;
   }
 
   @Override
   public void clientCallback(ClientResponse arg0) throws Exception {
 
-    if (arg0.getStatus() != ClientResponse.SUCCESS) {
-      ChargingDemo.msg("Error Code " + arg0.getStatusString());
-    }
+    try {
 
-    shc.reportLatency(statname, startMs, statname, 250);
+      if (arg0.getStatus() != ClientResponse.SUCCESS) {
+        ChargingDemo.msg("Error Code " + arg0.getStatusString());
+      }
+
+      latency.reportLatencyNanos(startNanos, statname);
+
+      onResponse(arg0);
+
+    } finally {
+
+      // Nothing may touch our fields once we're back in the pool...
+      release();
+    }
+  }
 
+  /**
+   * Called by clientCallback after latency has been reported, for subclasses
+   * that want to look at the response.
+   * 
+   * @param arg0
+   * @throws Exception
+   */
+  protected void onResponse(ClientResponse arg0) throws Exception {
   }
 
 }
@@ -0,0 +1,492 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json_voltpatches.JSONException;
+import org.json_voltpatches.JSONObject;
+import org.voltdb.client.Client;
+
+/**
+ * Loads subscribers from a file instead of making them up. The file is read a
+ * chunk of lines at a time by a reader thread, which hands parsed chunks to us
+ * through a small bounded queue. We pass each user to a {@link BulkUserLoader},
+ * which routes it to its partition's batch. As BulkUserLoader won't let more
+ * than userinflight calls be outstanding, a slow cluster slows down add(),
+ * which fills the queue, which stops the reader. At no point do we hold more
+ * than a few chunks of the file in memory.
+ * <p>
+ * Two formats are understood:
+ * <ul>
+ * <li>csv - userid,credit,json. Everything after the second comma is the JSON
+ * payload. A first line that doesn't start with a number is taken to be a
+ * header.</li>
+ * <li>ndjson - one JSON object per line, with a 'userid' and an optional
+ * 'credit'. The whole line is stored as the payload.</li>
+ * </ul>
+ * A missing credit means defaultCredit.
+ * <p>
+ * Every time all the users in the oldest outstanding chunk are known to exist
+ * we write the line number after it to the checkpoint file. If we're run again
+ * we skip to there. BulkCreateUsers leaves existing users alone, so redoing
+ * part of a chunk after a crash is harmless. If any call fails the checkpoint
+ * stops moving, so the next run will retry it.
+ *
+ */
+public class SubscriberImporter {
+
+  public static final String FORMAT_CSV = "csv";
+  public static final String FORMAT_NDJSON = "ndjson";
+
+  /**
+   * Lines per chunk, which is also how often the checkpoint can move.
+   */
+  public static final int CHUNK_LINES = 10000;
+
+  /**
+   * Most parsed chunks waiting for us at once.
+   */
+  private static final int QUEUE_CHUNKS = 4;
+
+  private static final int READ_BUFFER_CHARS = 1024 * 1024;
+
+  /**
+   * Size of user_table.user_json_object.
+   */
+  private static final int MAX_JSON_LENGTH = 8000;
+
+  /**
+   * We only complain about this many bad lines, although we count all of them.
+   */
+  private static final int MAX_BAD_LINE_MESSAGES = 10;
+
+  private static final String CHECKPOINT_FILE = "file";
+  private static final String CHECKPOINT_LINE = "line";
+
+  final File importFile;
+  final File checkpointFile;
+  final String format;
+  final long defaultCredit;
+  final BulkUserLoader loader;
+
+  final ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS);
+
+  /**
+   * Chunks we've handed to loader but haven't checkpointed past, oldest first.
+   */
+  final ArrayDeque<Chunk> outstanding = new ArrayDeque<Chunk>();
+
+  final AtomicInteger badLines = new AtomicInteger();
+
+  long linesImported = 0;
+
+  long checkpointLine = 0;
+
+  volatile Exception readerFailure = null;
+
+  /**
+   * @param client
+   * @param importFile
+   * @param checkpointFile
+   * @param format
+   *          FORMAT_CSV or FORMAT_NDJSON
+   * @param defaultCredit
+   *          credit for users whose line doesn't have one
+   * @param batchSize
+   *          users per BulkCreateUsers call
+   * @param maxInFlight
+   *          most BulkCreateUsers calls outstanding at once
+   */
+  public SubscriberImporter(Client client, File importFile, File checkpointFile, String format, long defaultCredit,
+      int batchSize, int maxInFlight) {
+    super();
+    this.importFile = importFile;
+    this.checkpointFile = checkpointFile;
+    this.format = format;
+    this.defaultCredit = defaultCredit;
+    this.loader = new BulkUserLoader(client, batchSize, maxInFlight, new Date());
+  }
+
+  /**
+   * @param fileName
+   * @return the format we'd guess from fileName's extension.
+   */
+  public static String guessFormat(String fileName) {
+
+    final String lowerName = fileName.toLowerCase();
+
+    if (lowerName.endsWith(".ndjson") || lowerName.endsWith(".jsonl") || lowerName.endsWith(".json")) {
+      return FORMAT_NDJSON;
+    }
+
+    return FORMAT_CSV;
+  }
+
+  /**
+   * Import everything after the checkpoint.
+   * 
+   * @return true if every user in the file now exists.
+   * @throws Exception
+   */
+  public boolean run() throws Exception {
+
+    if (!FORMAT_CSV.equals(format) && !FORMAT_NDJSON.equals(format)) {
+      throw new IllegalArgumentException("Unknown import format '" + format + "'");
+    }
+
+    checkpointLine = readCheckpoint();
+
+    if (checkpointLine > 0) {
+      ChargingDemo.msg("Resuming " + importFile + " from line " + checkpointLine);
+    } else {
+      ChargingDemo.msg("Importing " + importFile + " as " + format);
+    }
+
+    final long startMs = System.currentTimeMillis();
+
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readFile(checkpointLine);
+      }
+    }, "SubscriberImporter reader");
+
+    reader.setDaemon(true);
+    reader.start();
+
+    long nextReportMs = startMs + 10000;
+
+    while (true) {
+
+      Chunk chunk = queue.take();
+
+      if (chunk.isEnd()) {
+        break;
+      }
+
+      outstanding.add(chunk);
+
+      for (int i = 0; i < chunk.size(); i++) {
+        loader.add(chunk.userIds[i], chunk.credits[i], chunk.jsons[i], chunk);
+      }
+
+      chunk.seal();
+      linesImported += chunk.lineCount;
+
+      advanceCheckpoint();
+
+      if (System.currentTimeMillis() > nextReportMs) {
+        ChargingDemo.msg("Read " + linesImported + " lines, created " + loader.getUsersCreated() + " users, "
+            + getUsersPerSecond(startMs) + " users/sec, checkpoint at line " + checkpointLine);
+        nextReportMs = System.currentTimeMillis() + 10000;
+      }
+    }
+
+    loader.finish();
+    advanceCheckpoint();
+
+    if (readerFailure != null) {
+      throw new Exception("Reading " + importFile + " failed: " + readerFailure.getMessage(), readerFailure);
+    }
+
+    ChargingDemo.msg("Imported " + linesImported + " lines: created " + loader.getUsersCreated() + " users, "
+        + getUsersPerSecond(startMs) + " users/sec. " + loader.getUsersSkipped() + " already existed, "
+        + loader.getUsersFailed() + " failed, " + badLines.get() + " bad lines. Checkpoint at line "
+        + checkpointLine);
+
+    return loader.getUsersFailed() == 0 && outstanding.isEmpty();
+  }
+
+  private long getUsersPerSecond(long startMs) {
+    return (loader.getUsersCreated() * 1000) / Math.max(1, System.currentTimeMillis() - startMs);
+  }
+
+  /**
+   * Runs in the reader thread. Reads the file a chunk at a time, parses it and
+   * queues the chunks for run(). Always queues an end marker, even if
+   * something goes wrong.
+   * 
+   * @param startLine
+   *          first line we haven't already imported
+   */
+  private void readFile(long startLine) {
+
+    try (BufferedReader br = new BufferedReader(
+        new InputStreamReader(new FileInputStream(importFile), StandardCharsets.UTF_8), READ_BUFFER_CHARS)) {
+
+      long lineNumber = 0;
+      String line;
+
+      while (lineNumber < startLine && br.readLine() != null) {
+        lineNumber++;
+      }
+
+      Chunk chunk = new Chunk(lineNumber);
+
+      while ((line = br.readLine()) != null) {
+
+        parseLine(chunk, lineNumber++, line);
+
+        if (chunk.lineCount == CHUNK_LINES) {
+          queue.put(chunk.trim());
+          chunk = new Chunk(lineNumber);
+        }
+      }
+
+      if (chunk.lineCount > 0) {
+        queue.put(chunk.trim());
+      }
+
+    } catch (Exception e) {
+      readerFailure = e;
+    } finally {
+      try {
+        queue.put(Chunk.END);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Add line to chunk, or count it as bad if we can't make sense of it.
+   * 
+   * @param chunk
+   * @param lineNumber
+   * @param line
+   */
+  private void parseLine(Chunk chunk, long lineNumber, String line) {
+
+    chunk.lineCount++;
+
+    if (line.trim().isEmpty()) {
+      return;
+    }
+
+    try {
+      if (FORMAT_CSV.equals(format)) {
+
+        String[] fields = line.split(",", 3);
+
+        // Header?
+        if (lineNumber == 0 && !fields[0].trim().matches("-?[0-9]+")) {
+          return;
+        }
+
+        long credit = defaultCredit;
+
+        if (fields.length > 1 && !fields[1].trim().isEmpty()) {
+          credit = Long.parseLong(fields[1].trim());
+        }
+
+        chunk.add(Long.parseLong(fields[0].trim()), credit, fields.length > 2 ? fields[2] : null);
+
+      } else {
+
+        JSONObject subscriber = new JSONObject(line);
+        chunk.add(subscriber.getLong("userid"), subscriber.optLong("credit", defaultCredit), line);
+      }
+
+      if (chunk.jsons[chunk.size() - 1] != null && chunk.jsons[chunk.size() - 1].length() > MAX_JSON_LENGTH) {
+        chunk.removeLast();
+        throw new IllegalArgumentException("payload longer than " + MAX_JSON_LENGTH);
+      }
+
+    } catch (JSONException | IllegalArgumentException e) {
+      if (badLines.incrementAndGet() <= MAX_BAD_LINE_MESSAGES) {
+        ChargingDemo.msg("Skipping line " + (lineNumber + 1) + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Move the checkpoint past every chunk at the head of outstanding that's
+   * finished, and write it out if it moved.
+   * 
+   * @throws IOException
+   */
+  private void advanceCheckpoint() throws IOException {
+
+    final long oldCheckpoint = checkpointLine;
+
+    while (!outstanding.isEmpty() && outstanding.peek().isDone()) {
+      Chunk chunk = outstanding.poll();
+      checkpointLine = chunk.firstLine + chunk.lineCount;
+    }
+
+    if (checkpointLine != oldCheckpoint) {
+      writeCheckpoint(checkpointLine);
+    }
+  }
+
+  /**
+   * @return the line to start from, or 0 if there's no checkpoint for this
+   *         file.
+   * @throws IOException
+   */
+  private long readCheckpoint() throws IOException {
+
+    if (!checkpointFile.exists()) {
+      return 0;
+    }
+
+    Properties checkpoint = new Properties();
+
+    try (FileInputStream fis = new FileInputStream(checkpointFile)) {
+      checkpoint.load(fis);
+    }
+
+    if (!importFile.getCanonicalPath().equals(checkpoint.getProperty(CHECKPOINT_FILE))) {
+      ChargingDemo.msg("Ignoring " + checkpointFile + " as it's for " + checkpoint.getProperty(CHECKPOINT_FILE));
+      return 0;
+    }
+
+    return Long.parseLong(checkpoint.getProperty(CHECKPOINT_LINE, "0"));
+  }
+
+  /**
+   * Write the checkpoint to a temporary file and then rename it, so a crash
+   * can't leave us with half a checkpoint.
+   * 
+   * @param line
+   * @throws IOException
+   */
+  private void writeCheckpoint(long line) throws IOException {
+
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty(CHECKPOINT_FILE, importFile.getCanonicalPath());
+    checkpoint.setProperty(CHECKPOINT_LINE, Long.toString(line));
+
+    File tempFile = new File(checkpointFile.getPath() + ".tmp");
+
+    try (OutputStream os = new FileOutputStream(tempFile)) {
+      checkpoint.store(os, "SubscriberImporter checkpoint");
+    }
+
+    Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * A run of lines from the file, and how many of its users we're still
+   * waiting to hear about.
+   */
+  private static class Chunk implements BulkUserLoader.UserCompletion {
+
+    static final Chunk END = new Chunk(-1);
+
+    final long firstLine;
+
+    int lineCount = 0;
+
+    long[] userIds = new long[CHUNK_LINES];
+    long[] credits = new long[CHUNK_LINES];
+    String[] jsons = new String[CHUNK_LINES];
+
+    int userCount = 0;
+
+    /**
+     * Users we've handed out but haven't heard back about. Starts at 1 so we
+     * can't be done until seal() is called.
+     */
+    final AtomicInteger pending = new AtomicInteger(1);
+
+    volatile boolean failed = false;
+
+    Chunk(long firstLine) {
+      this.firstLine = firstLine;
+    }
+
+    boolean isEnd() {
+      return this == END;
+    }
+
+    void add(long userId, long credit, String json) {
+      userIds[userCount] = userId;
+      credits[userCount] = credit;
+      jsons[userCount] = json;
+      userCount++;
+    }
+
+    void removeLast() {
+      userCount--;
+      jsons[userCount] = null;
+    }
+
+    int size() {
+      return userCount;
+    }
+
+    /**
+     * Called by the reader once we're full, so run() doesn't hold on to arrays
+     * bigger than it needs.
+     * 
+     * @return this
+     */
+    Chunk trim() {
+      if (userCount < userIds.length) {
+        userIds = Arrays.copyOf(userIds, userCount);
+        credits = Arrays.copyOf(credits, userCount);
+        jsons = Arrays.copyOf(jsons, userCount);
+      }
+      return this;
+    }
+
+    /**
+     * Called once every user has been handed to the loader.
+     */
+    void seal() {
+      pending.addAndGet(userCount - 1);
+    }
+
+    @Override
+    public void userDone(boolean created) {
+      if (!created) {
+        failed = true;
+      }
+      pending.decrementAndGet();
+    }
+
+    boolean isDone() {
+      return pending.get() == 0 && !failed;
+    }
+  }
+
+}
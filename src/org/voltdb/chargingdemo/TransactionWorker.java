@@ -0,0 +1,572 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.voltdb.client.Client;
+
+/**
+ * Generates TRANSACTIONS traffic for its own range of users. ChargingDemo can
+ * run several of these at once so that one JVM can drive a whole cluster. No
+ * two workers pick the same user, but the responses for our users are handled
+ * on the client's threads, so we still hold a user's lock in the
+ * UserStateStore while we look at them or mark them as busy.
+ *
+ */
+public class TransactionWorker implements Runnable {
+
+  final int workerId;
+  final Client mainClient;
+  final UserStateStore state;
+  final int offset;
+
+  /**
+   * Our users are firstUser to firstUser + userCount - 1 in state.
+   */
+  final int firstUser;
+  final int userCount;
+
+  /**
+   * Tells us when each transaction should start.
+   */
+  final RateScheduler scheduler;
+  final int addCreditInterval;
+  final int batchSize;
+  final String reportQuotaUsageProcName;
+
+  /**
+   * Makes numeric transaction ids, or null if we use strings.
+   */
+  final TxnIdGenerator txnIds;
+  final UpdateSessionStateCallback ussc;
+
+  /**
+   * Pick which of our users and which product each transaction is for.
+   */
+  final KeySampler userSampler;
+  final KeySampler productSampler;
+
+  /**
+   * Callbacks we reuse, so that sending a transaction doesn't create garbage.
+   * batchCallbacks is null unless batchSize is over 1.
+   */
+  final CallbackPool<AddCreditCallback> shortageCallbacks;
+  final CallbackPool<ReportLatencyCallback> addCreditCallbacks;
+  final CallbackPool<UpdateSessionStateBatchCallback> batchCallbacks;
+
+  /**
+   * Used to make string transaction ids without any garbage other than the
+   * String itself.
+   */
+  final StringBuilder txnIdBuilder = new StringBuilder(64);
+
+  final Random r = new Random();
+
+  /**
+   * How many times we ask productSampler for a product that isn't in a batch
+   * yet before taking the next free one.
+   */
+  static final int MAX_PRODUCT_TRIES = 16;
+
+  /**
+   * How many users we try for one scheduled transaction before giving up on
+   * it because they all have a transaction in flight.
+   */
+  static final int MAX_USER_TRIES = 16;
+
+  /**
+   * View of whichever user we're working on.
+   */
+  final UserState user;
+
+  /**
+   * What prepareTransaction can decide to do.
+   */
+  private enum Action {
+    USER_BUSY, ADD_CREDIT_ON_SHORTAGE, ADD_CREDIT_AT_INTERVAL, REPORT_USAGE_BATCH, REPORT_USAGE
+  }
+
+  /**
+   * What prepareTransaction read or made up for the transaction we're about to
+   * send. Only used by our own thread. The batch arrays are made once and
+   * reused, as callProcedure has serialized its parameters by the time it
+   * returns.
+   */
+  int ourProduct;
+  int userStatus;
+  long sessionId;
+  long usedUnits;
+  int requestUnits;
+  long extraCredit;
+
+  final long[] batchProductIds;
+  final int[] batchUsedUnits;
+  final int[] batchRequestUnits;
+  final long[] batchSessionIds;
+  final String[] batchTxnIds;
+  final long[] batchNumericTxnIds;
+  final boolean[] productInBatch = new boolean[ChargingDemo.PRODUCT_NAMES.length];
+
+  /**
+   * How many transactions we've done. Read by the main thread while we're
+   * running.
+   */
+  volatile int tranCount = 0;
+
+  /**
+   * How many times we picked a user who already had a transaction in flight.
+   */
+  int inFlightCount = 0;
+
+  /**
+   * How many scheduled transactions we didn't send because every user we
+   * picked for them already had a transaction in flight.
+   */
+  int droppedSlotCount = 0;
+
+  /**
+   * Bytes this thread allocated while it ran, for AllocationReport.
+   */
+  long allocatedBytes = 0;
+
+  Exception failure = null;
+
+  public TransactionWorker(int workerId, Client mainClient, UserStateStore state, int offset, int firstUser,
+      int userCount, RateScheduler scheduler, int addCreditInterval, int batchSize, String reportQuotaUsageProcName,
+      TxnIdGenerator txnIds, UpdateSessionStateCallback ussc, KeySampler userSampler, KeySampler productSampler) {
+    super();
+    this.workerId = workerId;
+    this.mainClient = mainClient;
+    this.state = state;
+    this.offset = offset;
+    this.firstUser = firstUser;
+    this.userCount = userCount;
+    this.scheduler = scheduler;
+    this.addCreditInterval = addCreditInterval;
+    this.batchSize = batchSize;
+    this.reportQuotaUsageProcName = reportQuotaUsageProcName;
+    this.txnIds = txnIds;
+    this.ussc = ussc;
+    this.userSampler = userSampler;
+    this.productSampler = productSampler;
+    this.user = new UserState(state, firstUser);
+    this.shortageCallbacks = new CallbackPool<AddCreditCallback>("AddCredit", CallbackPool.DEFAULT_SIZE,
+        () -> new AddCreditCallback("AddCredit", state, 0, offset));
+    this.addCreditCallbacks = new CallbackPool<ReportLatencyCallback>("AddCredit", CallbackPool.DEFAULT_SIZE,
+        () -> new ReportLatencyCallback("AddCredit"));
+    this.batchCallbacks = batchSize > 1
+        ? new CallbackPool<UpdateSessionStateBatchCallback>("ReportQuotaUsageBatch", CallbackPool.DEFAULT_SIZE,
+            () -> new UpdateSessionStateBatchCallback(state, offset))
+        : null;
+
+    this.batchProductIds = new long[batchSize];
+    this.batchUsedUnits = new int[batchSize];
+    this.batchRequestUnits = new int[batchSize];
+    this.batchSessionIds = new long[batchSize];
+    this.batchTxnIds = new String[batchSize];
+    this.batchNumericTxnIds = new long[batchSize];
+  }
+
+  @Override
+  public void run() {
+
+    final long startBytes = AllocationReport.getCurrentThreadAllocatedBytes();
+
+    try {
+      generateTransactions();
+    } catch (Exception e) {
+      ChargingDemo.msg("Worker " + workerId + " failed: " + e.getMessage());
+      failure = e;
+    }
+
+    allocatedBytes = AllocationReport.getCurrentThreadAllocatedBytes() - startBytes;
+  }
+
+  private void generateTransactions() throws Exception {
+
+    long intendedStartNanos = 0;
+
+    while ((intendedStartNanos = scheduler.awaitNext()) >= 0) {
+
+      // Latency is measured from when we should have started
+      // (intendedStartNanos), not when we actually did...
+
+      // Find session to do a transaction for. If the user we pick already
+      // has a transaction in flight we pick another one for the same slot,
+      // so skewed distributions don't quietly lower the offered load...
+      int oursession = 0;
+      Action action = Action.USER_BUSY;
+
+      for (int pick = 0; pick < MAX_USER_TRIES && action == Action.USER_BUSY; pick++) {
+
+        oursession = firstUser + userSampler.next(r);
+        user.moveTo(oursession);
+
+        // Responses for our users are handled on the client's threads, so we
+        // hold the user's lock while we look at them and mark them as busy. We
+        // let go of it before calling the database, as callProcedure can wait
+        // for responses to be handled, which needs the lock.
+        state.lock(oursession);
+
+        try {
+          action = prepareTransaction(intendedStartNanos);
+        } finally {
+          state.unlock(oursession);
+        }
+
+        if (action == Action.USER_BUSY) {
+          inFlightCount++;
+        }
+      }
+
+      switch (action) {
+      case USER_BUSY:
+        droppedSlotCount++;
+        break;
+
+      case ADD_CREDIT_ON_SHORTAGE:
+        sendAddCredit(shortageCallbacks.acquire().start(intendedStartNanos, oursession), oursession,
+            "AddCreditOnShortage");
+        break;
+
+      case ADD_CREDIT_AT_INTERVAL:
+        sendAddCredit(addCreditCallbacks.acquire().start(intendedStartNanos), oursession, "AddCreditAtInterval");
+        break;
+
+      case REPORT_USAGE_BATCH:
+
+        sendUsageBatch(oursession);
+
+        // Each product counts as a transaction...
+        tranCount += batchSize - 1;
+
+        for (int i = 1; i < batchSize; i++) {
+          scheduler.next();
+        }
+
+        break;
+
+      case REPORT_USAGE:
+        sendUsage(oursession);
+        break;
+      }
+
+      if (action != Action.USER_BUSY) {
+        tranCount++;
+      }
+
+      if (tranCount % 100000 == 1) {
+        ChargingDemo.msg("Worker " + workerId + ": transaction " + tranCount + ", in flight transactions seen="
+            + inFlightCount + ", dropped slots=" + droppedSlotCount);
+      }
+
+    }
+
+  }
+
+  /**
+   * Look at the user we've moved to and decide what to do, leaving what we
+   * need to send it in our fields. If it's a usage report the user is marked
+   * as having a transaction in flight. The caller must hold the user's lock.
+   * 
+   * @param intendedStartNanos
+   * @return what to send, or USER_BUSY if the user already has a transaction
+   *         in flight
+   */
+  private Action prepareTransaction(long intendedStartNanos) {
+
+    // See if session already has an active transaction and avoid
+    // it if it does.
+    if (user.isTxInFlight()) {
+      return Action.USER_BUSY;
+    }
+
+    ourProduct = productSampler.next(r);
+
+    // Come up with reports on how much we used and how much we want...
+
+    // usedUnits is usually less than what we requested last time.
+
+    requestUnits = 50 + r.nextInt(49);
+    usedUnits = r.nextInt(50);
+
+    // user.getUserStatus() will be zero (STATUS_NEW_USER)
+    // the first time we access a session.
+
+    userStatus = user.getUserStatus();
+    sessionId = user.getProductSessionId(ourProduct);
+
+    if (sessionId == UserState.SESSION_NOT_STARTED) {
+      usedUnits = 0;
+    } else if (user.getProductAllocation(ourProduct) < usedUnits) {
+      usedUnits = user.getProductAllocation(ourProduct);
+    }
+
+    final Action action;
+
+    // Every ADD_CREDIT_INTERVAL we add credit instead of using it...
+    if (addCreditInterval == 0 && user.getBalance() < 20) {
+
+      extraCredit = chooseTopUpAmount(user.getBalance(), r);
+      action = Action.ADD_CREDIT_ON_SHORTAGE;
+
+    } else if (addCreditInterval > 0 && userStatus >= addCreditInterval && userStatus % addCreditInterval == 0) {
+
+      extraCredit = chooseTopUpAmount(user.getBalance(), r);
+      action = Action.ADD_CREDIT_AT_INTERVAL;
+
+    } else if (batchSize > 1) {
+      // Otherwise report how much credit we used and ask for more, for
+      // several products at once...
+      user.startTran(intendedStartNanos);
+
+      Arrays.fill(productInBatch, false);
+
+      for (int i = 0; i < batchSize; i++) {
+
+        final int batchProduct = i == 0 ? ourProduct : pickUnusedProduct(productInBatch);
+        productInBatch[batchProduct] = true;
+
+        batchProductIds[i] = batchProduct;
+        batchRequestUnits[i] = 50 + r.nextInt(49);
+        batchUsedUnits[i] = r.nextInt(50);
+        batchSessionIds[i] = user.getProductSessionId(batchProduct);
+
+        if (batchSessionIds[i] == UserState.SESSION_NOT_STARTED) {
+          batchUsedUnits[i] = 0;
+        } else if (user.getProductAllocation(batchProduct) < batchUsedUnits[i]) {
+          batchUsedUnits[i] = (int) user.getProductAllocation(batchProduct);
+        }
+
+        if (txnIds != null) {
+          batchNumericTxnIds[i] = txnIds.next();
+        } else {
+          batchTxnIds[i] = startTxnId("ReportQuotaUsage").append('_').append(batchUsedUnits[i]).append('_')
+              .append(batchProduct).toString();
+        }
+      }
+
+      action = Action.REPORT_USAGE_BATCH;
+
+    } else {
+      // Otherwise report how much credit we used and ask for more...
+      user.startTran(intendedStartNanos);
+      action = Action.REPORT_USAGE;
+    }
+
+    user.IncUserStatus();
+
+    return action;
+  }
+
+  /**
+   * Report how much credit we used and ask for more for the products in our
+   * batch fields.
+   * 
+   * @param oursession
+   * @throws Exception
+   */
+  private void sendUsageBatch(int oursession) throws Exception {
+
+    UpdateSessionStateBatchCallback batchCallback = batchCallbacks.acquire().start(oursession + offset);
+    boolean queued = false;
+
+    try {
+      if (txnIds != null) {
+        queued = mainClient.callProcedure(batchCallback, "ReportQuotaUsageBatchHashed", oursession + offset,
+            batchProductIds, batchUsedUnits, batchRequestUnits, batchSessionIds, batchNumericTxnIds,
+            txnIds.getCheck());
+      } else {
+        queued = mainClient.callProcedure(batchCallback, "ReportQuotaUsageBatch", oursession + offset,
+            batchProductIds, batchUsedUnits, batchRequestUnits, batchSessionIds, batchTxnIds);
+      }
+    } finally {
+      // No response will ever say this user isn't busy any more...
+      if (!queued) {
+        batchCallback.release();
+        cancelTran(oursession);
+      }
+    }
+  }
+
+  /**
+   * Report how much credit we used and ask for more for ourProduct.
+   * 
+   * @param oursession
+   * @throws Exception
+   */
+  private void sendUsage(int oursession) throws Exception {
+
+    boolean queued = false;
+
+    try {
+      if (txnIds != null) {
+        queued = mainClient.callProcedure(ussc, reportQuotaUsageProcName, oursession + offset, ourProduct,
+            usedUnits, requestUnits, sessionId, txnIds.next(), txnIds.getCheck());
+      } else {
+        queued = mainClient.callProcedure(ussc, reportQuotaUsageProcName, oursession + offset, ourProduct,
+            usedUnits, requestUnits, sessionId,
+            startTxnId("ReportQuotaUsage").append('_').append(usedUnits).append('_').append(ourProduct).toString());
+      }
+    } finally {
+      if (!queued) {
+        cancelTran(oursession);
+      }
+    }
+  }
+
+  /**
+   * Start a string transaction id in txnIdBuilder. Ids are
+   * prefix_userStatus_workerId_tranCount followed by whatever the caller
+   * appends.
+   * 
+   * @param prefix
+   * @return txnIdBuilder
+   */
+  private StringBuilder startTxnId(String prefix) {
+    txnIdBuilder.setLength(0);
+    return txnIdBuilder.append(prefix).append('_').append(userStatus).append('_').append(workerId).append('_')
+        .append(tranCount);
+  }
+
+  /**
+   * Say a user's usage report is no longer in flight, because it was never
+   * sent.
+   * 
+   * @param oursession
+   */
+  private void cancelTran(int oursession) {
+
+    state.lock(oursession);
+
+    try {
+      state.cancelTran(oursession);
+    } finally {
+      state.unlock(oursession);
+    }
+  }
+
+  /**
+   * Add extraCredit to a user.
+   * 
+   * @param addCreditCallback
+   *          from one of our pools
+   * @param oursession
+   * @param txnIdPrefix
+   *          start of the transaction id, if we use strings
+   * @throws Exception
+   */
+  private void sendAddCredit(ReportLatencyCallback addCreditCallback, int oursession, String txnIdPrefix)
+      throws Exception {
+
+    boolean queued = false;
+
+    try {
+      if (txnIds != null) {
+        queued = mainClient.callProcedure(addCreditCallback, "AddCreditHashed", oursession + offset, extraCredit,
+            txnIds.next(), txnIds.getCheck());
+      } else {
+        queued = mainClient.callProcedure(addCreditCallback, "AddCredit", oursession + offset, extraCredit,
+            startTxnId(txnIdPrefix).append('_').append(extraCredit).toString());
+      }
+    } finally {
+      // If it wasn't queued there'll be no response to return it...
+      if (!queued) {
+        addCreditCallback.release();
+      }
+    }
+  }
+
+  /**
+   * Pick a product for a batch that isn't in it yet. Each product in a batch
+   * is chosen using productSampler from the ones that are left, but as
+   * products with little or no weight may never come up we give up after a
+   * few tries and take the next free one.
+   * 
+   * @param productInBatch
+   * @return a product that isn't in productInBatch
+   */
+  private int pickUnusedProduct(boolean[] productInBatch) {
+
+    int product = productSampler.next(r);
+
+    for (int i = 0; i < MAX_PRODUCT_TRIES && productInBatch[product]; i++) {
+      product = productSampler.next(r);
+    }
+
+    while (productInBatch[product]) {
+      product = (product + 1) % productInBatch.length;
+    }
+
+    return product;
+  }
+
+  private static long chooseTopUpAmount(long balance, Random r) {
+    if (balance > 0) {
+      return 100 + r.nextInt(300);
+    }
+    return 100 + r.nextInt(300) + (-1 * balance);
+
+  }
+
+  /**
+   * @return how many transactions we've done
+   */
+  public int getTranCount() {
+    return tranCount;
+  }
+
+  /**
+   * @return how many times we picked a user who already had a transaction in
+   *         flight
+   */
+  public int getInFlightCount() {
+    return inFlightCount;
+  }
+
+  /**
+   * @return how many scheduled transactions we didn't send because every user
+   *         we picked for them was busy
+   */
+  public int getDroppedSlotCount() {
+    return droppedSlotCount;
+  }
+
+  /**
+   * @return bytes allocated by this worker's thread while it ran.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * @return the exception that stopped us, or null
+   */
+  public Exception getFailure() {
+    return failure;
+  }
+
+}
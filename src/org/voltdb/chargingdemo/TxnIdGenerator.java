@@ -0,0 +1,68 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import chargingdemoprocs.TxnIdHash;
+
+/**
+ * Makes the (txn_id, txn_check) pairs used by AddCreditHashed and
+ * ReportQuotaUsageHashed. Each generator picks a random check when it's
+ * created and makes ids by mixing it with a counter, so ids never repeat for
+ * one generator and two generators almost never share one. If they do, the
+ * different checks tell the procedures it's a new transaction.
+ * <p>
+ * Not thread safe - give each thread its own.
+ *
+ */
+public class TxnIdGenerator {
+
+  final long check;
+
+  long sequence = 0;
+
+  public TxnIdGenerator() {
+    this(ThreadLocalRandom.current().nextLong());
+  }
+
+  public TxnIdGenerator(long check) {
+    this.check = check;
+  }
+
+  /**
+   * @return a txn_id we haven't handed out before.
+   */
+  public long next() {
+    return TxnIdHash.mix(check + ++sequence);
+  }
+
+  /**
+   * @return the txn_check that goes with every id from this generator.
+   */
+  public long getCheck() {
+    return check;
+  }
+
+}
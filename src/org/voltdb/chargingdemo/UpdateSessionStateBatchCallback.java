@@ -0,0 +1,107 @@
+package org.voltdb.chargingdemo;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+
+import chargingdemoprocs.ReferenceData;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Callback for ReportQuotaUsageBatch. Updates the UserState for each product
+ * in the batch using the one row per event that comes back.
+ * <p>
+ * Handed out by a {@link CallbackPool}; {@link #start(int)} says which user
+ * each call is for.
+ *
+ */
+public class UpdateSessionStateBatchCallback extends PooledCallback {
+
+    UserStateStore state = null;
+    int offset = 0;
+    int userid = 0;
+
+    public UpdateSessionStateBatchCallback(UserStateStore state, int offset) {
+        super();
+        this.state = state;
+        this.offset = offset;
+    }
+
+    /**
+     * Get ready for another call.
+     * 
+     * @param userid
+     * @return this
+     */
+    public UpdateSessionStateBatchCallback start(int userid) {
+        this.userid = userid;
+        return this;
+    }
+
+    public void clientCallback(ClientResponse arg0) throws Exception {
+
+        try {
+            reportBatch(arg0);
+        } finally {
+            release();
+        }
+    }
+
+    private void reportBatch(ClientResponse arg0) {
+
+        if (arg0.getStatus() != ClientResponse.SUCCESS) {
+            ChargingDemo.msg("Error Code " + arg0.getStatusString());
+        }
+
+        state.lock(userid - offset);
+
+        try {
+
+            if (arg0.getStatus() == ClientResponse.SUCCESS) {
+
+                VoltTable eventTable = arg0.getResults()[0];
+
+                while (eventTable.advanceRow()) {
+
+                    final byte status = (byte) eventTable.getLong("status");
+
+                    state.reportBatchStatus(userid - offset, status);
+
+                    // Events we've already seen don't change anything...
+                    if (status != ReferenceData.TXN_ALREADY_HAPPENED) {
+                        state.reportProductSession(userid - offset, (int) eventTable.getLong("product_id"),
+                                eventTable.getLong("session_id"), eventTable.getLong("allocated_units"));
+                        state.reportBalance(userid - offset, eventTable.getLong("balance"));
+                    }
+                }
+            }
+
+            state.reportEndBatch(userid - offset);
+
+        } finally {
+            state.unlock(userid - offset);
+        }
+    }
+
+}
@@ -4,6 +4,8 @@ import org.voltdb.VoltTable;
 import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ProcedureCallback;
 
+import chargingdemoprocs.QuotaResponse;
+
 /* This file is part of VoltDB.
  * Copyright (C) 2008-2019 VoltDB Inc.
  *
@@ -29,18 +31,30 @@ import org.voltdb.client.ProcedureCallback;
 
 public class UpdateSessionStateCallback implements ProcedureCallback {
 
-    UserState[] state = null;
+    UserStateStore state = null;
     int offset = 0;
 
-    public UpdateSessionStateCallback(UserState[] state, int offset) {
+    /**
+     * True if responses are a single row laid out by QuotaResponse.
+     */
+    boolean compact = false;
+
+    public UpdateSessionStateCallback(UserStateStore state, int offset) {
+        this(state, offset, false);
+    }
+
+    public UpdateSessionStateCallback(UserStateStore state, int offset, boolean compact) {
         super();
         this.state = state;
         this.offset = offset;
+        this.compact = compact;
     }
 
     public void clientCallback(ClientResponse arg0) throws Exception {
         if (arg0.getStatus() != ClientResponse.SUCCESS) {
             ChargingDemo.msg("Error Code " + arg0.getStatusString());
+        } else if (compact) {
+            compactCallback(arg0);
         } else {
 
             // Find allocation . It'll be in the last VoltTable
@@ -67,9 +81,14 @@ public class UpdateSessionStateCallback implements ProcedureCallback {
                         e.printStackTrace();
                     }
 
-                    synchronized (state) {
-                        state[userid - offset].reportBalance(balance);
-                        state[userid - offset].reportEndTransaction(productid, sessionid, arg0.getStatus(), allocated);
+                    state.lock(userid - offset);
+
+                    try {
+                        state.reportBalance(userid - offset, balance);
+                        state.reportEndTransaction(userid - offset, productid, sessionid, arg0.getAppStatus(),
+                                allocated);
+                    } finally {
+                        state.unlock(userid - offset);
                     }
                 } catch (Exception e) {
                     // TODO Auto-generated catch block
@@ -86,4 +105,37 @@ public class UpdateSessionStateCallback implements ProcedureCallback {
 
     }
 
+    /**
+     * Handle a response from ReportQuotaUsageCompact. Columns are read by
+     * index.
+     * 
+     * @param arg0
+     */
+    private void compactCallback(ClientResponse arg0) {
+
+        VoltTable response = arg0.getResults()[0];
+
+        if (response.advanceRow()) {
+
+            final int user = (int) response.getLong(QuotaResponse.USERID) - offset;
+
+            state.lock(user);
+
+            try {
+                state.reportBalance(user, response.getLong(QuotaResponse.BALANCE));
+                state.reportEndTransaction(user, (int) response.getLong(QuotaResponse.PRODUCT_ID),
+                        response.getLong(QuotaResponse.SESSION_ID), (byte) response.getLong(QuotaResponse.STATUS),
+                        response.getLong(QuotaResponse.ALLOCATED_UNITS));
+            } finally {
+                state.unlock(user);
+            }
+
+        } else {
+
+            ChargingDemo.msg("Compact response is empty");
+
+        }
+
+    }
+
 }
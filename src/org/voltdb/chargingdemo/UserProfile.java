@@ -0,0 +1,136 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Arrays;
+
+/**
+ * A user's binary profile, as stored in user_table.user_profile. Use
+ * {@link UserProfileCodec} to turn it into bytes and back.
+ *
+ */
+public class UserProfile {
+
+  public static final byte FLAG_ROAMING = 1;
+  public static final byte FLAG_DATA_BARRED = 2;
+  public static final byte FLAG_MARKETING_OK = 4;
+
+  byte flags;
+  byte tier;
+  int planId;
+  int homeRegion;
+  long createdMs;
+  long lastTopupMs;
+
+  /**
+   * Bytes we carry around but don't interpret.
+   */
+  byte[] extra = new byte[0];
+
+  public byte getFlags() {
+    return flags;
+  }
+
+  public void setFlags(byte flags) {
+    this.flags = flags;
+  }
+
+  public boolean hasFlag(byte flag) {
+    return (flags & flag) != 0;
+  }
+
+  public byte getTier() {
+    return tier;
+  }
+
+  public void setTier(byte tier) {
+    this.tier = tier;
+  }
+
+  public int getPlanId() {
+    return planId;
+  }
+
+  public void setPlanId(int planId) {
+    this.planId = planId;
+  }
+
+  public int getHomeRegion() {
+    return homeRegion;
+  }
+
+  public void setHomeRegion(int homeRegion) {
+    this.homeRegion = homeRegion;
+  }
+
+  public long getCreatedMs() {
+    return createdMs;
+  }
+
+  public void setCreatedMs(long createdMs) {
+    this.createdMs = createdMs;
+  }
+
+  public long getLastTopupMs() {
+    return lastTopupMs;
+  }
+
+  public void setLastTopupMs(long lastTopupMs) {
+    this.lastTopupMs = lastTopupMs;
+  }
+
+  public byte[] getExtra() {
+    return extra;
+  }
+
+  public void setExtra(byte[] extra) {
+    this.extra = extra == null ? new byte[0] : extra;
+  }
+
+  @Override
+  public String toString() {
+    return "UserProfile [flags=" + flags + ", tier=" + tier + ", planId=" + planId + ", homeRegion=" + homeRegion
+        + ", createdMs=" + createdMs + ", lastTopupMs=" + lastTopupMs + ", extra=" + extra.length + " bytes]";
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+
+    if (!(obj instanceof UserProfile)) {
+      return false;
+    }
+
+    UserProfile other = (UserProfile) obj;
+
+    return flags == other.flags && tier == other.tier && planId == other.planId && homeRegion == other.homeRegion
+        && createdMs == other.createdMs && lastTopupMs == other.lastTopupMs && Arrays.equals(extra, other.extra);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(new long[] { flags, tier, planId, homeRegion, createdMs, lastTopupMs })
+        + Arrays.hashCode(extra);
+  }
+
+}
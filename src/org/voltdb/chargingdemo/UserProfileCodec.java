@@ -0,0 +1,125 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import chargingdemoprocs.UserProfileLayout;
+
+/**
+ * Turns a {@link UserProfile} into the bytes we store in user_table.user_profile
+ * and back again. The layout is in {@link UserProfileLayout}, which the
+ * procedures also use, so the two can't disagree.
+ * <p>
+ * To change a single field of a stored profile call PatchUserProfile with one
+ * of the UserProfileLayout.FIELD_ ids instead of sending the whole thing.
+ *
+ */
+public class UserProfileCodec {
+
+  /**
+   * @param profile
+   * @return profile as CURRENT_VERSION bytes.
+   * @throws IllegalArgumentException
+   *           if profile's extra bytes won't fit.
+   */
+  public static byte[] encode(UserProfile profile) {
+
+    final byte[] extra = profile.getExtra();
+
+    if (extra.length > UserProfileLayout.MAX_EXTRA_LENGTH) {
+      throw new IllegalArgumentException(
+          "Profile has " + extra.length + " extra bytes; limit is " + UserProfileLayout.MAX_EXTRA_LENGTH);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(UserProfileLayout.FIXED_LENGTH + extra.length);
+
+    buffer.put(UserProfileLayout.CURRENT_VERSION);
+    buffer.put(profile.getFlags());
+    buffer.put(profile.getTier());
+    buffer.putInt(profile.getPlanId());
+    buffer.putInt(profile.getHomeRegion());
+    buffer.putLong(profile.getCreatedMs());
+    buffer.putLong(profile.getLastTopupMs());
+    buffer.putShort((short) extra.length);
+    buffer.put(extra);
+
+    return buffer.array();
+  }
+
+  /**
+   * @param bytes
+   * @return the profile in bytes.
+   * @throws IllegalArgumentException
+   *           if bytes isn't a profile layout we know.
+   */
+  public static UserProfile decode(byte[] bytes) {
+
+    if (!UserProfileLayout.isValid(bytes)) {
+      throw new IllegalArgumentException("Not a valid user profile");
+    }
+
+    UserProfile profile = new UserProfile();
+
+    profile.setFlags((byte) UserProfileLayout.getField(bytes, UserProfileLayout.FIELD_FLAGS));
+    profile.setTier((byte) UserProfileLayout.getField(bytes, UserProfileLayout.FIELD_TIER));
+    profile.setPlanId((int) UserProfileLayout.getField(bytes, UserProfileLayout.FIELD_PLAN_ID));
+    profile.setHomeRegion((int) UserProfileLayout.getField(bytes, UserProfileLayout.FIELD_HOME_REGION));
+    profile.setCreatedMs(UserProfileLayout.getField(bytes, UserProfileLayout.FIELD_CREATED_MS));
+    profile.setLastTopupMs(UserProfileLayout.getField(bytes, UserProfileLayout.FIELD_LAST_TOPUP_MS));
+
+    byte[] extra = new byte[UserProfileLayout.getExtraLength(bytes)];
+    System.arraycopy(bytes, UserProfileLayout.FIXED_LENGTH, extra, 0, extra.length);
+    profile.setExtra(extra);
+
+    return profile;
+  }
+
+  /**
+   * Convenience method to make up a profile, the binary equivalent of
+   * ChargingDemo.getArbitraryJsonString.
+   * 
+   * @param userId
+   * @param extraLength
+   *          how many padding bytes to add
+   * @param createdMs
+   * @return an encoded profile
+   */
+  public static byte[] getArbitraryProfile(long userId, int extraLength, long createdMs) {
+
+    UserProfile profile = new UserProfile();
+    profile.setTier((byte) (userId % 4));
+    profile.setPlanId((int) (userId % 10));
+    profile.setHomeRegion((int) (userId % 1000));
+    profile.setCreatedMs(createdMs);
+
+    byte[] extra = new byte[Math.max(0, Math.min(extraLength, UserProfileLayout.MAX_EXTRA_LENGTH))];
+    Arrays.fill(extra, (byte) 'x');
+    profile.setExtra(extra);
+
+    return encode(profile);
+  }
+
+}
@@ -1,11 +1,5 @@
 package org.voltdb.chargingdemo;
 
-import java.util.Arrays;
-
-import org.voltdb.voltutil.stats.SafeHistogramCache;
-
-import chargingdemoprocs.ReferenceData;
-
 /* This file is part of VoltDB.
  * Copyright (C) 2008-2019 VoltDB Inc.
  *
@@ -32,6 +26,10 @@ import chargingdemoprocs.ReferenceData;
 /**
  * Class to keep track of how many transactions a given user has. It also keeps
  * track of whether a transaction is in progress and when it started.
+ * <p>
+ * The data itself lives in a {@link UserStateStore}; a UserState is a view of
+ * one user in it. Views are cheap and can be moved to another user with
+ * {@link #moveTo(int)}, so a thread can use one for all its users.
  * 
  * @author drolfe
  *
@@ -49,96 +47,81 @@ public class UserState {
   public static final long SESSION_NOT_STARTED = -1;
 
   /**
-   * Used to report stats
-   */
-  SafeHistogramCache shc = SafeHistogramCache.getInstance();
-
-  /**
-   * ID of user.
+   * Used for txStartNanos when there isn't a transaction in flight. We can't
+   * use zero as System.nanoTime() can be anything, including negative.
    */
-  int id = 0;
+  static final long NO_TX_IN_FLIGHT = Long.MIN_VALUE;
 
-  /**
-   * How many transactions we've for this user. Increments by 1 each time...
-   */
-  int userStatus = 0;
+  final UserStateStore store;
 
   /**
-   * Each user has multiple products, each of which has its own sessionId, which
-   * is created by ReportQuotaUsage. The session Ids are used so we know to
-   * cancel reservations when we report usage.
+   * ID of user, which is their index in store.
    */
-  private long[] productSessionIds = new long[ChargingDemo.PRODUCT_NAMES.length];
-
-  private long[] productAllocations = new long[ChargingDemo.PRODUCT_NAMES.length];
-
-  /**
-   * When a transaction started, or zero if there isn't one.
-   */
-  long txStartMs = 0;
+  int id = 0;
 
   /**
-   * Balance, not including effects of in flight transactions. Is updated
-   * by UpdateSession and ReportQuotaUsage.
+   * Create a view of a user.
+   * 
+   * @param store
+   * @param id
    */
-  long balance = 0;
+  public UserState(UserStateStore store, int id) {
+    this.store = store;
+    this.id = id;
+  }
 
   /**
-   * Create a record for a user.
+   * Look at a different user.
    * 
    * @param id
+   * @return this
    */
-  public UserState(int id, int balance) {
+  public UserState moveTo(int id) {
     this.id = id;
-    this.balance = balance;
-    userStatus = STATUS_NEW_USER;
+    return this;
+  }
 
-    for (int i = 0; i < productSessionIds.length; i++) {
-      productSessionIds[i] = SESSION_NOT_STARTED;
-      productAllocations[i] = 0;
-    }
+  public int getId() {
+    return id;
   }
 
   /**
    * Report start of transaction.
    */
   public void startTran() {
+    startTran(System.nanoTime());
+  }
 
-    if (isTxInFlight()) {
-      shc.incCounter("Multiple Transactions in flight at once");
-    }
-
-    txStartMs = System.currentTimeMillis();
+  /**
+   * Report start of transaction.
+   * 
+   * @param intendedStartNanos
+   *          System.nanoTime() when the transaction should have started.
+   *          Latency is measured from here.
+   */
+  public void startTran(long intendedStartNanos) {
+    store.startTran(id, intendedStartNanos);
   }
 
   /**
    * Get the VoltDb generated Session ID for this user/product.
    * 
    * @param productId
-   * @return session Id
-   * @throws SessionidNotAvailableYetException
-   *           if a transaction is in flight.
+   * @return session Id, or SESSION_NOT_STARTED
    */
   public long getProductSessionId(int productId) {
-    
-    return productSessionIds[productId];
+    return store.getProductSessionId(id, productId);
   }
-  
-public long getProductAllocation(int productId) {
-    
-    return productSessionIds[productId];
+
+  public long getProductAllocation(int productId) {
+    return store.getProductAllocation(id, productId);
   }
 
   /**
    * @return the txInFlight
    */
   public boolean isTxInFlight() {
-
-    if (txStartMs > 0) {
-      return true;
-    }
-
-    return false;
+    return store.isTxInFlight(id);
   }
 
   /**
@@ -150,34 +133,45 @@ public long getProductAllocation(int productId) {
    * @param statusByte
    */
   public void reportEndTransaction(int productId, long sessionid, byte statusByte, long allocation) {
+    store.reportEndTransaction(id, productId, sessionid, statusByte, allocation);
+  }
 
-    if (productSessionIds[productId] != SESSION_NOT_STARTED) {
-      // We don't track the latency for the first call as mutiple requests
-      // in flight at once...
-      shc.reportLatency("ReportQuotaUsage", txStartMs, "", 250);
-    }
-
-    productSessionIds[productId] = sessionid;
-    productAllocations[productId] = allocation;
-
-    if (statusByte == ReferenceData.STATUS_ALL_UNITS_ALLOCATED) {
-      shc.reportLatency("STATUS_ALL_UNITS_ALLOCATED", txStartMs, "", 50);
-    } else if (statusByte == ReferenceData.STATUS_SOME_UNITS_ALLOCATED) {
-      shc.reportLatency("STATUS_SOME_UNITS_ALLOCATED", txStartMs, "", 50);
-    } else if (statusByte == ReferenceData.STATUS_NO_MONEY) {
-      shc.reportLatency("STATUS_NO_MONEY", txStartMs, "", 50);
-    }
+  /**
+   * Record the session and allocation for a product without ending the
+   * transaction.
+   * 
+   * @param productId
+   * @param sessionid
+   * @param allocation
+   */
+  public void reportProductSession(int productId, long sessionid, long allocation) {
+    store.reportProductSession(id, productId, sessionid, allocation);
+  }
 
-    txStartMs = 0;
+  /**
+   * Record the status of one of the products in a batch.
+   * 
+   * @param statusByte
+   */
+  public void reportBatchStatus(byte statusByte) {
+    store.reportBatchStatus(id, statusByte);
+  }
 
+  /**
+   * End a transaction that reported usage for several products at once. The
+   * products should already have been updated using reportProductSession and
+   * reportBatchStatus.
+   */
+  public void reportEndBatch() {
+    store.reportEndBatch(id);
   }
 
   public int getUserStatus() {
-    return userStatus;
+    return store.getUserStatus(id);
   }
 
   public void IncUserStatus() {
-    userStatus++;
+    store.incUserStatus(id);
   }
 
   /*
@@ -187,19 +181,15 @@ public long getProductAllocation(int productId) {
    */
   @Override
   public String toString() {
-    String desc = "UserState [id=" + id + ", userStatus=" + userStatus + ", productSessionIds="
-        + Arrays.toString(productSessionIds) + ", txStartMs=" + txStartMs + ", balance=" + balance + "]";
-
-    return desc;
+    return store.toString(id);
   }
 
   public void reportBalance(long balance) {
-    this.balance = balance;
-
+    store.reportBalance(id, balance);
   }
 
   public long getBalance() {
-    return balance;
+    return store.getBalance(id);
   }
 
 }
@@ -0,0 +1,338 @@
+package org.voltdb.chargingdemo;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2019 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.voltdb.voltutil.stats.LatencyHandle;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+import chargingdemoprocs.ReferenceData;
+
+/**
+ * What the client knows about every user, kept as one primitive array per
+ * field instead of one object per user. User n's products are at n *
+ * productCount to n * productCount + productCount - 1 in the product arrays.
+ * This costs about 80 bytes a user for five products, as opposed to about 165
+ * for the old UserState objects, and gives the garbage collector nothing to
+ * trace.
+ * <p>
+ * Callbacks update users through the methods here. Code that works on one
+ * user for a while can use a {@link UserState}, which is a view of one row.
+ * <p>
+ * Anyone who reads or changes a user once transactions are running must hold
+ * {@link #lock(int)} for them. That means the callbacks, which run on the
+ * client's threads, and the TransactionWorker that owns the user. The arrays
+ * are plain, so the lock is also what makes sure one thread sees what another
+ * has written - it isn't enough that each TransactionWorker has its own users.
+ * Locks are striped, so responses for different users can be handled by
+ * different client threads at once.
+ *
+ */
+public class UserStateStore {
+
+  /**
+   * Used to report stats. We look these up once as every user reports to them.
+   */
+  static final SafeHistogramCache shc = SafeHistogramCache.getInstance();
+  static final LongAdder multipleInFlight = shc.getCounterHandle("Multiple Transactions in flight at once");
+  static final LatencyHandle reportQuotaUsageLatency = shc.getLatencyHandle("ReportQuotaUsage");
+  static final LatencyHandle reportQuotaUsageBatchLatency = shc.getLatencyHandle("ReportQuotaUsageBatch");
+  static final LatencyHandle allUnitsAllocatedLatency = shc.getLatencyHandle("STATUS_ALL_UNITS_ALLOCATED");
+  static final LatencyHandle someUnitsAllocatedLatency = shc.getLatencyHandle("STATUS_SOME_UNITS_ALLOCATED");
+  static final LatencyHandle noMoneyLatency = shc.getLatencyHandle("STATUS_NO_MONEY");
+  static final LongAdder lockContention = shc.getCounterHandle("User lock contention");
+
+  /**
+   * How many locks users share. Must be a power of 2.
+   */
+  public static final int DEFAULT_LOCK_STRIPES = 256;
+
+  final int userCount;
+  final int productCount;
+
+  /**
+   * How many transactions we've done for each user.
+   */
+  final int[] userStatus;
+
+  /**
+   * Balance, not including effects of in flight transactions.
+   */
+  final long[] balances;
+
+  /**
+   * System.nanoTime() when a user's transaction started, or
+   * UserState.NO_TX_IN_FLIGHT.
+   */
+  final long[] txStartNanos;
+
+  /**
+   * Session id of each user's product, created by ReportQuotaUsage, or
+   * UserState.SESSION_NOT_STARTED.
+   */
+  final long[] productSessionIds;
+
+  /**
+   * Units allocated for each user's product.
+   */
+  final int[] productAllocations;
+
+  /**
+   * User n is guarded by locks[n & (locks.length - 1)].
+   */
+  final ReentrantLock[] locks;
+
+  /**
+   * Create a store for userCount users, all of whom are new and have
+   * initialBalance.
+   * 
+   * @param userCount
+   * @param productCount
+   * @param initialBalance
+   * @param lockStripes
+   *          how many locks users share. Rounded up to a power of 2.
+   */
+  public UserStateStore(int userCount, int productCount, long initialBalance, int lockStripes) {
+
+    if ((long) userCount * productCount > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(userCount + " users with " + productCount + " products is too many");
+    }
+
+    this.userCount = userCount;
+    this.productCount = productCount;
+
+    userStatus = new int[userCount];
+    balances = new long[userCount];
+    txStartNanos = new long[userCount];
+    productSessionIds = new long[userCount * productCount];
+    productAllocations = new int[userCount * productCount];
+
+    Arrays.fill(balances, initialBalance);
+    Arrays.fill(txStartNanos, UserState.NO_TX_IN_FLIGHT);
+    Arrays.fill(productSessionIds, UserState.SESSION_NOT_STARTED);
+
+    int stripes = 1;
+
+    while (stripes < lockStripes) {
+      stripes <<= 1;
+    }
+
+    locks = new ReentrantLock[stripes];
+
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * @param userCount
+   * @param initialBalance
+   */
+  public UserStateStore(int userCount, long initialBalance) {
+    this(userCount, ChargingDemo.PRODUCT_NAMES.length, initialBalance, DEFAULT_LOCK_STRIPES);
+  }
+
+  /**
+   * Lock user, along with any other users that share their stripe. Every call
+   * must be followed by {@link #unlock(int)}. If someone else has the lock we
+   * count it in "User lock contention" before waiting.
+   * 
+   * @param user
+   */
+  public void lock(int user) {
+
+    final ReentrantLock lock = locks[user & (locks.length - 1)];
+
+    if (!lock.tryLock()) {
+      lockContention.increment();
+      lock.lock();
+    }
+  }
+
+  /**
+   * @param user
+   */
+  public void unlock(int user) {
+    locks[user & (locks.length - 1)].unlock();
+  }
+
+  /**
+   * @param user
+   * @return a new view of user.
+   */
+  public UserState get(int user) {
+    return new UserState(this, user);
+  }
+
+  public int size() {
+    return userCount;
+  }
+
+  /**
+   * Report start of transaction.
+   * 
+   * @param user
+   * @param intendedStartNanos
+   *          System.nanoTime() when the transaction should have started.
+   *          Latency is measured from here.
+   */
+  public void startTran(int user, long intendedStartNanos) {
+
+    if (isTxInFlight(user)) {
+      multipleInFlight.increment();
+    }
+
+    txStartNanos[user] = intendedStartNanos;
+  }
+
+  /**
+   * Forget a transaction that startTran was called for but was never sent, so
+   * nothing will ever end it. No latency is recorded.
+   * 
+   * @param user
+   */
+  public void cancelTran(int user) {
+    txStartNanos[user] = UserState.NO_TX_IN_FLIGHT;
+  }
+
+  public boolean isTxInFlight(int user) {
+    return txStartNanos[user] != UserState.NO_TX_IN_FLIGHT;
+  }
+
+  public long getProductSessionId(int user, int productId) {
+    return productSessionIds[(user * productCount) + productId];
+  }
+
+  public long getProductAllocation(int user, int productId) {
+    return productAllocations[(user * productCount) + productId];
+  }
+
+  /**
+   * We measure latency by comparing when this call happens to when startTran
+   * was called.
+   * 
+   * @param user
+   * @param productId
+   * @param sessionid
+   * @param statusByte
+   * @param allocation
+   */
+  public void reportEndTransaction(int user, int productId, long sessionid, byte statusByte, long allocation) {
+
+    final long startNanos = txStartNanos[user];
+
+    if (getProductSessionId(user, productId) != UserState.SESSION_NOT_STARTED) {
+      // We don't track the latency for the first call as mutiple requests
+      // in flight at once...
+      reportQuotaUsageLatency.reportLatencyNanos(startNanos, "");
+    }
+
+    reportProductSession(user, productId, sessionid, allocation);
+
+    reportStatusLatency(startNanos, statusByte);
+
+    txStartNanos[user] = UserState.NO_TX_IN_FLIGHT;
+  }
+
+  /**
+   * Record the status of one of the products in a batch, so that batched runs
+   * fill in the same status latency stats as reportEndTransaction does. Call
+   * before reportEndBatch.
+   * 
+   * @param user
+   * @param statusByte
+   */
+  public void reportBatchStatus(int user, byte statusByte) {
+    reportStatusLatency(txStartNanos[user], statusByte);
+  }
+
+  private static void reportStatusLatency(long startNanos, byte statusByte) {
+
+    if (statusByte == ReferenceData.STATUS_ALL_UNITS_ALLOCATED) {
+      allUnitsAllocatedLatency.reportLatencyNanos(startNanos, "");
+    } else if (statusByte == ReferenceData.STATUS_SOME_UNITS_ALLOCATED) {
+      someUnitsAllocatedLatency.reportLatencyNanos(startNanos, "");
+    } else if (statusByte == ReferenceData.STATUS_NO_MONEY) {
+      noMoneyLatency.reportLatencyNanos(startNanos, "");
+    }
+  }
+
+  /**
+   * Record the session and allocation for a product without ending the
+   * transaction.
+   * 
+   * @param user
+   * @param productId
+   * @param sessionid
+   * @param allocation
+   */
+  public void reportProductSession(int user, int productId, long sessionid, long allocation) {
+    productSessionIds[(user * productCount) + productId] = sessionid;
+    productAllocations[(user * productCount) + productId] = (int) allocation;
+  }
+
+  /**
+   * End a transaction that reported usage for several products at once. The
+   * products should already have been updated using reportProductSession and
+   * reportBatchStatus.
+   * 
+   * @param user
+   */
+  public void reportEndBatch(int user) {
+
+    reportQuotaUsageBatchLatency.reportLatencyNanos(txStartNanos[user], "");
+
+    txStartNanos[user] = UserState.NO_TX_IN_FLIGHT;
+  }
+
+  public int getUserStatus(int user) {
+    return userStatus[user];
+  }
+
+  public void incUserStatus(int user) {
+    userStatus[user]++;
+  }
+
+  public void reportBalance(int user, long balance) {
+    balances[user] = balance;
+  }
+
+  public long getBalance(int user) {
+    return balances[user];
+  }
+
+  /**
+   * @param user
+   * @return the same description the old UserState.toString() gave.
+   */
+  public String toString(int user) {
+    return "UserState [id=" + user + ", userStatus=" + userStatus[user] + ", productSessionIds="
+        + Arrays.toString(Arrays.copyOfRange(productSessionIds, user * productCount, (user + 1) * productCount))
+        + ", txStartNanos=" + txStartNanos[user] + ", balance=" + balances[user] + "]";
+  }
+
+}
@@ -0,0 +1,224 @@
+package org.voltdb.voltutil.stats;
+
+/* This file is part of VoltDB.
+ * Copyright (C) 2008-2017 VoltDB Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram that many threads can report to at once without taking a
+ * lock or creating any objects. Each thread increments one of several stripes,
+ * picked using its thread id, so threads seldom touch the same counters. The
+ * stripes are only added together when someone asks for a snapshot.
+ * <p>
+ * Buckets are the same log-linear ones StatsHistogram uses, so snapshots have
+ * nanosecond resolution.
+ * <p>
+ * Get one from SafeHistogramCache.getLatencyHandle() and keep it, instead of
+ * looking it up by name each time.
+ */
+public class LatencyHandle {
+
+	/**
+	 * Each stripe is a few KB, so we don't want one per thread on a big box.
+	 */
+	private static final int MAX_STRIPES = 16;
+
+	final String name;
+	final int precisionBits;
+	final long highestTrackableNanos;
+	final int bucketCount;
+
+	private final AtomicLongArray[] stripes;
+	private final int stripeMask;
+
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Last comment seen for each bucket. Comments are only a debugging aid so we
+	 * don't care if a thread sees an old one.
+	 */
+	private final String[] comments;
+
+	volatile String description = "";
+
+	LatencyHandle(String name, int precisionBits, long highestTrackableNanos) {
+
+		this.name = name;
+		this.precisionBits = precisionBits;
+		this.highestTrackableNanos = highestTrackableNanos;
+		this.bucketCount = StatsHistogram.getBucketCount(precisionBits, highestTrackableNanos);
+
+		// Round up to a power of two so we can use a mask instead of '%'...
+		int stripeCount = 1;
+
+		while (stripeCount < Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_STRIPES)) {
+			stripeCount *= 2;
+		}
+
+		stripes = new AtomicLongArray[stripeCount];
+		stripeMask = stripeCount - 1;
+
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new AtomicLongArray(bucketCount);
+		}
+
+		comments = new String[bucketCount];
+
+		for (int i = 0; i < comments.length; i++) {
+			comments[i] = "";
+		}
+	}
+
+	/**
+	 * Record a latency.
+	 * 
+	 * @param nanos
+	 * @param comment
+	 */
+	public void reportNanos(long nanos, String comment) {
+
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		final int index = nanos == 0 ? 0
+				: StatsHistogram.getIndex(Math.min(nanos, highestTrackableNanos), precisionBits);
+
+		stripes[(int) Thread.currentThread().getId() & stripeMask].incrementAndGet(index);
+		totalNanos.add(nanos);
+
+		long currentMax = maxNanos.get();
+
+		while (currentMax < nanos && !maxNanos.compareAndSet(currentMax, nanos)) {
+			currentMax = maxNanos.get();
+		}
+
+		if (comment != null && comment.length() > 0) {
+			comments[index] = comment;
+		}
+	}
+
+	/**
+	 * @param latency
+	 *            in ms
+	 * @param comment
+	 */
+	public void report(int latency, String comment) {
+		reportNanos(latency * 1000000L, comment);
+	}
+
+	/**
+	 * Record how long it's been since startTime.
+	 * 
+	 * @param startTime
+	 *            a System.currentTimeMillis() value
+	 * @param comment
+	 */
+	public void reportLatency(long startTime, String comment) {
+		report((int) (System.currentTimeMillis() - startTime), comment);
+	}
+
+	/**
+	 * Record how long it's been since startNanos.
+	 * 
+	 * @param startNanos
+	 *            a System.nanoTime() value
+	 * @param comment
+	 */
+	public void reportLatencyNanos(long startNanos, String comment) {
+		reportNanos(System.nanoTime() - startNanos, comment);
+	}
+
+	/**
+	 * @return true if anything has been reported since we were created or reset.
+	 */
+	public boolean hasReports() {
+
+		for (int s = 0; s < stripes.length; s++) {
+			for (int i = 0; i < bucketCount; i++) {
+				if (stripes[s].get(i) > 0) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Add the stripes together. Reports that arrive while we're doing this may
+	 * or may not be included.
+	 * 
+	 * @return a new StatsHistogram with what we've seen so far.
+	 */
+	public StatsHistogram snapshot() {
+
+		StatsHistogram h = new StatsHistogram(name, precisionBits, highestTrackableNanos);
+		h.setDescription(description);
+
+		long reports = 0;
+
+		for (int i = 0; i < bucketCount; i++) {
+
+			long total = 0;
+
+			for (int s = 0; s < stripes.length; s++) {
+				total += stripes[s].get(i);
+			}
+
+			if (total > 0) {
+				h.addCount(i, total, comments[i]);
+				reports += total;
+			}
+		}
+
+		h.addTotals(reports, totalNanos.sum(), maxNanos.get());
+
+		return h;
+	}
+
+	/**
+	 * Zero everything. Threads holding this handle can carry on using it.
+	 */
+	public void reset() {
+
+		for (int s = 0; s < stripes.length; s++) {
+			for (int i = 0; i < bucketCount; i++) {
+				stripes[s].set(i, 0);
+			}
+		}
+
+		totalNanos.reset();
+		maxNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+}
@@ -24,77 +24,153 @@ package org.voltdb.voltutil.stats;
  */
 
 import java.util.HashMap;
-
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and counters, shared by every thread in the client.
+ * <p>
+ * Reporting doesn't take any locks. Latencies go into a LatencyHandle and
+ * counters into a LongAdder, both of which are striped so threads seldom get
+ * in each other's way. Busy callers should get a handle once with
+ * getLatencyHandle() or getCounterHandle() and keep it. The older name based
+ * methods still work, but do a map lookup each time.
+ * <p>
+ * Reads such as get() and toString() add the stripes together and return a
+ * snapshot, so they are slower than they used to be but don't hold anyone up.
+ * reset() zeroes things in place, so handles stay valid.
+ */
 public class SafeHistogramCache {
 
-	private static SafeHistogramCache instance = null;
+	private static final SafeHistogramCache instance = new SafeHistogramCache();
+
+	final ConcurrentHashMap<String, LatencyHandle> theLatencyHandleMap = new ConcurrentHashMap<String, LatencyHandle>();
+	final ConcurrentHashMap<String, LongAdder> theCounterMap = new ConcurrentHashMap<String, LongAdder>();
+
+	/**
+	 * Histograms created by subtractTimes(). These aren't reported to.
+	 */
+	final ConcurrentHashMap<String, StatsHistogram> theDerivedHistogramMap = new ConcurrentHashMap<String, StatsHistogram>();
 
-	HashMap<String, StatsHistogram> theHistogramMap = new HashMap<String, StatsHistogram>();
-	HashMap<String, Long> theCounterMap = new HashMap<String, Long>();
+	/**
+	 * Size histograms are seldom used, so they still use a lock.
+	 */
 	HashMap<String, SizeHistogram> theSizeHistogramMap = new HashMap<String, SizeHistogram>();
 
 	final int DEFAULT_SIZE = 100;
 
-	long lastStatsTime = System.currentTimeMillis();
+	volatile long lastStatsTime = System.currentTimeMillis();
 
 	protected SafeHistogramCache() {
 		// Exists only to defeat instantiation.
 	}
 
 	public static SafeHistogramCache getInstance() {
-		if (instance == null) {
-			instance = new SafeHistogramCache();
-		}
 		return instance;
 	}
 
-	public void reset() {
-		synchronized (theHistogramMap) {
-			synchronized (theCounterMap) {
-				synchronized (theSizeHistogramMap) {
-					theHistogramMap = new HashMap<String, StatsHistogram>();
-					theCounterMap = new HashMap<String, Long>();
-					theSizeHistogramMap = new HashMap<String, SizeHistogram>();
-
-				}
+	/**
+	 * @param type
+	 * @return the handle for type, creating it if needed.
+	 */
+	public LatencyHandle getLatencyHandle(String type) {
+
+		LatencyHandle h = theLatencyHandleMap.get(type);
+
+		if (h == null) {
+			h = new LatencyHandle(type, StatsHistogram.DEFAULT_PRECISION_BITS,
+					StatsHistogram.DEFAULT_HIGHEST_TRACKABLE_NANOS);
+			LatencyHandle existing = theLatencyHandleMap.putIfAbsent(type, h);
+
+			if (existing != null) {
+				h = existing;
 			}
 		}
+
+		return h;
 	}
 
+	/**
+	 * @param type
+	 * @param defaultSize
+	 *            no longer used, as histograms aren't limited to a fixed number
+	 *            of ms.
+	 * @return the handle for type, creating it if needed.
+	 */
+	public LatencyHandle getLatencyHandle(String type, int defaultSize) {
+		return getLatencyHandle(type);
+	}
 
-	public StatsHistogram get(String type) {
-		StatsHistogram h = null;
+	/**
+	 * @param type
+	 * @return the counter for type, creating it if needed.
+	 */
+	public LongAdder getCounterHandle(String type) {
 
-		synchronized (theHistogramMap) {
-			h = theHistogramMap.get(type);
+		LongAdder l = theCounterMap.get(type);
 
-			if (h == null) {
-				h = new StatsHistogram(DEFAULT_SIZE);
-				theHistogramMap.put(type, h);
+		if (l == null) {
+			l = new LongAdder();
+			LongAdder existing = theCounterMap.putIfAbsent(type, l);
+
+			if (existing != null) {
+				l = existing;
 			}
 		}
 
-		return h;
+		return l;
 	}
 
-	public void clear(String type) {
-		
-		StatsHistogram oldH = null;
-		StatsHistogram newH = null;
+	public void reset() {
 
-		synchronized (theHistogramMap) {
-			oldH = theHistogramMap.remove(type);
-			
-			if (oldH == null) {
-				newH = new StatsHistogram(100);
-			} else {
-				newH = new StatsHistogram(oldH.maxSize);
-			}
-			theHistogramMap.put(type, newH);
+		for (LatencyHandle h : theLatencyHandleMap.values()) {
+			h.reset();
+		}
 
-			
+		for (LongAdder l : theCounterMap.values()) {
+			l.reset();
+		}
+
+		theDerivedHistogramMap.clear();
+
+		synchronized (theSizeHistogramMap) {
+			theSizeHistogramMap = new HashMap<String, SizeHistogram>();
+		}
+	}
+
+	/**
+	 * @param type
+	 * @return a snapshot of histogram 'type'.
+	 */
+	public StatsHistogram get(String type) {
+
+		LatencyHandle h = theLatencyHandleMap.get(type);
+
+		if (h != null) {
+			return h.snapshot();
+		}
+
+		StatsHistogram derived = theDerivedHistogramMap.get(type);
+
+		if (derived != null) {
+			return derived;
 		}
 
+		return new StatsHistogram(type, StatsHistogram.DEFAULT_PRECISION_BITS,
+				StatsHistogram.DEFAULT_HIGHEST_TRACKABLE_NANOS);
+	}
+
+	public void clear(String type) {
+
+		theDerivedHistogramMap.remove(type);
+
+		LatencyHandle h = theLatencyHandleMap.get(type);
+
+		if (h != null) {
+			h.reset();
+		}
 	}
 
 	public SizeHistogram getSize(String type) {
@@ -113,55 +189,29 @@ public class SafeHistogramCache {
 	}
 
 	public long getCounter(String type) {
-		Long l = new Long(0);
 
-		synchronized (theCounterMap) {
-			l = theCounterMap.get(type);
-			if (l == null) {
-				return 0;
-			}
+		LongAdder l = theCounterMap.get(type);
+
+		if (l == null) {
+			return 0;
 		}
 
-		return l.longValue();
+		return l.sum();
 	}
 
 	public void setCounter(String type, long value) {
 
-		synchronized (theCounterMap) {
-			Long l = theCounterMap.get(type);
-			if (l == null) {
-				l = new Long(value);
-
-			}
-			theCounterMap.put(type, l);
-		}
-
+		LongAdder l = getCounterHandle(type);
+		l.reset();
+		l.add(value);
 	}
 
 	public void incCounter(String type) {
-
-		synchronized (theCounterMap) {
-			Long l = theCounterMap.get(type);
-			if (l == null) {
-				l = new Long(0);
-			}
-			theCounterMap.put(type, l.longValue() + 1);
-		}
-
+		getCounterHandle(type).increment();
 	}
 
 	public void report(String type, int value, String comment, int defaultSize) {
-
-		synchronized (theHistogramMap) {
-			StatsHistogram h = theHistogramMap.get(type);
-			if (h == null) {
-				h = new StatsHistogram(type, defaultSize);
-				theHistogramMap.put(type, h);
-			}
-			h.report(value, comment);
-
-		}
-
+		getLatencyHandle(type).report(value, comment);
 	}
 
 	public void reportSize(String type, int size, String comment, int defaultSize) {
@@ -180,32 +230,24 @@ public class SafeHistogramCache {
 	}
 
 	public void reportLatency(String type, long start, String comment, int defaultSize) {
+		getLatencyHandle(type).reportLatency(start, comment);
+	}
 
-		synchronized (theHistogramMap) {
-			StatsHistogram h = theHistogramMap.get(type);
-			if (h == null) {
-				h = new StatsHistogram(type, defaultSize);
-
-			}
-			h.reportLatency(start, comment);
-			theHistogramMap.put(type, h);
-		}
-
+	/**
+	 * @param type
+	 * @param startNanos
+	 *            a System.nanoTime() value
+	 * @param comment
+	 */
+	public void reportLatencyNanos(String type, long startNanos, String comment) {
+		getLatencyHandle(type).reportLatencyNanos(startNanos, comment);
 	}
 
 	public StatsHistogram subtractTimes(String bigHist, String smallHist, String name) {
 
-		StatsHistogram hBig;
-		StatsHistogram hSmall;
-		synchronized (theHistogramMap) {
-			hBig = theHistogramMap.get(bigHist);
-			hSmall = theHistogramMap.get(smallHist);
-		}
-		StatsHistogram delta = StatsHistogram.subtract(name, hBig, hSmall);
+		StatsHistogram delta = StatsHistogram.subtract(name, get(bigHist), get(smallHist));
 
-		synchronized (theHistogramMap) {
-			theHistogramMap.put(name, delta);
-		}
+		theDerivedHistogramMap.put(name, delta);
 
 		return delta;
 
@@ -215,44 +257,75 @@ public class SafeHistogramCache {
 	 * @return true if we have stats to report...
 	 */
 	public boolean hasStats() {
-		
-		synchronized (theHistogramMap) {
-			synchronized (theCounterMap) {
-				synchronized (theSizeHistogramMap) {
 
-					if (! theHistogramMap.isEmpty()) {
-						return true;
-					}
+		for (LatencyHandle h : theLatencyHandleMap.values()) {
+			if (h.hasReports()) {
+				return true;
+			}
+		}
 
-					if (! theCounterMap.isEmpty()) {
-						return true;
-					}
+		for (LongAdder l : theCounterMap.values()) {
+			if (l.sum() != 0) {
+				return true;
+			}
+		}
 
-					if (! theSizeHistogramMap.isEmpty()) {
-						return true;
-					}
+		if (!theDerivedHistogramMap.isEmpty()) {
+			return true;
+		}
 
-					
-				}
+		synchronized (theSizeHistogramMap) {
+			if (!theSizeHistogramMap.isEmpty()) {
+				return true;
 			}
-		}		
+		}
+
 		return false;
-		
+
 	}
+
+	/**
+	 * @return a snapshot of every histogram that has something in it, sorted by
+	 *         name.
+	 */
+	public Map<String, StatsHistogram> getHistogramSnapshot() {
+
+		TreeMap<String, StatsHistogram> snapshot = new TreeMap<String, StatsHistogram>(theDerivedHistogramMap);
+
+		for (LatencyHandle h : theLatencyHandleMap.values()) {
+			if (h.hasReports()) {
+				snapshot.put(h.name, h.snapshot());
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * @return a snapshot of every counter, sorted by name.
+	 */
+	public Map<String, Long> getCounterSnapshot() {
+
+		TreeMap<String, Long> snapshot = new TreeMap<String, Long>();
+
+		for (Map.Entry<String, LongAdder> entry : theCounterMap.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().sum());
+		}
+
+		return snapshot;
+	}
+
 	@Override
 	public String toString() {
-		String data = "";
-		synchronized (theHistogramMap) {
-			synchronized (theCounterMap) {
-				synchronized (theSizeHistogramMap) {
 
-					data = theHistogramMap.toString() + System.lineSeparator() + theCounterMap.toString()
-							+ System.lineSeparator() + theSizeHistogramMap.toString();
-				}
-			}
+		String sizeData;
+
+		synchronized (theSizeHistogramMap) {
+			sizeData = theSizeHistogramMap.toString();
 		}
 
-		return data;
+		return getHistogramSnapshot().toString() + System.lineSeparator() + getCounterSnapshot().toString()
+				+ System.lineSeparator() + sizeData;
 	}
 
 	public String toStringIfOlderThanMs(int statsInterval) {
@@ -260,13 +333,10 @@ public class SafeHistogramCache {
 		String data = "";
 
 		if (lastStatsTime + statsInterval < System.currentTimeMillis()) {
-			synchronized (theHistogramMap) {
-
-				data = theHistogramMap.toString();
-				lastStatsTime = System.currentTimeMillis();
-			}
-
+			data = getHistogramSnapshot().toString();
+			lastStatsTime = System.currentTimeMillis();
 		}
+
 		return data;
 	}
 
@@ -287,17 +357,7 @@ public class SafeHistogramCache {
 	}
 	
 	public void init(String name, int batchSize, String description) {
-
-		synchronized (theHistogramMap) {
-			StatsHistogram h = theHistogramMap.get(name);
-			if (h == null) {
-				h = new StatsHistogram(name, batchSize);
-				h.setDescription(description);
-				theHistogramMap.put(name, h);
-			}
-
-		}
-
+		getLatencyHandle(name).description = description;
 	}
 
-}
\ No newline at end of file
+}
@@ -23,37 +23,97 @@
 
 package org.voltdb.voltutil.stats;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histogram with log-linear buckets.
+ * <p>
+ * Values are recorded in nanoseconds. Each power of two is split into 2 ^
+ * precisionBits equal sized buckets, so a value is always within 1 /
+ * (2 ^ precisionBits) of the bucket it lands in, whether it's 20 microseconds
+ * or 20 seconds. Values over highestTrackableNanos are counted in the last
+ * bucket, but still count towards the average and the max. Counts are longs,
+ * so nothing rolls over.
+ * <p>
+ * The older millisecond based methods (report, reportLatency, getLatencyPct,
+ * getLatencyAverage etc) still take and return milliseconds.
+ * <p>
+ * Histograms with the same precision and range can be merged, which is how
+ * LatencyHandle builds a snapshot from its stripes.
+ */
 public class StatsHistogram {
 
-	final String NUMFORMAT_DECIMAL = "% ,16.0f";
+	final String NUMFORMAT_DECIMAL = "% ,16.3f";
 	final String NUMFORMAT_INTEGER = "%16d";
 
-	int maxSize = 1000;
-	double[] latencyHistogram = new double[0];
+	/**
+	 * 64 buckets per power of two, so values are to within about 1.6%.
+	 */
+	public static final int DEFAULT_PRECISION_BITS = 6;
+
+	public static final long DEFAULT_HIGHEST_TRACKABLE_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	static final double NANOS_PER_MS = 1000000;
+
+	final int precisionBits;
+	final long highestTrackableNanos;
+
+	long[] counts = new long[0];
 	String[] latencyComment = new String[0];
-	boolean isRolledOver = false;
 	String name = "";
 	long reports = 0;
-	int maxUsedSize = 0;
+	long totalNanos = 0;
+	long maxNanos = 0;
 	String description = "";
-	
-
 
+	/**
+	 * @param maxSize
+	 *            no longer used, as the range is no longer limited to a few
+	 *            hundred ms. Kept so existing callers still work.
+	 */
 	public StatsHistogram(int maxSize) {
-		init("", maxSize);
+		this("", DEFAULT_PRECISION_BITS, DEFAULT_HIGHEST_TRACKABLE_NANOS);
 	}
 
+	/**
+	 * @param name
+	 * @param maxSize
+	 *            no longer used, as the range is no longer limited to a few
+	 *            hundred ms. Kept so existing callers still work.
+	 */
 	public StatsHistogram(String name, int maxSize) {
-		init(name, maxSize);
+		this(name, DEFAULT_PRECISION_BITS, DEFAULT_HIGHEST_TRACKABLE_NANOS);
 	}
 
-	public void init(String name, int maxSize) {
+	/**
+	 * @param name
+	 * @param precisionBits
+	 *            each power of two is split into 2 ^ precisionBits buckets. Between
+	 *            1 and 16.
+	 * @param highestTrackableNanos
+	 *            anything bigger goes in the last bucket.
+	 */
+	public StatsHistogram(String name, int precisionBits, long highestTrackableNanos) {
+
+		if (precisionBits < 1 || precisionBits > 16) {
+			throw new IllegalArgumentException("precisionBits must be between 1 and 16, not " + precisionBits);
+		}
+
+		if (highestTrackableNanos < 1) {
+			throw new IllegalArgumentException("highestTrackableNanos must be positive");
+		}
+
+		this.precisionBits = precisionBits;
+		this.highestTrackableNanos = highestTrackableNanos;
+		init(name);
+	}
+
+	public void init(String name) {
 
 		this.name = name;
-		this.maxSize = maxSize;
 
-		latencyHistogram = new double[maxSize];
-		latencyComment = new String[maxSize];
+		counts = new long[getBucketCount(precisionBits, highestTrackableNanos)];
+		latencyComment = new String[counts.length];
 
 		for (int i = 0; i < latencyComment.length; i++) {
 			latencyComment[i] = "";
@@ -64,152 +124,268 @@ public class StatsHistogram {
 	}
 
 	public void resetLatency() {
-		for (int i = 0; i < maxSize; i++) {
-			latencyHistogram[i] = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
 		}
 
 		reports = 0;
-		maxUsedSize = 0;
+		totalNanos = 0;
+		maxNanos = 0;
 	}
 
-	public void report(int latency, String comment) {
+	/**
+	 * @param nanos
+	 * @param precisionBits
+	 * @return which bucket nanos goes in.
+	 */
+	static int getIndex(long nanos, int precisionBits) {
 
-		reports++;
+		final int msb = 63 - Long.numberOfLeadingZeros(nanos);
 
-		if (latency < 0) {
-			latency = 0;
+		if (msb < precisionBits) {
+			return (int) nanos;
 		}
 
-		if (latency < maxSize) {
-			if (latencyHistogram[latency] < Integer.MAX_VALUE) {
-				latencyHistogram[latency]++;
+		final int shift = msb - precisionBits;
 
-				if (maxUsedSize < latency) {
-					maxUsedSize = latency;
-				}
+		return ((shift + 1) << precisionBits) + (int) ((nanos >>> shift) - (1L << precisionBits));
+	}
 
-			} else {
-				isRolledOver = true;
-				resetLatency();
-			}
+	/**
+	 * @param index
+	 * @param precisionBits
+	 * @return the smallest value that goes in bucket index.
+	 */
+	static long getLowestNanos(int index, int precisionBits) {
+
+		if (index < (1 << precisionBits)) {
+			return index;
+		}
 
-		} else {
+		final int shift = (index >> precisionBits) - 1;
 
-			if (latencyHistogram[maxSize - 1] < Integer.MAX_VALUE) {
-				latencyHistogram[maxSize - 1]++;
+		return ((long) (index & ((1 << precisionBits) - 1)) + (1L << precisionBits)) << shift;
+	}
 
-				if (maxUsedSize == maxSize - 1) {
-					maxUsedSize = maxSize - 1;
-				}
+	/**
+	 * @param index
+	 * @param precisionBits
+	 * @return the largest value that goes in bucket index.
+	 */
+	static long getHighestNanos(int index, int precisionBits) {
+		return getLowestNanos(index + 1, precisionBits) - 1;
+	}
 
-			} else {
-				isRolledOver = true;
-				resetLatency();
-			}
+	static int getBucketCount(int precisionBits, long highestTrackableNanos) {
+		return getIndex(highestTrackableNanos, precisionBits) + 1;
+	}
+
+	/**
+	 * @param nanos
+	 * @return which of our buckets nanos goes in, allowing for values that are
+	 *         too big or negative.
+	 */
+	int getIndex(long nanos) {
 
+		if (nanos <= 0) {
+			return 0;
 		}
 
-		if (comment != null && comment.length() > 0) {
-			if (latency < maxSize) {
-				if (latencyHistogram[latency] < Integer.MAX_VALUE) {
-					latencyComment[latency] = comment;
-				}
+		return getIndex(Math.min(nanos, highestTrackableNanos), precisionBits);
+	}
 
-			} else {
-				latencyComment[maxSize - 1] = comment;
-			}
+	public void reportNanos(long nanos, String comment) {
+
+		if (nanos < 0) {
+			nanos = 0;
 		}
 
-	}
+		final int index = getIndex(nanos);
 
-	public void reportLatency(long startTime, String comment) {
+		counts[index]++;
+		reports++;
+		totalNanos += nanos;
 
-		int latency = (int) (System.currentTimeMillis() - startTime);
+		if (maxNanos < nanos) {
+			maxNanos = nanos;
+		}
 
-		report(latency, comment);
+		if (comment != null && comment.length() > 0) {
+			latencyComment[index] = comment;
+		}
 
 	}
 
-	public double peekValue(int idx) {
+	/**
+	 * @param latency
+	 *            in ms
+	 * @param comment
+	 */
+	public void report(int latency, String comment) {
+		reportNanos(latency * (long) NANOS_PER_MS, comment);
+	}
+
+	/**
+	 * @param startTime
+	 *            a System.currentTimeMillis() value
+	 * @param comment
+	 */
+	public void reportLatency(long startTime, String comment) {
+		report((int) (System.currentTimeMillis() - startTime), comment);
+	}
+
+	/**
+	 * @param startNanos
+	 *            a System.nanoTime() value
+	 * @param comment
+	 */
+	public void reportLatencyNanos(long startNanos, String comment) {
+		reportNanos(System.nanoTime() - startNanos, comment);
+	}
+
+	/**
+	 * Used to build a histogram from someone else's counts.
+	 */
+	void addCount(int index, long count, String comment) {
+
+		counts[index] += count;
 
-		if (idx < maxSize) {
-			return latencyHistogram[idx];
+		if (comment != null && comment.length() > 0) {
+			latencyComment[index] = comment;
 		}
+	}
 
-		return 0.0;
+	/**
+	 * Used to build a histogram from someone else's counts.
+	 */
+	void addTotals(long reports, long totalNanos, long maxNanos) {
 
+		this.reports += reports;
+		this.totalNanos += totalNanos;
+
+		if (this.maxNanos < maxNanos) {
+			this.maxNanos = maxNanos;
+		}
 	}
 
-	public void pokeValue(int idx, double value) {
+	/**
+	 * Add other's reports to ours.
+	 * 
+	 * @param other
+	 *            a histogram with the same precision and range as us.
+	 */
+	public void merge(StatsHistogram other) {
+
+		checkCompatible(other);
 
-		if (idx < maxSize) {
-			reports -= latencyHistogram[idx];
-			reports += value;
-			latencyHistogram[idx] = value;
+		for (int i = 0; i < counts.length; i++) {
+			if (other.counts[i] != 0) {
+				addCount(i, other.counts[i], other.latencyComment[i]);
+			}
 		}
 
+		addTotals(other.reports, other.totalNanos, other.maxNanos);
 	}
 
-	public void pokeReports(long reports) {
+	private void checkCompatible(StatsHistogram other) {
 
-		this.reports = reports;
+		if (other.precisionBits != precisionBits || other.highestTrackableNanos != highestTrackableNanos) {
+			throw new IllegalArgumentException(
+					"Can't combine histograms " + name + " and " + other.name + " as their buckets are different");
+		}
 	}
 
-	public double[] getLatencyHistogram() {
-		return latencyHistogram;
+	public int getBucketCount() {
+		return counts.length;
+	}
+
+	public long getCount(int index) {
+		return counts[index];
 	}
 
 	public String[] getLatencyComment() {
 		return latencyComment;
 	}
 
+	/**
+	 * @return biggest latency seen, in ms.
+	 */
 	public int getMaxUsedSize() {
 
-		return maxUsedSize;
+		return (int) (maxNanos / NANOS_PER_MS);
 	}
 
-	public int getLatencyPct(double pct) {
+	public long getMaxNanos() {
+		return maxNanos;
+	}
 
-		final double target = getLatencyTotal() * (pct / 100);
-		double runningTotal = latencyHistogram[0];
-		int matchValue = 0;
+	/**
+	 * @param pct
+	 *            e.g. 99.99
+	 * @return the latency pct percent of reports were at or below, in
+	 *         nanoseconds. This is the top of the bucket it's in, so is never
+	 *         less than the real value.
+	 */
+	public long getLatencyPctNanos(double pct) {
+
+		final double eventTotal = getEventTotal();
+
+		if (eventTotal <= 0) {
+			return 0;
+		}
+
+		final double target = Math.max(1, Math.ceil(eventTotal * (pct / 100)));
+		long runningTotal = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+
+			runningTotal += counts[i];
 
-		for (int i = 1; i < latencyHistogram.length; i++) {
-			
 			if (runningTotal >= target) {
-				break;
+				return Math.min(getHighestNanos(i, precisionBits), maxNanos);
 			}
-			
-			matchValue = i;
-			runningTotal = runningTotal + (i * latencyHistogram[i]);
-
 		}
 
-		return matchValue;
+		return maxNanos;
 	}
 
-    public double getLatencyTotal() {
+	/**
+	 * @param pct
+	 * @return the latency pct percent of reports were at or below, in ms.
+	 */
+	public double getLatencyPctMs(double pct) {
+		return getLatencyPctNanos(pct) / NANOS_PER_MS;
+	}
 
-        double runningTotal = 0.0;
+	/**
+	 * @param pct
+	 * @return the latency pct percent of reports were at or below, in whole ms.
+	 */
+	public int getLatencyPct(double pct) {
+		return (int) (getLatencyPctNanos(pct) / NANOS_PER_MS);
+	}
 
-        for (int i = 0; i < latencyHistogram.length; i++) {
-            runningTotal = runningTotal + (i * latencyHistogram[i]);
-        }
+	/**
+	 * @return sum of all the latencies reported, in ms.
+	 */
+	public double getLatencyTotal() {
+		return totalNanos / NANOS_PER_MS;
+	}
 
-        return runningTotal;
-    }
-    
-    public double getLatencyAverage() {
+	/**
+	 * @return average latency in ms.
+	 */
+	public double getLatencyAverage() {
 
-        return getLatencyTotal() / reports ;
-    }
+		return getLatencyTotal() / reports;
+	}
 
 	public double getEventTotal() {
 
 		double runningTotal = 0.0;
 
-		for (int i = 0; i < latencyHistogram.length; i++) {
-			runningTotal += latencyHistogram[i] ;
+		for (int i = 0; i < counts.length; i++) {
+			runningTotal += counts[i];
 		}
 
 		return runningTotal;
@@ -222,46 +398,46 @@ public class StatsHistogram {
 		b.append(description);
 		b.append(System.lineSeparator());
 		
-        b.append(" Reports=");
-        b.append(String.format(NUMFORMAT_INTEGER, reports));
-        b.append(" Average=");
-        b.append(String.format(NUMFORMAT_DECIMAL, getLatencyAverage() ));
+		b.append(" Reports=");
+		b.append(String.format(NUMFORMAT_INTEGER, reports));
+		b.append(" Average=");
+		b.append(String.format(NUMFORMAT_DECIMAL, getLatencyAverage()));
 		b.append(", Total=");
 		b.append(String.format(NUMFORMAT_DECIMAL, getLatencyTotal()));
 		b.append(", 50%=");
-		b.append(String.format(NUMFORMAT_INTEGER, getLatencyPct(50)));
+		b.append(String.format(NUMFORMAT_DECIMAL, getLatencyPctMs(50)));
 		b.append(", 95%=");
-		b.append(String.format(NUMFORMAT_INTEGER, getLatencyPct(95)));
+		b.append(String.format(NUMFORMAT_DECIMAL, getLatencyPctMs(95)));
 		b.append(", 99%=");
-		b.append(String.format(NUMFORMAT_INTEGER, getLatencyPct(99)));
-		b.append(", 99.5%=");
-		b.append(String.format(NUMFORMAT_INTEGER, getLatencyPct(99.5)));
-		b.append(", 99.95%=");
-		b.append(String.format(NUMFORMAT_INTEGER, getLatencyPct(99.95)));
+		b.append(String.format(NUMFORMAT_DECIMAL, getLatencyPctMs(99)));
+		b.append(", 99.9%=");
+		b.append(String.format(NUMFORMAT_DECIMAL, getLatencyPctMs(99.9)));
+		b.append(", 99.99%=");
+		b.append(String.format(NUMFORMAT_DECIMAL, getLatencyPctMs(99.99)));
 		b.append(", Max=");
-		b.append(String.format(NUMFORMAT_INTEGER, maxUsedSize));
-
-		if (isRolledOver) {
-			b.append(" ROLLED OVER");
-		}
+		b.append(String.format(NUMFORMAT_DECIMAL, maxNanos / NANOS_PER_MS));
 
 		return b.toString();
 	}
 
+	/**
+	 * Lists each bucket with something in it, showing the lowest value it
+	 * holds in ms.
+	 */
 	@Override
 	public String toString() {
 		StringBuffer b = new StringBuffer(toStringShort());
 
 		b.append("\n");
 
-		for (int i = 0; i < latencyHistogram.length; i++) {
-			if (latencyHistogram[i] != 0) {
-				if (i == (latencyHistogram.length -1)) {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				if (i == (counts.length - 1)) {
 					b.append(">= ");
 				}
-				b.append(i);
+				b.append(getLowestNanos(i, precisionBits) / NANOS_PER_MS);
 				b.append("\t");
-				b.append(latencyHistogram[i]);
+				b.append(counts[i]);
 				b.append("\t");
 				b.append(latencyComment[i]);
 				b.append("\n");
@@ -271,26 +447,32 @@ public class StatsHistogram {
 		return b.toString();
 	}
 
+	/**
+	 * @return false. We used to reset ourselves when a bucket got too big,
+	 *         but counts are now longs.
+	 */
 	public boolean isHasRolledOver() {
-		return isRolledOver;
+		return false;
 	}
 
+	/**
+	 * @param name
+	 * @param bigThing
+	 * @param smallThing
+	 * @return a histogram whose buckets are bigThing's minus smallThing's.
+	 */
 	public static StatsHistogram subtract(String name, StatsHistogram bigThing, StatsHistogram smallThing) {
-		int size = bigThing.getMaxUsedSize();
 
-		if (smallThing.getMaxUsedSize() > size) {
-			size = smallThing.getMaxUsedSize();
-		}
+		bigThing.checkCompatible(smallThing);
 
-		StatsHistogram newHist = new StatsHistogram(name, size);
+		StatsHistogram newHist = new StatsHistogram(name, bigThing.precisionBits, bigThing.highestTrackableNanos);
 
-		for (int i = 0; i < size; i++) {
-			double bigVal = bigThing.peekValue(i);
-			double smallVal = smallThing.peekValue(i);
-			newHist.pokeValue(i, (bigVal - smallVal));
+		for (int i = 0; i < newHist.counts.length; i++) {
+			newHist.addCount(i, bigThing.counts[i] - smallThing.counts[i], bigThing.latencyComment[i]);
 		}
 
-		newHist.pokeReports(bigThing.reports);
+		newHist.addTotals(bigThing.reports - smallThing.reports, bigThing.totalNanos - smallThing.totalNanos,
+				bigThing.maxNanos);
 
 		return newHist;
 	}